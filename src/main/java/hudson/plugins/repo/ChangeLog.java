@@ -58,10 +58,6 @@ public class ChangeLog extends ChangeLogParser {
 	private static Logger debug =
 		Logger.getLogger("hudson.plugins.repo.ChangeLog");
 
-	// TODO: Really need to add some unit tests for this class. That might
-	// require creating git commits, which will be tricky. See the git plugin
-	// for some possibilities.
-
 	@SuppressWarnings("unchecked")
 	@Override
 	public RepoChangeLogSet parse(
@@ -114,7 +110,6 @@ public class ChangeLog extends ChangeLogParser {
 			// No changes or the first job
 			return null;
 		}
-		final List<String> commands = new ArrayList<String>(5);
 		final List<ChangeLogEntry> logs = new ArrayList<ChangeLogEntry>();
 
 
@@ -137,77 +132,147 @@ public class ChangeLog extends ChangeLogParser {
 				continue;
 			}
 			final FilePath gitdir = new FilePath(workspace, change.getPath());
-			commands.clear();
-			commands.add("git");
-			commands.add("log");
-			commands.add("--raw");
-			commands.add("--first-parent");
-			commands.add("--format=\"zzREPOzz%H%n%an<%ae>%aD"
-					+ "%n%cn<%ce>%cD%n%s%n%n%byyREPOyy\"");
-			// TODO: make this work with the -M flag to show copied and renamed
-			// files.
-			// TODO: even better, use jgit to do the diff. It would be faster,
-			// more robust, etc. git was used to get this done faster, but jgit
-			// is definitely preferable. Most of the code can probably be copied
-			// from Gerrit.  It might be tricky with master/slave setup.
-			commands.add(change.getRevision() + ".." + newRevision);
-			final OutputStream gitOutput = new ByteArrayOutputStream();
-			launcher.launch().stdout(gitOutput).pwd(gitdir).cmds(commands)
-					.join();
-			final String[] changelogs =
-					gitOutput.toString().split("zzREPOzz");
-			for (final String changelog : changelogs) {
-				if (changelog.length() < 10) {
-					// This isn't a helpful message. Skip it.
-					continue;
+			final String range = change.getRevision() + ".." + newRevision;
+			String gitOutput = gitLog(launcher, gitdir, range, true);
+			if (gitOutput == null) {
+				// Partial clones may lack the trees needed for the file
+				// list. Don't fetch them just for the change log.
+				debug.log(Level.INFO, "Listing " + change.getPath()
+						+ " changes without files");
+				gitOutput = gitLog(launcher, gitdir, range, false);
+				if (gitOutput == null) {
+					gitOutput = "";
 				}
-				int endLine = changelog.indexOf('\n');
-				final String revision = changelog.substring(0, endLine);
-				int firstEmailPos = changelog.indexOf('<', endLine);
-				final String authorName =
-						changelog.substring(endLine + 1, firstEmailPos);
-				int endEmail = changelog.indexOf('>', firstEmailPos);
-				final String authorEmail =
-						changelog.substring(firstEmailPos + 1, endEmail);
-				endLine = changelog.indexOf('\n', endEmail);
-				final String authorDate =
-						changelog.substring(endEmail + 1, endLine);
-				firstEmailPos = changelog.indexOf('<', endLine);
-				final String committerName =
-						changelog.substring(endLine + 1, firstEmailPos);
-				endEmail = changelog.indexOf('>', firstEmailPos);
-				final String committerEmail =
-						changelog.substring(firstEmailPos + 1, endEmail);
-				endLine = changelog.indexOf('\n', endEmail);
-				final String committerDate =
-						changelog.substring(endEmail + 1, endLine);
-				final int endComment = changelog.indexOf("yyREPOyy", endLine);
-				final String commitText =
-						changelog.substring(endLine + 1, endComment);
+			}
+			logs.addAll(parseLog(change.getPath(), change.getServerPath(),
+					gitOutput));
+		}
+		return logs;
+	}
 
-				final String[] fileLines =
-						changelog.substring(endComment).split("\n");
-				final List<ModifiedFile> modifiedFiles =
-						new ArrayList<ModifiedFile>();
-				for (final String fileLine : fileLines) {
-					if (!fileLine.startsWith(":")) {
-						continue;
-					}
-					final char action = fileLine.substring(37, 38).charAt(0);
-					final String path = fileLine.substring(39);
-					modifiedFiles.add(new ModifiedFile(path, action));
+	/**
+	 * Parses the output of a {@link #getLogCommand} run into change log
+	 * entries of a project.
+	 *
+	 * @param path
+	 *            The path of the project in the workspace
+	 * @param serverPath
+	 *            The name of the project on the server
+	 * @param gitOutput
+	 *            The output of git log, with or without the file list
+	 */
+	static List<ChangeLogEntry> parseLog(final String path,
+			final String serverPath, final String gitOutput) {
+		final List<ChangeLogEntry> logs = new ArrayList<ChangeLogEntry>();
+		final String[] changelogs = gitOutput.split("zzREPOzz");
+		for (final String changelog : changelogs) {
+			if (changelog.length() < 10) {
+				// This isn't a helpful message. Skip it.
+				continue;
+			}
+			int endLine = changelog.indexOf('\n');
+			final String revision = changelog.substring(0, endLine);
+			int firstEmailPos = changelog.indexOf('<', endLine);
+			final String authorName =
+					changelog.substring(endLine + 1, firstEmailPos);
+			int endEmail = changelog.indexOf('>', firstEmailPos);
+			final String authorEmail =
+					changelog.substring(firstEmailPos + 1, endEmail);
+			endLine = changelog.indexOf('\n', endEmail);
+			final String authorDate =
+					changelog.substring(endEmail + 1, endLine);
+			firstEmailPos = changelog.indexOf('<', endLine);
+			final String committerName =
+					changelog.substring(endLine + 1, firstEmailPos);
+			endEmail = changelog.indexOf('>', firstEmailPos);
+			final String committerEmail =
+					changelog.substring(firstEmailPos + 1, endEmail);
+			endLine = changelog.indexOf('\n', endEmail);
+			final String committerDate =
+					changelog.substring(endEmail + 1, endLine);
+			final int endComment = changelog.indexOf("yyREPOyy", endLine);
+			final String commitText =
+					changelog.substring(endLine + 1, endComment);
+
+			final String[] fileLines =
+					changelog.substring(endComment).split("\n");
+			final List<ModifiedFile> modifiedFiles =
+					new ArrayList<ModifiedFile>();
+			for (final String fileLine : fileLines) {
+				// :<mode> <mode> <sha1> <sha1> <status>\t<path>. Older git
+				// versions put "..." after the abbreviated sha1s, so find
+				// the status from the tab.
+				final int tab = fileLine.indexOf('\t');
+				if (!fileLine.startsWith(":") || tab < 0) {
+					continue;
 				}
-				ChangeLogEntry nc = new ChangeLogEntry(change.getPath(), change
-						.getServerPath(), revision, authorName, authorEmail,
-						authorDate, committerName, committerEmail,
-						committerDate, commitText, modifiedFiles);
-				logs.add(nc);
-				debug.log(Level.FINEST, nc.toString());
+				final int status = fileLine.lastIndexOf(' ', tab) + 1;
+				final char action = fileLine.charAt(status);
+				modifiedFiles.add(new ModifiedFile(
+						fileLine.substring(tab + 1), action));
 			}
+			ChangeLogEntry nc = new ChangeLogEntry(path, serverPath,
+					revision, authorName, authorEmail, authorDate,
+					committerName, committerEmail, committerDate,
+					commitText, modifiedFiles);
+			logs.add(nc);
+			debug.log(Level.FINEST, nc.toString());
 		}
 		return logs;
 	}
 
+	/**
+	 * Returns the git log command for a range of commits. The file list is
+	 * only read from trees and --no-renames keeps git from comparing blob
+	 * contents, so in a partial clone no missing object is needed.
+	 *
+	 * @param range
+	 *            The range of commits to list
+	 * @param raw
+	 *            Whether to list the files each commit changed
+	 */
+	static List<String> getLogCommand(final String range,
+			final boolean raw) {
+		final List<String> commands = new ArrayList<String>(7);
+		commands.add("git");
+		commands.add("log");
+		if (raw) {
+			commands.add("--raw");
+			commands.add("--no-renames");
+		}
+		commands.add("--first-parent");
+		commands.add("--format=\"zzREPOzz%H%n%an<%ae>%aD"
+				+ "%n%cn<%ce>%cD%n%s%n%n%byyREPOyy\"");
+		// TODO: make this work with the -M flag to show copied and renamed
+		// files.
+		// TODO: even better, use jgit to do the diff. It would be faster,
+		// more robust, etc. git was used to get this done faster, but jgit
+		// is definitely preferable. Most of the code can probably be copied
+		// from Gerrit.  It might be tricky with master/slave setup.
+		commands.add(range);
+		return commands;
+	}
+
+	/**
+	 * Runs git log on a range of commits. Lazy fetching is disabled in case
+	 * a partial clone misses an object anyway: the command fails instead.
+	 *
+	 * @return the output of git log, or null if it failed
+	 */
+	private static String gitLog(final Launcher launcher,
+			final FilePath gitdir, final String range, final boolean raw)
+			throws IOException, InterruptedException {
+		final OutputStream gitOutput = new ByteArrayOutputStream();
+		final int returnCode =
+				launcher.launch().envs("GIT_NO_LAZY_FETCH=1").stdout(
+						gitOutput).pwd(gitdir).cmds(getLogCommand(range, raw))
+						.join();
+		if (returnCode != 0) {
+			return null;
+		}
+		return gitOutput.toString();
+	}
+
 	/**
 	 * Generate a change log file containing the differences between one build
 	 * and the next and save the result as XML in a specified file. The function
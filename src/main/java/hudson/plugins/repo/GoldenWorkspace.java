@@ -0,0 +1,552 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The GoldenWorkspace keeps a synced checkout of each job configuration on
+ * each node, used to seed new workspaces. A workspace without a checkout
+ * is copied from the golden checkout, then an incremental sync brings it
+ * to the wanted revisions. The golden checkout itself is saved from a
+ * workspace which started empty, once it is older than the refresh
+ * interval. Only .repo is copied during the build; the work trees of the
+ * golden checkout are then checked out from it in the background, so that
+ * the build doesn't wait for them.
+ *
+ * Copies are made with GNU cp, keeping symbolic links, which repo uses
+ * between the work trees and the projects in .repo. The object stores of
+ * the projects are hard linked, since git never modifies an object once it
+ * is written, so they take no space on any file system. The rest is copied
+ * with cp --reflink=auto, which shares the data of the files on
+ * copy-on-write file systems such as btrfs or XFS, and copies them in full
+ * otherwise.
+ */
+public final class GoldenWorkspace {
+
+	private static Logger debug =
+		Logger.getLogger("hudson.plugins.repo.GoldenWorkspace");
+
+	/**
+	 * The directory of the node's root holding the golden checkouts.
+	 */
+	static final String GOLDEN_ROOT = "repo-golden";
+
+	/**
+	 * The file in the golden checkout's .repo recording when it was saved.
+	 */
+	private static final String SAVE_MARKER = "jenkins-golden-saved";
+
+	/**
+	 * The number of paths passed to one cp command.
+	 */
+	private static final int PATHS_PER_COPY = 500;
+
+	/**
+	 * Checks out the work trees of saved golden checkouts, one at a time.
+	 */
+	private static final ExecutorService SAVER =
+			Executors.newSingleThreadExecutor(new DaemonThreadFactory());
+
+	/**
+	 * The golden checkouts being saved, keyed by node and directory.
+	 */
+	private static final Set<String> SAVING =
+			Collections.synchronizedSet(new HashSet<String>());
+
+	private GoldenWorkspace() {
+	}
+
+	/**
+	 * Returns the directory of the golden checkout of a job configuration.
+	 * Jobs share it if they would poll the same checkout.
+	 *
+	 * @param root
+	 *            The root directory of the node
+	 * @param scm
+	 *            The RepoScm of the job
+	 */
+	static FilePath getGoldenDir(final FilePath root, final RepoScm scm) {
+		return root.child(GOLDEN_ROOT).child(
+				MirrorManager.getMirrorName(scm.getManifestRepositoryUrl(),
+						scm.getPollingKey()));
+	}
+
+	/**
+	 * Copies the golden checkout into a workspace without a checkout. The
+	 * copy is made next to the workspace, then moved into it, so the
+	 * workspace is left as it was if seeding fails.
+	 *
+	 * @param launcher
+	 *            The launcher of the node
+	 * @param node
+	 *            The name of the node
+	 * @param golden
+	 *            The directory of the golden checkout
+	 * @param workspace
+	 *            The top of the repo checkout to seed
+	 * @param logger
+	 *            A PrintStream for logging the progress
+	 * @return true if the workspace was seeded
+	 * @throws IOException
+	 *             is thrown if the checkouts couldn't be accessed
+	 * @throws InterruptedException
+	 *             is thrown if we are interrupted while copying or waiting
+	 *             for the golden checkout
+	 */
+	public static boolean seed(final Launcher launcher, final String node,
+			final FilePath golden, final FilePath workspace,
+			final PrintStream logger) throws IOException,
+			InterruptedException {
+		final Lock lock = MirrorManager.getLock(node, golden);
+		lock.lockInterruptibly();
+		try {
+			if (!golden.child(".repo").child("manifest.xml").exists()) {
+				return false;
+			}
+			for (final FilePath child : golden.list()) {
+				if (workspace.child(child.getName()).exists()) {
+					logger.println("The workspace already holds "
+							+ child.getName() + ", not seeding it");
+					return false;
+				}
+			}
+			logger.println("Seeding the workspace from " + golden.getRemote());
+			final long start = System.currentTimeMillis();
+			final FilePath temp =
+					workspace.getParent().child(
+							workspace.getName() + ".seed");
+			try {
+				if (temp.exists()) {
+					temp.deleteRecursive();
+				}
+				if (!copy(launcher, golden, temp, logger, false)) {
+					return false;
+				}
+				temp.child(".repo").child(SAVE_MARKER).delete();
+				workspace.mkdirs();
+				temp.act(new Install(workspace.getRemote()));
+			} catch (final IOException e) {
+				logger.println("Seeding the workspace failed: "
+						+ e.getMessage());
+				return false;
+			} finally {
+				if (temp.exists()) {
+					temp.deleteRecursive();
+				}
+			}
+			logger.println("Seeding took "
+					+ Util.getTimeSpanString(System.currentTimeMillis()
+							- start));
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Saves a freshly synced workspace as the golden checkout, unless the
+	 * golden checkout was saved recently or is being saved. The .repo of
+	 * the workspace is copied right away, and its work trees are checked
+	 * out in the background; the golden checkout is replaced once they are.
+	 *
+	 * @param launcher
+	 *            The launcher of the node
+	 * @param node
+	 *            The node holding the workspace
+	 * @param golden
+	 *            The directory of the golden checkout
+	 * @param workspace
+	 *            The top of the repo checkout to save
+	 * @param checkout
+	 *            The command checking out the work trees from .repo
+	 * @param logger
+	 *            A PrintStream for logging the progress
+	 * @param maxAge
+	 *            How long, in milliseconds, a golden checkout is kept
+	 * @throws IOException
+	 *             is thrown if the checkouts couldn't be accessed
+	 * @throws InterruptedException
+	 *             is thrown if we are interrupted while copying or waiting
+	 *             for the golden checkout
+	 */
+	// CS IGNORE ParameterNumber FOR NEXT 4 LINES. REASON: node and paths.
+	public static void save(final Launcher launcher, final Node node,
+			final FilePath golden, final FilePath workspace,
+			final List<String> checkout, final PrintStream logger,
+			final long maxAge) throws IOException, InterruptedException {
+		final String key = node.getNodeName() + "\n" + golden.getRemote();
+		final Lock lock = MirrorManager.getLock(node.getNodeName(), golden);
+		lock.lockInterruptibly();
+		try {
+			final FilePath marker = golden.child(".repo").child(SAVE_MARKER);
+			if (marker.exists()
+					&& System.currentTimeMillis() - marker.lastModified()
+							< maxAge) {
+				return;
+			}
+			if (!SAVING.add(key)) {
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+		boolean started = false;
+		try {
+			logger.println("Saving the workspace as " + golden.getRemote()
+					+ ", its work trees are checked out in the background");
+			// Copy next to the golden checkout, so that seeding never sees
+			// a partial copy.
+			final FilePath temp =
+					golden.getParent().child(golden.getName() + ".tmp");
+			if (temp.exists()) {
+				temp.deleteRecursive();
+			}
+			if (!copy(launcher, workspace, temp, logger, true)) {
+				temp.deleteRecursive();
+				return;
+			}
+			SAVER.submit(new Runnable() {
+				public void run() {
+					install(node, key, golden, temp, checkout);
+				}
+			});
+			started = true;
+		} finally {
+			if (!started) {
+				SAVING.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Checks out the work trees of a copied .repo, then replaces the golden
+	 * checkout with the copy. It runs in the background, and logs to the
+	 * Jenkins log.
+	 */
+	private static void install(final Node node, final String key,
+			final FilePath golden, final FilePath temp,
+			final List<String> checkout) {
+		final TaskListener listener = new LogTaskListener(debug, Level.INFO);
+		try {
+			final Launcher launcher = node.createLauncher(listener);
+			if (launcher.launch().stdout(listener).pwd(temp).cmds(checkout)
+					.join() != 0) {
+				debug.log(Level.WARNING, "Unable to check out the work trees "
+						+ "of " + temp.getRemote());
+				temp.deleteRecursive();
+				return;
+			}
+			final Lock lock =
+					MirrorManager.getLock(node.getNodeName(), golden);
+			lock.lockInterruptibly();
+			try {
+				if (golden.exists()) {
+					golden.deleteRecursive();
+				}
+				temp.renameTo(golden);
+				golden.child(".repo").child(SAVE_MARKER).touch(
+						System.currentTimeMillis());
+			} finally {
+				lock.unlock();
+			}
+			debug.log(Level.INFO, "Saved " + golden.getRemote());
+		} catch (final IOException e) {
+			debug.log(Level.WARNING, "Unable to save " + golden.getRemote(),
+					e);
+		} catch (final InterruptedException e) {
+			debug.log(Level.WARNING, "Interrupted while saving "
+					+ golden.getRemote(), e);
+		} finally {
+			SAVING.remove(key);
+		}
+	}
+
+	/**
+	 * Copies a checkout into a new directory, hard linking the object
+	 * stores of the projects and sharing the data of the other files if the
+	 * file system supports it.
+	 *
+	 * @param repoOnly
+	 *            Whether to copy only .repo, leaving out the work trees
+	 * @return true if the copy succeeded
+	 */
+	private static boolean copy(final Launcher launcher, final FilePath from,
+			final FilePath to, final PrintStream logger,
+			final boolean repoOnly) throws IOException, InterruptedException {
+		if (!launcher.isUnix() || !isGnuCp(launcher, from)) {
+			logger.println("Copying checkouts needs GNU cp, which this node "
+					+ "doesn't have");
+			return false;
+		}
+		to.mkdirs();
+		final List<String> stores = from.act(new ListParts(true));
+		if (!cp(launcher, from, to, logger, "-l", stores)) {
+			logger.println("Unable to hard link the object stores, "
+					+ "copying them");
+			// Writing over the links would modify the source.
+			for (final String store : stores) {
+				to.child(store).deleteRecursive();
+			}
+			if (!cp(launcher, from, to, logger, null, stores)) {
+				return false;
+			}
+		}
+		List<String> rest = from.act(new ListParts(false));
+		if (repoOnly) {
+			rest = getRepoParts(rest);
+		}
+		if (!cp(launcher, from, to, logger, "--reflink=auto", rest)) {
+			// Versions of cp older than 7.5 don't know --reflink.
+			logger.println("Unable to share the data of the files, "
+					+ "copying them in full");
+			return cp(launcher, from, to, logger, null, rest);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if the cp of a node is GNU cp, which the copies need for
+	 * --parents, -l and --reflink.
+	 */
+	private static boolean isGnuCp(final Launcher launcher,
+			final FilePath dir) throws IOException, InterruptedException {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		return launcher.launch().stdout(output).pwd(dir).cmds("cp",
+				"--version").join() == 0
+				&& output.toString().indexOf("GNU") >= 0;
+	}
+
+	/**
+	 * Returns the parts of a checkout which are in .repo.
+	 *
+	 * @param parts
+	 *            The paths of the parts, relative to the top of the checkout
+	 */
+	static List<String> getRepoParts(final List<String> parts) {
+		final List<String> repoParts = new ArrayList<String>();
+		for (final String part : parts) {
+			if (part.equals(".repo") || part.startsWith(".repo/")) {
+				repoParts.add(part);
+			}
+		}
+		return repoParts;
+	}
+
+	/**
+	 * Copies parts of a checkout with cp -a, keeping their path relative to
+	 * the top of the checkout.
+	 *
+	 * @param option
+	 *            An option of cp selecting how to copy the files, or null
+	 *            to copy them in full
+	 * @param paths
+	 *            The paths of the parts, relative to the top of the checkout
+	 * @return true if the copy succeeded
+	 */
+	// CS IGNORE ParameterNumber FOR NEXT 3 LINES. REASON: node and paths.
+	private static boolean cp(final Launcher launcher, final FilePath from,
+			final FilePath to, final PrintStream logger, final String option,
+			final List<String> paths) throws IOException,
+			InterruptedException {
+		for (int i = 0; i < paths.size(); i += PATHS_PER_COPY) {
+			final List<String> commands = new ArrayList<String>();
+			commands.addAll(Arrays.asList("cp", "-a", "--parents"));
+			if (option != null) {
+				commands.add(option);
+			}
+			commands.add("--");
+			commands.addAll(paths.subList(i, Math.min(paths.size(), i
+					+ PATHS_PER_COPY)));
+			commands.add(to.getRemote());
+			if (launcher.launch().stdout(logger).pwd(from).cmds(commands)
+					.join() != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Lists the parts of a checkout to copy, as paths relative to its top.
+	 * The object stores of the projects are listed apart from the rest, so
+	 * that they can be hard linked. It runs on the node holding the
+	 * checkout.
+	 */
+	static final class ListParts implements FileCallable<List<String>> {
+		private static final long serialVersionUID = 1L;
+
+		private final boolean objects;
+
+		/**
+		 * Creates a new ListParts.
+		 *
+		 * @param objects
+		 *            Whether to list the object stores, or everything else
+		 */
+		ListParts(final boolean objects) {
+			this.objects = objects;
+		}
+
+		/**
+		 * Lists the parts.
+		 *
+		 * @param checkout
+		 *            The top of the checkout
+		 * @param channel
+		 *            Unused
+		 * @return the paths of the parts
+		 */
+		public List<String> invoke(final File checkout,
+				final VirtualChannel channel) throws IOException {
+			final Set<String> stores = new TreeSet<String>();
+			// Recent versions of repo keep the objects in project-objects,
+			// and link to them from projects.
+			for (final String dir : new String[] {"project-objects",
+					"projects"}) {
+				final Map<String, File> projects = new TreeMap<String, File>();
+				MirrorIndex.findProjects(new File(new File(checkout, ".repo"),
+						dir), "", projects);
+				for (final Map.Entry<String, File> project : projects
+						.entrySet()) {
+					if (!isLink(new File(project.getValue(), "objects"))) {
+						stores.add(".repo/" + dir + "/" + project.getKey()
+								+ ".git/objects");
+					}
+				}
+			}
+			if (objects) {
+				return new ArrayList<String>(stores);
+			}
+			final List<String> rest = new ArrayList<String>();
+			listRest(checkout, "", stores, rest);
+			return rest;
+		}
+
+		/**
+		 * Lists the children of a directory which aren't object stores,
+		 * going into those which contain one.
+		 */
+		private static void listRest(final File dir, final String prefix,
+				final Set<String> stores, final List<String> rest)
+				throws IOException {
+			final File[] children = dir.listFiles();
+			if (children == null) {
+				return;
+			}
+			Arrays.sort(children);
+			for (final File child : children) {
+				final String path = prefix + child.getName();
+				if (stores.contains(path)) {
+					continue;
+				}
+				if (child.isDirectory() && !isLink(child)
+						&& containsStore(path, stores)) {
+					listRest(child, path + "/", stores, rest);
+				} else {
+					rest.add(path);
+				}
+			}
+		}
+
+		private static boolean containsStore(final String path,
+				final Set<String> stores) {
+			for (final String store : stores) {
+				if (store.startsWith(path + "/")) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private static boolean isLink(final File file) throws IOException {
+			return !file.getCanonicalFile().equals(
+					new File(file.getParentFile().getCanonicalFile(), file
+							.getName()));
+		}
+	}
+
+	/**
+	 * Moves the content of a seeded copy into the workspace, on the machine
+	 * holding them. If a part can't be moved, the parts already moved are
+	 * moved back, leaving the workspace as it was.
+	 */
+	private static final class Install implements FileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private final String workspace;
+
+		private Install(final String workspace) {
+			this.workspace = workspace;
+		}
+
+		public Void invoke(final File copy, final VirtualChannel channel)
+				throws IOException {
+			final File[] children = copy.listFiles();
+			if (children == null) {
+				throw new IOException("Unable to list " + copy);
+			}
+			final List<File> moved = new ArrayList<File>();
+			for (final File child : children) {
+				final File target = new File(workspace, child.getName());
+				if (target.exists() || !child.renameTo(target)) {
+					for (final File done : moved) {
+						done.renameTo(new File(copy, done.getName()));
+					}
+					throw new IOException("Unable to move " + child + " to "
+							+ workspace);
+				}
+				moved.add(target);
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.Launcher;
+import hudson.model.Run;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The JobTuner chooses the number of sync jobs for jobs using automatic
+ * parallelism. The agent's processors and load average give an upper
+ * bound, and the sync times of recent builds are used to converge on the
+ * fastest value: the best value seen so far is used once its neighbours
+ * have been tried.
+ */
+public final class JobTuner {
+
+	private static Logger debug =
+		Logger.getLogger("hudson.plugins.repo.JobTuner");
+
+	/**
+	 * How many previous builds are looked at. Older results are forgotten,
+	 * so that the choice follows changes to the agent or the manifest.
+	 */
+	static final int HISTORY = 10;
+
+	/**
+	 * Reads the processor count and load average of an agent.
+	 */
+	private static final class AgentLoad implements
+			Callable<double[], RuntimeException> {
+		private static final long serialVersionUID = 1L;
+
+		public double[] call() {
+			return new double[] {
+					Runtime.getRuntime().availableProcessors(),
+					ManagementFactory.getOperatingSystemMXBean()
+							.getSystemLoadAverage(), };
+		}
+	}
+
+	private JobTuner() {
+	}
+
+	/**
+	 * Chooses the number of sync jobs for a build.
+	 *
+	 * @param launcher
+	 *            The launcher of the agent which will sync
+	 * @param lastBuild
+	 *            The most recent previous build of the job, or null
+	 * @param logger
+	 *            A PrintStream for reporting the choice
+	 * @return the number of jobs to use
+	 * @throws InterruptedException
+	 *             is thrown if we are interrupted while asking the agent
+	 */
+	public static int chooseJobs(final Launcher launcher,
+			final Run<?, ?> lastBuild, final PrintStream logger)
+			throws InterruptedException {
+		int processors = Runtime.getRuntime().availableProcessors();
+		double load = -1;
+		final VirtualChannel channel = launcher.getChannel();
+		if (channel != null) {
+			try {
+				final double[] agent = channel.call(new AgentLoad());
+				processors = (int) agent[0];
+				load = agent[1];
+			} catch (final IOException e) {
+				debug.log(Level.WARNING, "Unable to read the agent's load", e);
+			}
+		}
+		final List<SyncReport> history = new ArrayList<SyncReport>();
+		Run<?, ?> build = lastBuild;
+		while (build != null && history.size() < HISTORY) {
+			final SyncReport report = build.getAction(SyncReport.class);
+			if (report != null && report.getJobs() > 0
+					&& report.isSuccessful()) {
+				history.add(report);
+			}
+			build = build.getPreviousBuild();
+		}
+		final int jobs = choose(processors, load, history);
+		logger.println("Using " + jobs + " sync jobs (" + processors
+				+ " processors, load " + (load < 0 ? "unknown" : load)
+				+ ", " + history.size() + " previous syncs)");
+		return jobs;
+	}
+
+	/**
+	 * Chooses the number of sync jobs.
+	 *
+	 * @param processors
+	 *            The number of processors of the agent
+	 * @param load
+	 *            The load average of the agent, or a negative number if it
+	 *            is unknown
+	 * @param history
+	 *            The reports of recent successful syncs, most recent first
+	 */
+	static int choose(final int processors, final double load,
+			final List<SyncReport> history) {
+		// Sync mostly waits on the network, so allow twice the processors
+		// minus what is already busy.
+		final int max =
+				Math.max(1, 2 * processors
+						- (load < 0 ? 0 : (int) Math.round(load)));
+		if (history.isEmpty()) {
+			return Math.min(max, Math.max(1, processors));
+		}
+
+		final Map<Integer, long[]> totals = new HashMap<Integer, long[]>();
+		for (final SyncReport report : history) {
+			long[] total = totals.get(report.getJobs());
+			if (total == null) {
+				total = new long[2];
+				totals.put(report.getJobs(), total);
+			}
+			total[0] += report.getTotalDuration();
+			total[1]++;
+		}
+		int best = 0;
+		long bestAverage = Long.MAX_VALUE;
+		for (final Map.Entry<Integer, long[]> entry : totals.entrySet()) {
+			final long average = entry.getValue()[0] / entry.getValue()[1];
+			if (average < bestAverage) {
+				best = entry.getKey();
+				bestAverage = average;
+			}
+		}
+
+		final int step = Math.max(1, best / 4);
+		if (best + step <= max && !totals.containsKey(best + step)) {
+			return best + step;
+		}
+		if (best - step >= 1 && !totals.containsKey(best - step)) {
+			return Math.min(max, best - step);
+		}
+		return Math.min(max, best);
+	}
+}
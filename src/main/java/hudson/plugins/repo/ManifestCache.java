@@ -0,0 +1,96 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Hudson;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The ManifestCache keeps bare clones of manifest repositories on the
+ * Jenkins server, so that lightweight polling doesn't need a workspace or an
+ * executor. There is one clone per manifest URL and branch, shared by every
+ * job using them, and it is fetched incrementally on each poll.
+ */
+public final class ManifestCache {
+
+	private static final ConcurrentMap<String, ReentrantLock> LOCKS =
+			new ConcurrentHashMap<String, ReentrantLock>();
+
+	private ManifestCache() {
+	}
+
+	/**
+	 * Returns the bare git directory caching a manifest repository. The
+	 * directory might not exist yet.
+	 *
+	 * @param url
+	 *            The manifest repository URL
+	 * @param branch
+	 *            The manifest branch, or null for the default branch
+	 */
+	public static FilePath getGitDir(final String url, final String branch) {
+		return getGitDir(new File(Hudson.getInstance().getRootDir(),
+				"repo-manifests"), url, branch);
+	}
+
+	/**
+	 * Returns the bare git directory caching a manifest repository in a
+	 * cache directory.
+	 *
+	 * @param root
+	 *            The directory holding the cached repositories
+	 * @param url
+	 *            The manifest repository URL
+	 * @param branch
+	 *            The manifest branch, or null for the default branch
+	 */
+	static FilePath getGitDir(final File root, final String url,
+			final String branch) {
+		return new FilePath(new File(root, Util.getDigestOf(url + "#"
+				+ Util.fixNull(branch))));
+	}
+
+	/**
+	 * Returns the lock which must be held while fetching into a cached git
+	 * directory, so concurrent polls don't trample each other's refs.
+	 *
+	 * @param gitDir
+	 *            A directory returned by {@link #getGitDir}
+	 */
+	public static ReentrantLock getLock(final FilePath gitDir) {
+		final String key = gitDir.getRemote();
+		ReentrantLock lock = LOCKS.get(key);
+		if (lock == null) {
+			LOCKS.putIfAbsent(key, new ReentrantLock());
+			lock = LOCKS.get(key);
+		}
+		return lock;
+	}
+}
@@ -0,0 +1,503 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The MirrorIndex records, for each project of a managed mirror, the SHA-1s
+ * its refs pointed to after the last update of the mirror. It is kept on
+ * the node, in the mirror's .repo directory.
+ *
+ * Before a sync, the index tells which projects of a workspace the mirror
+ * already has the wanted revision of. The wanted revisions of those
+ * projects are fetched from the mirror and checked out with repo sync -l,
+ * so only the others go to the servers. The index may be older than the
+ * mirror, so a project is only checked out locally once its remote branch
+ * was verified to point to the wanted revision.
+ *
+ * Only the tips of the refs are recorded. A wanted revision which the
+ * mirror holds but which is no longer a tip, such as an older commit a
+ * project is pinned to, is not found in the index, and its project is
+ * synced from its server as if the mirror lacked it.
+ */
+public final class MirrorIndex {
+
+	/**
+	 * The file in the mirror's .repo directory holding the index.
+	 */
+	static final String INDEX_FILE = "jenkins-mirror-index";
+
+	private MirrorIndex() {
+	}
+
+	/**
+	 * Rebuilds the index of a mirror from the refs of its projects. It runs
+	 * on the node holding the mirror and returns the number of projects.
+	 */
+	public static final class Update implements FileCallable<Integer> {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Scans the mirror and writes the index.
+		 *
+		 * @param mirror
+		 *            The top of the mirror
+		 * @param channel
+		 *            Unused
+		 * @return the number of projects indexed
+		 */
+		public Integer invoke(final File mirror, final VirtualChannel channel)
+				throws IOException {
+			final Map<String, File> projects = new TreeMap<String, File>();
+			findProjects(mirror, "", projects);
+			final File index =
+					new File(new File(mirror, ".repo"), INDEX_FILE);
+			final File temp = new File(index.getPath() + ".tmp");
+			final Writer writer =
+					new OutputStreamWriter(new FileOutputStream(temp),
+							"UTF-8");
+			try {
+				for (final Map.Entry<String, File> project : projects
+						.entrySet()) {
+					writer.write(project.getKey());
+					for (final String sha : readRefs(project.getValue())) {
+						writer.write(' ');
+						writer.write(sha);
+					}
+					writer.write('\n');
+				}
+			} finally {
+				writer.close();
+			}
+			if (!temp.renameTo(index)) {
+				index.delete();
+				if (!temp.renameTo(index)) {
+					throw new IOException("Unable to write " + index);
+				}
+			}
+			return Integer.valueOf(projects.size());
+		}
+	}
+
+	/**
+	 * Selects the projects of a workspace which the mirror has the wanted
+	 * revision of. A project is only selected if it was already synced in
+	 * the workspace, since repo sync -l can't create it. It runs on the node
+	 * holding the workspace and returns the paths of the projects.
+	 */
+	public static final class Check implements FileCallable<List<String>> {
+		private static final long serialVersionUID = 1L;
+
+		private final String mirror;
+		private final Map<String, String> names;
+		private final Map<String, String> revisions;
+
+		/**
+		 * Creates a new Check.
+		 *
+		 * @param mirror
+		 *            The top of the mirror
+		 * @param names
+		 *            A map from project path to project name
+		 * @param revisions
+		 *            A map from project path to the wanted SHA-1
+		 */
+		public Check(final String mirror, final Map<String, String> names,
+				final Map<String, String> revisions) {
+			this.mirror = mirror;
+			this.names = new HashMap<String, String>(names);
+			this.revisions = new HashMap<String, String>(revisions);
+		}
+
+		/**
+		 * Compares the wanted revisions with the index.
+		 *
+		 * @param workspace
+		 *            The top of the repo checkout
+		 * @param channel
+		 *            Unused
+		 * @return the paths of the projects the mirror has the revision of
+		 */
+		public List<String> invoke(final File workspace,
+				final VirtualChannel channel) throws IOException {
+			final List<String> paths = new ArrayList<String>();
+			final File index =
+					new File(new File(mirror, ".repo"), INDEX_FILE);
+			if (!index.isFile()) {
+				return paths;
+			}
+			final Map<String, Set<String>> shas = read(index);
+			for (final Map.Entry<String, String> project : names.entrySet()) {
+				final String path = project.getKey();
+				final Set<String> projectShas = shas.get(project.getValue());
+				if (projectShas != null
+						&& projectShas.contains(revisions.get(path))
+						&& getGitDir(workspace, path).isDirectory()) {
+					paths.add(path);
+				}
+			}
+			return paths;
+		}
+	}
+
+	/**
+	 * Fetches the wanted revisions of projects from the mirror into the
+	 * workspace, into the remote branches which repo sync -l checks out.
+	 * The objects are usually already shared with the mirror, so this
+	 * mostly updates the refs. The revisions are fetched by SHA-1, which
+	 * the mirror allows for this fetch only, rather than by branch: the
+	 * branches of the mirror may have moved since the index was read.
+	 */
+	public static final class Fetch extends ParallelForall {
+		private static final long serialVersionUID = 1L;
+
+		private final String mirror;
+		private final Map<String, String> names;
+		private final Map<String, String> revisions;
+		private final Map<String, String> branches;
+
+		/**
+		 * Creates a new Fetch.
+		 *
+		 * @param mirror
+		 *            The top of the mirror
+		 * @param names
+		 *            A map from the path of each project to fetch to its
+		 *            name
+		 * @param revisions
+		 *            A map from project path to the wanted SHA-1
+		 * @param branches
+		 *            A map from project path to the branch it tracks, for
+		 *            the projects which track one
+		 * @param threads
+		 *            How many projects to fetch at once
+		 * @param timeout
+		 *            How long, in milliseconds, one fetch may take
+		 */
+		// CS IGNORE ParameterNumber FOR NEXT 4 LINES. REASON: per project.
+		public Fetch(final String mirror, final Map<String, String> names,
+				final Map<String, String> revisions,
+				final Map<String, String> branches, final int threads,
+				final long timeout) {
+			super(new ArrayList<String>(names.keySet()), threads, timeout,
+					"git", "fetch", "--quiet", "--no-tags", "--upload-pack="
+							+ "git -c uploadpack.allowAnySHA1InWant=true "
+							+ "upload-pack");
+			this.mirror = mirror;
+			this.names = new HashMap<String, String>(names);
+			this.revisions = new HashMap<String, String>(revisions);
+			this.branches = new HashMap<String, String>(branches);
+		}
+
+		@Override
+		protected List<String> getCommand(final File workspace,
+				final String path) throws IOException {
+			final List<String> command =
+					new ArrayList<String>(super.getCommand(workspace, path));
+			command.add(new File(mirror, names.get(path) + ".git").getPath());
+			final String branch = branches.get(path);
+			if (branch == null) {
+				// Pinned to a revision, which repo sync -l checks out as
+				// soon as the commit is there.
+				command.add(revisions.get(path));
+				return command;
+			}
+			final String remote = readRemote(getGitDir(workspace, path));
+			if (remote == null) {
+				throw new IOException("No remote in " + path);
+			}
+			command.add("+" + revisions.get(path) + ":refs/remotes/"
+					+ remote + "/" + branch);
+			return command;
+		}
+	}
+
+	/**
+	 * Selects the projects of a workspace whose remote branch points to the
+	 * wanted revision, after a {@link Fetch}. Projects which don't track a
+	 * branch are selected, since their revision was fetched by SHA-1. It
+	 * runs on the node holding the workspace and returns the paths of the
+	 * projects.
+	 */
+	public static final class Verify implements FileCallable<List<String>> {
+		private static final long serialVersionUID = 1L;
+
+		private final List<String> paths;
+		private final Map<String, String> revisions;
+		private final Map<String, String> branches;
+
+		/**
+		 * Creates a new Verify.
+		 *
+		 * @param paths
+		 *            The paths of the projects which were fetched
+		 * @param revisions
+		 *            A map from project path to the wanted SHA-1
+		 * @param branches
+		 *            A map from project path to the branch it tracks, for
+		 *            the projects which track one
+		 */
+		public Verify(final List<String> paths,
+				final Map<String, String> revisions,
+				final Map<String, String> branches) {
+			this.paths = new ArrayList<String>(paths);
+			this.revisions = new HashMap<String, String>(revisions);
+			this.branches = new HashMap<String, String>(branches);
+		}
+
+		/**
+		 * Compares the remote branches with the wanted revisions.
+		 *
+		 * @param workspace
+		 *            The top of the repo checkout
+		 * @param channel
+		 *            Unused
+		 * @return the paths of the projects at the wanted revision
+		 */
+		public List<String> invoke(final File workspace,
+				final VirtualChannel channel) throws IOException {
+			final List<String> verified = new ArrayList<String>();
+			for (final String path : paths) {
+				final String branch = branches.get(path);
+				if (branch != null) {
+					final File gitDir = getGitDir(workspace, path);
+					final String remote = readRemote(gitDir);
+					if (remote == null
+							|| !revisions.get(path).equals(
+									readRef(gitDir, "refs/remotes/"
+											+ remote + "/" + branch))) {
+						continue;
+					}
+				}
+				verified.add(path);
+			}
+			return verified;
+		}
+	}
+
+	/**
+	 * Returns the branch a project tracks, as repo names it under the
+	 * remote, or null if the project is pinned to a SHA-1 or a tag.
+	 *
+	 * @param upstream
+	 *            The upstream of the project in the manifest, or null
+	 */
+	static String getBranch(final String upstream) {
+		if (upstream == null || RemoteManifest.isSha1(upstream)
+				|| upstream.startsWith("refs/tags/")) {
+			return null;
+		}
+		if (upstream.startsWith("refs/heads/")) {
+			return upstream.substring(11);
+		}
+		if (upstream.startsWith("refs/")) {
+			return null;
+		}
+		return upstream;
+	}
+
+	/**
+	 * Returns the git directory repo keeps for a project of a workspace.
+	 */
+	private static File getGitDir(final File workspace, final String path) {
+		return new File(workspace, ".repo" + File.separator + "projects"
+				+ File.separator + path + ".git");
+	}
+
+	/**
+	 * Finds the bare repositories of a mirror, which repo names after the
+	 * projects.
+	 *
+	 * @param dir
+	 *            The directory to search
+	 * @param prefix
+	 *            The name of the directory relative to the mirror, followed
+	 *            by a slash, or the empty string for the mirror itself
+	 * @param projects
+	 *            Receives a map from project name to git directory
+	 */
+	static void findProjects(final File dir, final String prefix,
+			final Map<String, File> projects) {
+		final File[] children = dir.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (final File child : children) {
+			final String name = child.getName();
+			if (!child.isDirectory()
+					|| (prefix.length() == 0 && name.equals(".repo"))) {
+				continue;
+			}
+			if (name.endsWith(".git")
+					&& new File(child, "objects").isDirectory()) {
+				projects.put(prefix + name.substring(0, name.length() - 4),
+						child);
+			} else {
+				findProjects(child, prefix + name + "/", projects);
+			}
+		}
+	}
+
+	/**
+	 * Returns the SHA-1s the refs of a git directory point to, including
+	 * the commits annotated tags point to. Both packed and loose refs are
+	 * read, without running git.
+	 */
+	static Set<String> readRefs(final File gitDir) throws IOException {
+		final Set<String> shas = new HashSet<String>();
+		final File packedRefs = new File(gitDir, "packed-refs");
+		if (packedRefs.isFile()) {
+			for (final String line : readLines(packedRefs)) {
+				// Lines are "<sha> <ref>", or "^<sha>" for a peeled tag.
+				if (line.startsWith("^")) {
+					shas.add(line.substring(1).trim());
+				} else if (line.length() > 0 && !line.startsWith("#")) {
+					final int space = line.indexOf(' ');
+					if (space > 0) {
+						shas.add(line.substring(0, space));
+					}
+				}
+			}
+		}
+		readLooseRefs(new File(gitDir, "refs"), shas);
+		return shas;
+	}
+
+	private static void readLooseRefs(final File dir, final Set<String> shas)
+			throws IOException {
+		final File[] children = dir.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (final File child : children) {
+			if (child.isDirectory()) {
+				readLooseRefs(child, shas);
+			} else {
+				final List<String> lines = readLines(child);
+				if (!lines.isEmpty() && !lines.get(0).startsWith("ref:")) {
+					shas.add(lines.get(0).trim());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the SHA-1 a ref of a git directory points to, reading the
+	 * loose ref first and the packed refs otherwise, or null if there is no
+	 * such ref.
+	 */
+	static String readRef(final File gitDir, final String ref)
+			throws IOException {
+		final File loose = new File(gitDir, ref);
+		if (loose.isFile()) {
+			final List<String> lines = readLines(loose);
+			return lines.isEmpty() ? null : lines.get(0).trim();
+		}
+		final File packedRefs = new File(gitDir, "packed-refs");
+		if (!packedRefs.isFile()) {
+			return null;
+		}
+		for (final String line : readLines(packedRefs)) {
+			if (line.endsWith(" " + ref)) {
+				return line.substring(0, line.indexOf(' '));
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the name of the first remote of a git directory, or null if
+	 * there is none.
+	 */
+	static String readRemote(final File gitDir) throws IOException {
+		final File config = new File(gitDir, "config");
+		if (!config.isFile()) {
+			return null;
+		}
+		for (final String line : readLines(config)) {
+			final String trimmed = line.trim();
+			if (trimmed.startsWith("[remote \"") && trimmed.endsWith("\"]")) {
+				return trimmed.substring(9, trimmed.length() - 2);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Parses an index file into a map from project name to SHA-1s.
+	 */
+	static Map<String, Set<String>> read(final File index)
+			throws IOException {
+		final Map<String, Set<String>> shas =
+				new HashMap<String, Set<String>>();
+		for (final String line : readLines(index)) {
+			final String[] fields = line.split(" ");
+			if (fields.length < 2) {
+				continue;
+			}
+			final Set<String> projectShas = new HashSet<String>();
+			for (int i = 1; i < fields.length; i++) {
+				projectShas.add(fields[i]);
+			}
+			shas.put(fields[0], projectShas);
+		}
+		return shas;
+	}
+
+	private static List<String> readLines(final File file)
+			throws IOException {
+		final List<String> lines = new ArrayList<String>();
+		final BufferedReader reader =
+				new BufferedReader(new InputStreamReader(new FileInputStream(
+						file), "UTF-8"));
+		try {
+			String line = reader.readLine();
+			while (line != null) {
+				lines.add(line);
+				line = reader.readLine();
+			}
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+}
@@ -0,0 +1,254 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The MirrorManager keeps a repo mirror of each manifest branch and file on
+ * each node, for jobs using a managed mirror. A mirror is created with repo
+ * init --mirror the first time a job needs it, and synced again before a
+ * checkout once it is older than the refresh interval, or if it was set up
+ * by a different repo init command. Only one build at a time updates a
+ * mirror: the others wait for it, then find the mirror fresh. Each update
+ * also rebuilds the mirror's {@link MirrorIndex}.
+ */
+public final class MirrorManager {
+
+	private static Logger debug =
+		Logger.getLogger("hudson.plugins.repo.MirrorManager");
+
+	/**
+	 * The directory of the node's root holding the managed mirrors.
+	 */
+	static final String MIRROR_ROOT = "repo-mirrors";
+
+	/**
+	 * The file in the mirror's .repo recording when it was last synced.
+	 */
+	private static final String SYNC_MARKER = "jenkins-mirror-synced";
+
+	/**
+	 * The file in the mirror's .repo recording the repo init command which
+	 * set it up.
+	 */
+	private static final String INIT_MARKER = "jenkins-mirror-init";
+
+	private static final ConcurrentMap<String, Lock> LOCKS =
+			new ConcurrentHashMap<String, Lock>();
+
+	private MirrorManager() {
+	}
+
+	/**
+	 * Returns the directory of the managed mirror of a manifest. Each
+	 * manifest branch and file gets its own mirror, since a mirror only
+	 * holds the projects of the manifest it was initialized with.
+	 *
+	 * @param root
+	 *            The root directory of the node
+	 * @param manifestUrl
+	 *            The URL of the manifest repository
+	 * @param manifestBranch
+	 *            The manifest branch, or null for the default one
+	 * @param manifestFile
+	 *            The manifest file, or null for the default one
+	 */
+	static FilePath getMirrorDir(final FilePath root,
+			final String manifestUrl, final String manifestBranch,
+			final String manifestFile) {
+		return root.child(MIRROR_ROOT).child(getMirrorName(manifestUrl,
+				manifestUrl + "\n" + Util.fixNull(manifestBranch) + "\n"
+						+ Util.fixNull(manifestFile)));
+	}
+
+	/**
+	 * Returns the name of a directory kept for a manifest. It is readable,
+	 * and different for every key.
+	 *
+	 * @param manifestUrl
+	 *            The URL of the manifest repository, naming the directory
+	 * @param key
+	 *            Everything the directory depends on
+	 */
+	static String getMirrorName(final String manifestUrl, final String key) {
+		return ProjectIndex.getProjectName(manifestUrl).replaceAll(
+				"[^A-Za-z0-9._-]", "_")
+				+ "-" + Util.getDigestOf(key).substring(0, 16);
+	}
+
+	/**
+	 * Returns the lock serializing the updates of a mirror.
+	 *
+	 * @param node
+	 *            The name of the node holding the mirror
+	 * @param mirror
+	 *            The directory of the mirror
+	 */
+	static Lock getLock(final String node, final FilePath mirror) {
+		final String key = node + "\n" + mirror.getRemote();
+		Lock lock = LOCKS.get(key);
+		if (lock == null) {
+			final Lock newLock = new ReentrantLock();
+			lock = LOCKS.putIfAbsent(key, newLock);
+			if (lock == null) {
+				lock = newLock;
+			}
+		}
+		return lock;
+	}
+
+	/**
+	 * Creates or updates a mirror, unless it was synced recently.
+	 *
+	 * @param launcher
+	 *            The launcher of the node holding the mirror
+	 * @param node
+	 *            The name of the node holding the mirror
+	 * @param mirror
+	 *            The directory of the mirror
+	 * @param logger
+	 *            A PrintStream for logging the progress
+	 * @param init
+	 *            The repo init command setting up the mirror. It also runs
+	 *            before each update, so that the mirror follows the manifest
+	 *            branch of the job.
+	 * @param sync
+	 *            The repo sync command updating the mirror
+	 * @param maxAge
+	 *            How long, in milliseconds, the mirror is used without being
+	 *            updated
+	 * @return true if the mirror can be used as a reference, even if it
+	 *         couldn't be updated this time
+	 * @throws IOException
+	 *             is thrown if the mirror couldn't be accessed
+	 * @throws InterruptedException
+	 *             is thrown if we are interrupted while waiting for repo or
+	 *             for another update of the mirror
+	 */
+	// CS IGNORE ParameterNumber FOR NEXT 3 LINES. REASON: commands.
+	public static boolean refresh(final Launcher launcher, final String node,
+			final FilePath mirror, final PrintStream logger,
+			final List<String> init, final List<String> sync,
+			final long maxAge) throws IOException, InterruptedException {
+		final Lock lock = getLock(node, mirror);
+		if (!lock.tryLock()) {
+			logger.println("Waiting for another build updating the mirror "
+					+ mirror.getRemote());
+			lock.lockInterruptibly();
+		}
+		try {
+			final FilePath repoDir = mirror.child(".repo");
+			final FilePath marker = repoDir.child(SYNC_MARKER);
+			final boolean initialized =
+					repoDir.child("manifests").isDirectory();
+			final long age = System.currentTimeMillis() - getSyncTime(marker);
+			if (isFresh(mirror, init, maxAge)) {
+				logger.println("Using the mirror " + mirror.getRemote()
+						+ ", updated " + Util.getTimeSpanString(age) + " ago");
+				return true;
+			}
+			mirror.mkdirs();
+			logger.println((initialized ? "Updating" : "Creating")
+					+ " the mirror " + mirror.getRemote());
+			int returnCode =
+					launcher.launch().stdout(logger).pwd(mirror).cmds(init)
+							.join();
+			if (returnCode == 0) {
+				repoDir.child(INIT_MARKER).write(Util.join(init, "\n"),
+						"UTF-8");
+				returnCode =
+						launcher.launch().stdout(logger).pwd(mirror).cmds(
+								sync).join();
+			}
+			if (returnCode == 0) {
+				marker.write(Long.toString(System.currentTimeMillis()),
+						"UTF-8");
+				logger.println("Indexed " + mirror.act(new MirrorIndex.Update())
+						+ " projects of the mirror");
+				return true;
+			}
+			debug.log(Level.WARNING, "Updating the mirror "
+					+ mirror.getRemote() + " failed");
+			if (repoDir.child("manifests").isDirectory()) {
+				logger.println("Updating the mirror failed, using it as is");
+				return true;
+			}
+			logger.println("Creating the mirror failed, not using it");
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns true if a mirror was set up by the same repo init command and
+	 * synced recently, so it can be used without updating it.
+	 *
+	 * @param mirror
+	 *            The directory of the mirror
+	 * @param init
+	 *            The repo init command setting up the mirror
+	 * @param maxAge
+	 *            How long, in milliseconds, the mirror is used without being
+	 *            updated
+	 */
+	static boolean isFresh(final FilePath mirror, final List<String> init,
+			final long maxAge) throws IOException, InterruptedException {
+		final FilePath repoDir = mirror.child(".repo");
+		final FilePath initMarker = repoDir.child(INIT_MARKER);
+		return repoDir.child("manifests").isDirectory()
+				&& initMarker.exists()
+				&& initMarker.readToString().equals(Util.join(init, "\n"))
+				&& System.currentTimeMillis()
+						- getSyncTime(repoDir.child(SYNC_MARKER)) < maxAge;
+	}
+
+	/**
+	 * Returns when a mirror was last synced, or 0 if it never was.
+	 */
+	private static long getSyncTime(final FilePath marker)
+			throws IOException, InterruptedException {
+		if (!marker.exists()) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(marker.readToString().trim());
+		} catch (final NumberFormatException e) {
+			return 0;
+		}
+	}
+}
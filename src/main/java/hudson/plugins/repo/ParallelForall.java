@@ -0,0 +1,298 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ParallelForall runs a command in many projects of a workspace at
+ * once, like repo forall but on a bounded pool of threads. It runs on the
+ * machine holding the workspace. Each project has its own timeout, and the
+ * failures are collected rather than stopping the other projects.
+ */
+public class ParallelForall implements FileCallable<ParallelForall.Result> {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * How many lines of output are kept for a failed project.
+	 */
+	private static final int KEPT_LINES = 5;
+
+	private final List<String> paths;
+	private final List<String> command;
+	private final int threads;
+	private final long timeout;
+
+	/**
+	 * The outcome of a parallel forall.
+	 */
+	public static final class Result implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final Map<String, String> failures =
+				new TreeMap<String, String>();
+		private int projects;
+		private int missing;
+		private long duration;
+
+		/**
+		 * Returns the number of projects the command ran in.
+		 */
+		public int getProjectCount() {
+			return projects;
+		}
+
+		/**
+		 * Returns the number of projects skipped because they aren't in
+		 * the workspace.
+		 */
+		public int getMissingCount() {
+			return missing;
+		}
+
+		/**
+		 * Returns how long the whole run took, in milliseconds.
+		 */
+		public long getDuration() {
+			return duration;
+		}
+
+		/**
+		 * Returns the failed projects, mapped to the reason of the failure:
+		 * the exit code and the end of the output, or a timeout.
+		 */
+		public Map<String, String> getFailures() {
+			return Collections.unmodifiableMap(failures);
+		}
+
+		/**
+		 * Returns true if the command succeeded in every project.
+		 */
+		public boolean isSuccessful() {
+			return failures.isEmpty();
+		}
+	}
+
+	/**
+	 * Creates a new ParallelForall.
+	 *
+	 * @param paths
+	 *            The paths of the projects, relative to the workspace
+	 * @param threads
+	 *            How many projects to run the command in at once. If this is
+	 *            0 or negative, the number of processors is used.
+	 * @param timeout
+	 *            How long, in milliseconds, the command may run in one
+	 *            project. 0 means no limit.
+	 * @param command
+	 *            The command and its arguments
+	 */
+	public ParallelForall(final List<String> paths, final int threads,
+			final long timeout, final String... command) {
+		this.paths = new ArrayList<String>(paths);
+		this.threads = threads;
+		this.timeout = timeout;
+		this.command = Arrays.asList(command);
+	}
+
+	/**
+	 * Returns the command, as it would be written in a shell.
+	 */
+	public String getCommandLine() {
+		final StringBuilder line = new StringBuilder();
+		for (final String arg : command) {
+			if (line.length() > 0) {
+				line.append(' ');
+			}
+			line.append(arg);
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Runs the command in every project.
+	 *
+	 * @param workspace
+	 *            The top of the repo checkout
+	 * @param channel
+	 *            Unused
+	 * @return the aggregated results
+	 * @throws InterruptedException
+	 *             is thrown if we are interrupted while waiting for the
+	 *             projects
+	 */
+	public Result invoke(final File workspace, final VirtualChannel channel)
+			throws IOException, InterruptedException {
+		final long start = System.currentTimeMillis();
+		final Result result = new Result();
+		final int poolSize = threads > 0 ? threads
+				: Runtime.getRuntime().availableProcessors();
+		final ExecutorService pool =
+				Executors.newFixedThreadPool(Math.max(1, poolSize),
+						new DaemonThreadFactory());
+		final ScheduledExecutorService killer =
+				Executors.newSingleThreadScheduledExecutor(
+						new DaemonThreadFactory());
+		final Map<String, Future<String>> futures =
+				new LinkedHashMap<String, Future<String>>();
+		try {
+			for (final String path : paths) {
+				final File dir = new File(workspace, path);
+				if (!dir.isDirectory()) {
+					result.missing++;
+					continue;
+				}
+				futures.put(path, pool.submit(new Callable<String>() {
+					public String call() throws IOException,
+							InterruptedException {
+						return run(dir, getCommand(workspace, path), killer);
+					}
+				}));
+			}
+			for (final Map.Entry<String, Future<String>> entry : futures
+					.entrySet()) {
+				result.projects++;
+				String failure;
+				try {
+					failure = entry.getValue().get();
+				} catch (final ExecutionException e) {
+					failure = String.valueOf(e.getCause());
+				}
+				if (failure != null) {
+					result.failures.put(entry.getKey(), failure);
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+			killer.shutdownNow();
+		}
+		result.duration = System.currentTimeMillis() - start;
+		return result;
+	}
+
+	/**
+	 * Returns the command to run in one project. By default, this is the
+	 * same command for every project.
+	 *
+	 * @param workspace
+	 *            The top of the repo checkout
+	 * @param path
+	 *            The path of the project, relative to the workspace
+	 * @throws IOException
+	 *             is thrown if the command can't be built, which fails the
+	 *             project
+	 */
+	protected List<String> getCommand(final File workspace, final String path)
+			throws IOException {
+		return command;
+	}
+
+	/**
+	 * Runs a command in one project.
+	 *
+	 * @return null on success, otherwise the reason of the failure
+	 */
+	private String run(final File dir, final List<String> args,
+			final ScheduledExecutorService killer) throws IOException,
+			InterruptedException {
+		final Process process =
+				new ProcessBuilder(args).directory(dir)
+						.redirectErrorStream(true).start();
+		final boolean[] timedOut = new boolean[1];
+		ScheduledFuture<?> kill = null;
+		if (timeout > 0) {
+			kill = killer.schedule(new Runnable() {
+				public void run() {
+					synchronized (timedOut) {
+						timedOut[0] = true;
+					}
+					process.destroy();
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+		}
+		final List<String> lastLines = new ArrayList<String>();
+		try {
+			process.getOutputStream().close();
+			final BufferedReader reader =
+					new BufferedReader(new InputStreamReader(process
+							.getInputStream()));
+			try {
+				String line = reader.readLine();
+				while (line != null) {
+					lastLines.add(line);
+					if (lastLines.size() > KEPT_LINES) {
+						lastLines.remove(0);
+					}
+					line = reader.readLine();
+				}
+			} finally {
+				reader.close();
+			}
+			final int returnCode = process.waitFor();
+			synchronized (timedOut) {
+				if (timedOut[0]) {
+					return "timed out";
+				}
+			}
+			if (returnCode == 0) {
+				return null;
+			}
+			final StringBuilder failure =
+					new StringBuilder("exit code " + returnCode);
+			for (final String line : lastLines) {
+				failure.append('\n').append(line);
+			}
+			return failure.toString();
+		} finally {
+			if (kill != null) {
+				kill.cancel(false);
+			}
+			process.destroy();
+		}
+	}
+}
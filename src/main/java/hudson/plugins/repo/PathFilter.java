@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The PathFilter decides which project paths are interesting when polling.
+ * Like the git plugin's included and excluded regions, it takes one regular
+ * expression per line: a path is interesting if it matches an include
+ * pattern, or there are none, and it matches no exclude pattern.
+ */
+public final class PathFilter {
+
+	private static Logger debug =
+		Logger.getLogger("hudson.plugins.repo.PathFilter");
+
+	private final List<Pattern> includes;
+	private final List<Pattern> excludes;
+
+	/**
+	 * Creates a new PathFilter. Invalid patterns are logged and ignored.
+	 *
+	 * @param includes
+	 *            The include patterns, one per line. May be null.
+	 * @param excludes
+	 *            The exclude patterns, one per line. May be null.
+	 */
+	public PathFilter(final String includes, final String excludes) {
+		this.includes = compile(includes);
+		this.excludes = compile(excludes);
+	}
+
+	/**
+	 * Returns true if changes to the project at the specified path should
+	 * trigger a build.
+	 *
+	 * @param path
+	 *            The path of the project in the workspace
+	 */
+	public boolean isIncluded(final String path) {
+		if (!includes.isEmpty() && !matches(includes, path)) {
+			return false;
+		}
+		return !matches(excludes, path);
+	}
+
+	/**
+	 * Returns true if every path is included.
+	 */
+	public boolean isEmpty() {
+		return includes.isEmpty() && excludes.isEmpty();
+	}
+
+	private static boolean matches(final List<Pattern> patterns,
+			final String path) {
+		for (final Pattern pattern : patterns) {
+			if (pattern.matcher(path).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static List<Pattern> compile(final String patterns) {
+		final List<Pattern> result = new ArrayList<Pattern>();
+		if (patterns == null) {
+			return result;
+		}
+		for (final String line : patterns.split("\n")) {
+			final String trimmed = line.trim();
+			if (trimmed.length() == 0) {
+				continue;
+			}
+			try {
+				result.add(Pattern.compile(trimmed));
+			} catch (final PatternSyntaxException e) {
+				debug.log(Level.WARNING, "Ignoring invalid pattern: "
+						+ trimmed, e);
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.model.TaskListener;
+import hudson.util.ForkOutputStream;
+import hudson.util.IOException2;
+import hudson.util.StreamTaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The PollingCoalescer shares remote polling results between jobs using the
+ * same manifest. The first job to poll does the remote work, jobs polling
+ * while it is in progress wait for the same result, and jobs polling soon
+ * after reuse it until it is older than the polling interval. Jobs sharing
+ * a result also get the log of the poll which computed it.
+ */
+public final class PollingCoalescer {
+
+	private static Logger debug =
+		Logger.getLogger("hudson.plugins.repo.PollingCoalescer");
+
+	private static final ConcurrentMap<String, Poll> POLLS =
+			new ConcurrentHashMap<String, Poll>();
+
+	/**
+	 * Computes the remote state for a poll.
+	 */
+	public interface Resolver {
+		/**
+		 * Computes the remote state.
+		 *
+		 * @param listener
+		 *            Receives the log of the poll, which is also shown to
+		 *            the jobs sharing it
+		 * @return the remote state, or null if it couldn't be determined
+		 * @throws IOException
+		 *             is thrown if the remote state can't be computed
+		 * @throws InterruptedException
+		 *             is thrown if the poll is interrupted
+		 */
+		RevisionState resolve(TaskListener listener) throws IOException,
+				InterruptedException;
+	}
+
+	/**
+	 * A single resolution of the remote state, possibly still in progress.
+	 */
+	private static final class Poll {
+		private final FutureTask<RevisionState> future;
+		private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+		private long finished;
+
+		private Poll(final Resolver resolver, final TaskListener listener) {
+			future = new FutureTask<RevisionState>(
+					new Callable<RevisionState>() {
+						public RevisionState call() throws IOException,
+								InterruptedException {
+							return resolver.resolve(new StreamTaskListener(
+									new ForkOutputStream(listener
+											.getLogger(), log)));
+						}
+					});
+		}
+
+		private synchronized boolean isUsable(final long maxAge) {
+			if (!future.isDone()) {
+				return true;
+			}
+			if (System.currentTimeMillis() - finished > maxAge) {
+				return false;
+			}
+			try {
+				// Failures aren't shared, the next poll tries again.
+				return future.get() != null;
+			} catch (final Exception e) {
+				return false;
+			}
+		}
+
+		private void run() {
+			future.run();
+			synchronized (this) {
+				finished = System.currentTimeMillis();
+			}
+		}
+
+		private String getLog() {
+			try {
+				return log.toString("UTF-8");
+			} catch (final UnsupportedEncodingException e) {
+				return log.toString();
+			}
+		}
+	}
+
+	private PollingCoalescer() {
+	}
+
+	/**
+	 * Returns the current remote state for a manifest, computing it only if
+	 * no other job did so recently.
+	 *
+	 * @param key
+	 *            Identifies the manifest. Jobs with the same key must get the
+	 *            same result from their resolver.
+	 * @param maxAge
+	 *            How long, in milliseconds, a result can be shared
+	 * @param listener
+	 *            Receives the log of the poll, whichever job ran it
+	 * @param resolver
+	 *            Computes the remote state if needed. A null result means
+	 *            failure and is not shared.
+	 * @return the remote state, or null if it couldn't be determined
+	 * @throws IOException
+	 *             is thrown if the resolver failed
+	 * @throws InterruptedException
+	 *             is thrown if we are interrupted while waiting for the
+	 *             result
+	 */
+	public static RevisionState resolve(final String key, final long maxAge,
+			final TaskListener listener, final Resolver resolver)
+			throws IOException, InterruptedException {
+		prune(maxAge);
+		while (true) {
+			Poll poll = POLLS.get(key);
+			boolean mine = false;
+			if (poll == null || !poll.isUsable(maxAge)) {
+				final Poll newPoll = new Poll(resolver, listener);
+				if (poll == null) {
+					mine = POLLS.putIfAbsent(key, newPoll) == null;
+				} else {
+					mine = POLLS.replace(key, poll, newPoll);
+				}
+				if (!mine) {
+					// Another job started a poll first.
+					continue;
+				}
+				poll = newPoll;
+				poll.run();
+			} else {
+				debug.log(Level.FINE, "Sharing poll result for " + key);
+			}
+			final RevisionState result;
+			try {
+				result = poll.future.get();
+			} catch (final ExecutionException e) {
+				final Throwable cause = e.getCause();
+				if (!mine && cause instanceof InterruptedException) {
+					// The job which ran the poll was aborted, which says
+					// nothing about this one: poll again.
+					listener.getLogger().println("The shared poll was "
+							+ "interrupted, polling again");
+					continue;
+				}
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				if (cause instanceof InterruptedException) {
+					throw (InterruptedException) cause;
+				}
+				throw new IOException2("Polling failed", cause);
+			}
+			if (!mine) {
+				listener.getLogger().println("Sharing the result of a poll "
+						+ "by another job:");
+				listener.getLogger().print(poll.getLog());
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Forgets the results which can't be shared anymore, so that the keys
+	 * of renamed or deleted jobs don't stay around.
+	 */
+	private static void prune(final long maxAge) {
+		for (final Map.Entry<String, Poll> entry : POLLS.entrySet()) {
+			if (!entry.getValue().isUsable(maxAge)) {
+				POLLS.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of results kept, for tests.
+	 */
+	static int size() {
+		return POLLS.size();
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The ProjectFilter selects the subset of the manifest a job syncs, the
+ * same way repo does: by manifest groups, as given to repo init -g, and by
+ * an optional list of project names or paths, as given to repo sync.
+ */
+public final class ProjectFilter {
+
+	private final List<String> groups;
+	private final Set<String> projects;
+
+	/**
+	 * Creates a new ProjectFilter.
+	 *
+	 * @param groups
+	 *            The manifest groups, separated by commas or whitespace. A
+	 *            group prefixed with - excludes the projects in it. If null,
+	 *            repo's "default" group is used.
+	 * @param projects
+	 *            The names or paths of the projects to sync, separated by
+	 *            whitespace. If null, every project in the groups is synced.
+	 */
+	public ProjectFilter(final String groups, final String projects) {
+		this.groups = split(groups);
+		if (this.groups.isEmpty()) {
+			this.groups.add("default");
+		}
+		this.projects = new HashSet<String>(split(projects));
+	}
+
+	/**
+	 * Returns true if the filter selects the whole default manifest.
+	 */
+	public boolean isEmpty() {
+		return projects.isEmpty() && groups.equals(Arrays.asList("default"));
+	}
+
+	/**
+	 * Returns true if a project is synced.
+	 *
+	 * @param name
+	 *            The name of the project on the server
+	 * @param path
+	 *            The path of the project in the workspace
+	 * @param projectGroups
+	 *            The groups attribute of the project in the manifest, or
+	 *            null if it has none
+	 */
+	public boolean isIncluded(final String name, final String path,
+			final String projectGroups) {
+		if (!projects.isEmpty() && !projects.contains(name)
+				&& !projects.contains(path)) {
+			return false;
+		}
+		// Every project is implicitly in these groups, see repo's
+		// Project.MatchesGroups.
+		final List<String> expanded = split(projectGroups);
+		expanded.add("all");
+		expanded.add("name:" + name);
+		expanded.add("path:" + path);
+		if (!expanded.contains("notdefault")) {
+			expanded.add("default");
+		}
+		boolean matched = false;
+		for (final String group : groups) {
+			if (group.startsWith("-")) {
+				if (expanded.contains(group.substring(1))) {
+					matched = false;
+				}
+			} else if (expanded.contains(group)) {
+				matched = true;
+			}
+		}
+		return matched;
+	}
+
+	/**
+	 * Returns the projects of a manifest which are synced.
+	 *
+	 * @param all
+	 *            Every project of the manifest
+	 */
+	public List<RemoteManifest.Project> filter(
+			final List<RemoteManifest.Project> all) {
+		final List<RemoteManifest.Project> result =
+				new ArrayList<RemoteManifest.Project>();
+		for (final RemoteManifest.Project project : all) {
+			if (isIncluded(project.getName(), project.getPath(), project
+					.getGroups())) {
+				result.add(project);
+			}
+		}
+		return result;
+	}
+
+	private static List<String> split(final String value) {
+		final List<String> result = new ArrayList<String>();
+		if (value == null) {
+			return result;
+		}
+		for (final String item : value.split("[,\\s]+")) {
+			if (item.length() > 0) {
+				result.add(item);
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,438 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.listeners.ItemListener;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * The ProjectIndex maps a server project and branch to the jobs whose last
+ * build used them. It answers "which jobs care about this ref?" with a
+ * single hash lookup, without looking at any job's manifest. Projects are
+ * keyed by the host serving them too, so that projects with the same name
+ * on different servers don't trigger each other's jobs.
+ *
+ * The index is kept up to date incrementally: each time a build records a
+ * new {@link RevisionState}, only that job's entries are replaced. Keys and
+ * job names are interned, so a project shared by hundreds of jobs is stored
+ * once, and no manifest text is kept.
+ */
+public final class ProjectIndex {
+
+	private static Logger debug =
+		Logger.getLogger("hudson.plugins.repo.ProjectIndex");
+
+	private static final ProjectIndex INSTANCE = new ProjectIndex();
+
+	private final ConcurrentMap<String, Set<String>> jobsByKey =
+			new ConcurrentHashMap<String, Set<String>>();
+	private final ConcurrentMap<String, String[]> keysByJob =
+			new ConcurrentHashMap<String, String[]>();
+
+	/**
+	 * Creates an empty index. Jenkins uses the shared instance returned by
+	 * {@link #get()}.
+	 */
+	ProjectIndex() {
+	}
+
+	/**
+	 * Returns the index shared by the whole server.
+	 */
+	public static ProjectIndex get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Rebuilds the whole index from the last recorded state of every job
+	 * using repo. This is only needed at startup.
+	 */
+	public void rebuild() {
+		for (final AbstractProject<?, ?> job : Hudson.getInstance()
+				.getAllItems(AbstractProject.class)) {
+			if (job.getScm() instanceof RepoScm) {
+				final RepoScm scm = (RepoScm) job.getScm();
+				update(job.getFullName(), scm, scm.getLastState(job
+						.getLastBuild()));
+			}
+		}
+	}
+
+	/**
+	 * Replaces the entries of a job.
+	 *
+	 * @param job
+	 *            The full name of the job
+	 * @param scm
+	 *            The job's RepoScm, used to index the manifest project
+	 * @param state
+	 *            The state recorded by the job's last build, or null if
+	 *            there is none
+	 */
+	public synchronized void update(final String job, final RepoScm scm,
+			final RevisionState state) {
+		final String name = job.intern();
+		final Set<String> keys = new HashSet<String>();
+		addKeys(keys, scm, state);
+		final String[] oldKeys = keysByJob.get(name);
+		if (oldKeys != null) {
+			for (final String key : oldKeys) {
+				if (!keys.contains(key)) {
+					removeJob(key, name);
+				}
+			}
+		}
+		for (final String key : keys) {
+			Set<String> jobs = jobsByKey.get(key);
+			if (jobs == null) {
+				jobs = Collections.synchronizedSet(new HashSet<String>());
+				jobsByKey.put(key, jobs);
+			}
+			jobs.add(name);
+		}
+		keysByJob.put(name, keys.toArray(new String[keys.size()]));
+	}
+
+	/**
+	 * Adds the keys of a job's projects and manifest project.
+	 *
+	 * @param keys
+	 *            The keys to add to
+	 * @param scm
+	 *            The job's RepoScm, used to index the manifest project
+	 * @param state
+	 *            The state recorded by the job's last build, or null if
+	 *            there is none
+	 * @return true if every project which can move was added, false if some
+	 *         project can't be matched to a ref
+	 */
+	private static boolean addKeys(final Set<String> keys, final RepoScm scm,
+			final RevisionState state) {
+		final String manifestUrl = scm.getManifestRepositoryUrl();
+		boolean complete = true;
+		if (state != null) {
+			final Map<String, String> hosts =
+					getHosts(state.getManifest(), manifestUrl);
+			for (final ProjectState project : state.getProjects()) {
+				final String upstream = project.getUpstream();
+				if (upstream == null) {
+					// Pinned to a SHA-1, or made by a repo which doesn't
+					// write upstreams: either way its branch is unknown.
+					complete = false;
+					continue;
+				}
+				// Projects pinned to a SHA-1 or a tag never move.
+				if (project.isImmutable() || RemoteManifest.isSha1(upstream)) {
+					continue;
+				}
+				String host = hosts.get(project.getPath());
+				if (host == null) {
+					host = getHostName(manifestUrl);
+				}
+				keys.add(key(host, project.getServerPath(), toRef(upstream)));
+			}
+		}
+		keys.add(key(getHostName(manifestUrl), getProjectName(manifestUrl),
+				toRef(scm.getManifestBranch() == null ? "master" : scm
+						.getManifestBranch())));
+		return complete;
+	}
+
+	/**
+	 * Returns true if an update of any project of a state would be matched
+	 * to a job, so that the event stream notices every change of the job.
+	 * This is false if the job was indexed with another state, for example
+	 * one recorded before the index was last rebuilt, or if some project
+	 * of the state has no known branch.
+	 *
+	 * @param job
+	 *            The full name of the job
+	 * @param scm
+	 *            The job's RepoScm
+	 * @param state
+	 *            The state recorded by the job's last build
+	 */
+	public boolean isIndexed(final String job, final RepoScm scm,
+			final RevisionState state) {
+		final Set<String> keys = new HashSet<String>();
+		if (state == null || !addKeys(keys, scm, state)) {
+			return false;
+		}
+		final String[] indexed = keysByJob.get(job);
+		return indexed != null
+				&& Arrays.asList(indexed).containsAll(keys);
+	}
+
+	/**
+	 * Removes every entry of a job.
+	 *
+	 * @param job
+	 *            The full name of the job
+	 */
+	public synchronized void remove(final String job) {
+		final String[] keys = keysByJob.remove(job);
+		if (keys != null) {
+			for (final String key : keys) {
+				removeJob(key, job);
+			}
+		}
+	}
+
+	private void removeJob(final String key, final String job) {
+		final Set<String> jobs = jobsByKey.get(key);
+		if (jobs != null) {
+			jobs.remove(job);
+			if (jobs.isEmpty()) {
+				jobsByKey.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Returns the full names of the jobs interested in a ref of a server
+	 * project.
+	 *
+	 * @param host
+	 *            The host name of the server, without a port
+	 * @param project
+	 *            The name of the project on the server
+	 * @param ref
+	 *            The ref that was updated, either a full ref name or a branch
+	 *            name
+	 */
+	public Set<String> getJobs(final String host, final String project,
+			final String ref) {
+		final Set<String> jobs = new HashSet<String>();
+		addAll(jobs, jobsByKey.get(key(getHostName(host), project,
+				toRef(ref))));
+		return jobs;
+	}
+
+	private static void addAll(final Set<String> to, final Set<String> from) {
+		if (from != null) {
+			synchronized (from) {
+				to.addAll(from);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of distinct project and branch pairs indexed.
+	 */
+	public int size() {
+		return jobsByKey.size();
+	}
+
+	private static String key(final String host, final String project,
+			final String ref) {
+		return (host + "\n" + project + "\n" + ref).intern();
+	}
+
+	/**
+	 * Returns the full ref name for a branch or ref name.
+	 */
+	static String toRef(final String revision) {
+		if (revision.startsWith("refs/")) {
+			return revision;
+		}
+		return "refs/heads/" + revision;
+	}
+
+	/**
+	 * Returns the host name of a git URL or of a host, in lower case and
+	 * without the user name or the port, such as review.example.com for
+	 * ssh://jenkins@review.example.com:29418/platform/manifest.
+	 *
+	 * @param url
+	 *            A git repository URL, or a host name
+	 */
+	static String getHostName(final String url) {
+		String host = RefResolver.getHost(url);
+		if (host.length() == 0 && url.indexOf('/') < 0) {
+			// A bare host name, possibly with a user name and port.
+			host = url.substring(url.indexOf('@') + 1);
+		}
+		final int port = host.lastIndexOf(':');
+		if (port >= 0) {
+			host = host.substring(0, port);
+		}
+		return host.toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Returns the host name serving each project of a static manifest,
+	 * keyed by path. Remotes whose fetch URL is relative are served by the
+	 * host of the manifest repository.
+	 *
+	 * @param manifest
+	 *            The static manifest XML
+	 * @param manifestUrl
+	 *            The manifest repository URL
+	 * @return the host names, which are missing for projects whose remote
+	 *         isn't in the manifest
+	 */
+	static Map<String, String> getHosts(final String manifest,
+			final String manifestUrl) {
+		final Map<String, String> hosts = new HashMap<String, String>();
+		final Document doc;
+		try {
+			doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+					.parse(new InputSource(new StringReader(manifest)));
+		} catch (final Exception e) {
+			debug.log(Level.WARNING, "Unable to read the manifest", e);
+			return hosts;
+		}
+		final Map<String, String> remoteHosts = new HashMap<String, String>();
+		final NodeList remotes = doc.getElementsByTagName("remote");
+		for (int i = 0; i < remotes.getLength(); i++) {
+			final Element remote = (Element) remotes.item(i);
+			final String fetch = Util.fixEmptyAndTrim(remote
+					.getAttribute("fetch"));
+			if (fetch != null) {
+				remoteHosts.put(remote.getAttribute("name"),
+						getHostName(RemoteManifest.resolveUrl(manifestUrl,
+								fetch)));
+			}
+		}
+		String defaultRemote = null;
+		final NodeList defaults = doc.getElementsByTagName("default");
+		if (defaults.getLength() > 0) {
+			defaultRemote = Util.fixEmptyAndTrim(((Element) defaults.item(0))
+					.getAttribute("remote"));
+		}
+		final NodeList projects = doc.getElementsByTagName("project");
+		for (int i = 0; i < projects.getLength(); i++) {
+			final Element project = (Element) projects.item(i);
+			String path = Util.fixEmptyAndTrim(project.getAttribute("path"));
+			if (path == null) {
+				path = project.getAttribute("name");
+			}
+			String remote = Util.fixEmptyAndTrim(project
+					.getAttribute("remote"));
+			if (remote == null) {
+				remote = defaultRemote;
+			}
+			final String host = remoteHosts.get(remote);
+			if (host != null) {
+				hosts.put(path, host);
+			}
+		}
+		return hosts;
+	}
+
+	/**
+	 * Returns the server project name for a git URL, such as
+	 * platform/manifest for ssh://review.example.com:29418/platform/manifest.
+	 *
+	 * @param url
+	 *            A git repository URL
+	 */
+	static String getProjectName(final String url) {
+		String name = url;
+		final int scheme = name.indexOf("://");
+		if (scheme >= 0) {
+			name = name.substring(scheme + 3);
+			name = name.substring(name.indexOf('/') + 1);
+		} else if (name.indexOf(':') >= 0) {
+			name = name.substring(name.indexOf(':') + 1);
+		}
+		while (name.startsWith("/")) {
+			name = name.substring(1);
+		}
+		while (name.endsWith("/")) {
+			name = name.substring(0, name.length() - 1);
+		}
+		if (name.endsWith(".git")) {
+			name = name.substring(0, name.length() - 4);
+		}
+		return name;
+	}
+
+	/**
+	 * Keeps the index in sync with the jobs: it is filled when Jenkins
+	 * starts, and entries are dropped or moved when jobs are deleted or
+	 * renamed.
+	 */
+	@Extension
+	public static class Listener extends ItemListener {
+		@Override
+		public void onLoaded() {
+			get().rebuild();
+		}
+
+		@Override
+		public void onDeleted(final Item item) {
+			get().remove(item.getFullName());
+		}
+
+		@Override
+		public void onRenamed(final Item item, final String oldName,
+				final String newName) {
+			final String parent = item.getParent().getFullName();
+			get().remove(parent.length() == 0 ? oldName : parent + "/"
+					+ oldName);
+			if (item instanceof AbstractProject<?, ?>
+					&& ((AbstractProject<?, ?>) item).getScm()
+						instanceof RepoScm) {
+				final AbstractProject<?, ?> job = (AbstractProject<?, ?>) item;
+				final RepoScm scm = (RepoScm) job.getScm();
+				get().update(job.getFullName(), scm, scm.getLastState(job
+						.getLastBuild()));
+			}
+		}
+	}
+
+	/**
+	 * Returns the keys of a job, for tests.
+	 */
+	Set<String> getKeys(final String job) {
+		final String[] keys = keysByJob.get(job);
+		return keys == null ? Collections.<String>emptySet()
+				: new HashSet<String>(Arrays.asList(keys));
+	}
+}
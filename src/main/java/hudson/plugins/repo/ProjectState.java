@@ -36,6 +36,7 @@ public class ProjectState {
 	private final String path;
 	private final String serverPath;
 	private final String revision;
+	private final String upstream;
 
 	private static Logger debug =
 		Logger.getLogger("hudson.plugins.repo.ProjectState");
@@ -52,12 +53,33 @@ public class ProjectState {
 	 */
 	public ProjectState(final String path, final String serverPath,
 			final String revision) {
+		this(path, serverPath, revision, null);
+	}
+
+	/**
+	 * Create an object representing the state of a project, remembering
+	 * the revision the manifest asked for.
+	 *
+	 * @param path
+	 *            The client-side path of the project
+	 * @param serverPath
+	 *            The server-side path of the project
+	 * @param revision
+	 *            The SHA-1 revision of the project
+	 * @param upstream
+	 *            The revision written in the manifest (a branch or tag), or
+	 *            null if the manifest pins the project to a SHA-1 or if it
+	 *            is unknown
+	 */
+	public ProjectState(final String path, final String serverPath,
+			final String revision, final String upstream) {
 		this.path = path;
 		this.serverPath = serverPath;
 		this.revision = revision;
+		this.upstream = upstream;
 
 		debug.log(Level.FINE, "path: " + path + " serverPath: " + serverPath
-				+ " revision: " + revision);
+				+ " revision: " + revision + " upstream: " + upstream);
 	}
 
 	/**
@@ -81,6 +103,28 @@ public class ProjectState {
 		return revision;
 	}
 
+	/**
+	 * Gets the revision written in the manifest, such as a branch or tag
+	 * name. This is null if the project is pinned to a SHA-1, or if the
+	 * version of repo which created the static manifest didn't record it.
+	 */
+	public String getUpstream() {
+		return upstream;
+	}
+
+	/**
+	 * Returns true if the revision written in the manifest can never move,
+	 * that is if it is a tag. Projects pinned to a SHA-1, and projects
+	 * whose upstream is unknown, return false because we can't tell them
+	 * apart.
+	 */
+	public boolean isImmutable() {
+		return upstream != null && upstream.startsWith("refs/tags/");
+	}
+
+	// The upstream is deliberately left out of equals() and hashCode(): a
+	// project is in the same state if it is at the same revision, however
+	// the manifest names it.
 	@Override
 	public boolean equals(final Object obj) {
 		if (this == obj) {
@@ -0,0 +1,252 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The RefCache remembers the heads of refs on remote servers for a short
+ * time, so that jobs polling different manifests which share projects don't
+ * all ask the servers for the same refs. Servers which fail to answer are
+ * remembered too, and skipped for a delay which doubles with each
+ * consecutive failure.
+ */
+public class RefCache {
+
+	/**
+	 * The longest a failing server is skipped, as a multiple of the base
+	 * backoff.
+	 */
+	private static final int MAX_BACKOFF_FACTOR = 32;
+
+	private static final RefCache INSTANCE = new RefCache();
+
+	private final ConcurrentMap<String, Head> heads =
+			new ConcurrentHashMap<String, Head>();
+	private final ConcurrentMap<String, Failure> failures =
+			new ConcurrentHashMap<String, Failure>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong skips = new AtomicLong();
+	private volatile long ttl;
+	private volatile long backoff;
+	private volatile long lastPurge;
+
+	/**
+	 * A cached head. The SHA-1 is null if the server doesn't have the ref.
+	 */
+	private static final class Head {
+		private final String sha;
+		private final long time;
+
+		private Head(final String sha, final long time) {
+			this.sha = sha;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * The consecutive failures of a server.
+	 */
+	private static final class Failure {
+		private final int count;
+		private final long until;
+
+		private Failure(final int count, final long until) {
+			this.count = count;
+			this.until = until;
+		}
+	}
+
+	/**
+	 * Creates an empty cache which caches nothing until it is configured.
+	 * Jenkins uses the shared instance returned by {@link #get()}.
+	 */
+	RefCache() {
+	}
+
+	/**
+	 * Returns the cache shared by the whole server.
+	 */
+	public static RefCache get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Sets how long heads and failures are remembered.
+	 *
+	 * @param ttl
+	 *            How long, in milliseconds, a head is reused. 0 disables
+	 *            caching of heads.
+	 * @param backoff
+	 *            How long, in milliseconds, a server is skipped after its
+	 *            first failure. 0 disables negative caching.
+	 */
+	public void configure(final long ttl, final long backoff) {
+		this.ttl = ttl;
+		this.backoff = backoff;
+		if (ttl <= 0) {
+			heads.clear();
+		}
+		if (backoff <= 0) {
+			failures.clear();
+		}
+	}
+
+	/**
+	 * Returns the cached heads of refs on a server, or null unless every one
+	 * of them is cached and fresh. Refs the server doesn't have are mapped
+	 * to null.
+	 *
+	 * @param url
+	 *            The URL of the git repository
+	 * @param refs
+	 *            The full names of the refs
+	 */
+	public Map<String, String> getHeads(final String url,
+			final Set<String> refs) {
+		final long now = now();
+		final Map<String, String> result = new HashMap<String, String>();
+		for (final String ref : refs) {
+			final Head head = heads.get(key(url, ref));
+			if (head == null || now - head.time >= ttl) {
+				misses.incrementAndGet();
+				return null;
+			}
+			result.put(ref, head.sha);
+		}
+		hits.incrementAndGet();
+		return result;
+	}
+
+	/**
+	 * Records the heads of refs on a server, and forgets its failures.
+	 *
+	 * @param url
+	 *            The URL of the git repository
+	 * @param refs
+	 *            The full names of the refs which were asked for
+	 * @param found
+	 *            The heads returned by the server
+	 */
+	public void putHeads(final String url, final Set<String> refs,
+			final Map<String, String> found) {
+		failures.remove(url);
+		if (ttl <= 0) {
+			return;
+		}
+		final long now = now();
+		for (final String ref : refs) {
+			heads.put(key(url, ref), new Head(found.get(ref), now));
+		}
+		if (now - lastPurge > ttl) {
+			lastPurge = now;
+			final Iterator<Head> i = heads.values().iterator();
+			while (i.hasNext()) {
+				if (now - i.next().time >= ttl) {
+					i.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns true if a server failed recently and shouldn't be asked
+	 * again yet.
+	 *
+	 * @param url
+	 *            The URL of the git repository
+	 */
+	public boolean isBackingOff(final String url) {
+		final Failure failure = failures.get(url);
+		if (failure != null && now() < failure.until) {
+			skips.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Records a failure of a server.
+	 *
+	 * @param url
+	 *            The URL of the git repository
+	 */
+	public synchronized void putFailure(final String url) {
+		if (backoff <= 0) {
+			return;
+		}
+		final Failure previous = failures.get(url);
+		final int count = previous == null ? 1 : previous.count + 1;
+		final long factor =
+				Math.min(1L << Math.min(count - 1, 30), MAX_BACKOFF_FACTOR);
+		failures.put(url, new Failure(count, now() + backoff * factor));
+	}
+
+	/**
+	 * Returns the number of lookups answered from the cache.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of lookups which had to ask the server.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of times a failing server was skipped.
+	 */
+	public long getSkips() {
+		return skips.get();
+	}
+
+	/**
+	 * Returns the percentage of lookups answered from the cache.
+	 */
+	public int getHitRate() {
+		final long total = hits.get() + misses.get();
+		return total == 0 ? 0 : (int) (hits.get() * 100 / total);
+	}
+
+	/**
+	 * Returns the current time in milliseconds. Tests override this.
+	 */
+	long now() {
+		return System.currentTimeMillis();
+	}
+
+	private static String key(final String url, final String ref) {
+		return url + "\n" + ref;
+	}
+}
@@ -0,0 +1,328 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.Launcher;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The RefResolver asks servers for the heads of refs using git ls-remote.
+ * Queries are grouped by host, and each host gets its own bounded pool of
+ * workers so that a slow server doesn't hold up the others and a fast one
+ * isn't flooded. Every host also has a deadline; queries still running when
+ * it passes are abandoned and reported as failed rather than failing the
+ * whole resolution. Heads and failures may be shared with other
+ * resolutions through a {@link RefCache}.
+ */
+public class RefResolver {
+
+	private static Logger debug =
+		Logger.getLogger("hudson.plugins.repo.RefResolver");
+
+	private final Launcher launcher;
+	private final PrintStream logger;
+	private final int defaultThreads;
+	private final Map<String, Integer> hostThreads;
+	private final long timeout;
+	private final RefCache cache;
+
+	/**
+	 * The outcome of a resolution.
+	 */
+	public static final class Result {
+		private final Map<String, Map<String, String>> heads =
+				new HashMap<String, Map<String, String>>();
+		private final Set<String> failedUrls = new HashSet<String>();
+
+		/**
+		 * Returns the SHA-1 of a ref on a server, or null if the server
+		 * doesn't have the ref or couldn't be queried.
+		 *
+		 * @param url
+		 *            The URL of the git repository
+		 * @param ref
+		 *            The full name of the ref
+		 */
+		public String getHead(final String url, final String ref) {
+			final Map<String, String> urlHeads = heads.get(url);
+			return urlHeads == null ? null : urlHeads.get(ref);
+		}
+
+		/**
+		 * Returns true if the specified URL couldn't be queried.
+		 *
+		 * @param url
+		 *            The URL of the git repository
+		 */
+		public boolean isFailed(final String url) {
+			return failedUrls.contains(url);
+		}
+
+		/**
+		 * Returns the number of URLs which couldn't be queried.
+		 */
+		public int getFailureCount() {
+			return failedUrls.size();
+		}
+	}
+
+	/**
+	 * Creates a new RefResolver.
+	 *
+	 * @param launcher
+	 *            The launcher used to run git
+	 * @param logger
+	 *            A PrintStream for logging errors
+	 * @param defaultThreads
+	 *            The number of concurrent queries per host
+	 * @param hostThreads
+	 *            Overrides the number of concurrent queries for some hosts.
+	 *            May be empty.
+	 * @param timeout
+	 *            How long, in milliseconds, all the queries to one host may
+	 *            take. 0 means no limit.
+	 * @param cache
+	 *            Remembers heads and failures between resolutions. May be
+	 *            null.
+	 */
+	public RefResolver(final Launcher launcher, final PrintStream logger,
+			final int defaultThreads, final Map<String, Integer> hostThreads,
+			final long timeout, final RefCache cache) {
+		this.launcher = launcher;
+		this.logger = logger;
+		this.defaultThreads = Math.max(1, defaultThreads);
+		this.hostThreads = hostThreads;
+		this.timeout = timeout;
+		this.cache = cache;
+	}
+
+	/**
+	 * Resolves refs on a set of servers.
+	 *
+	 * @param refsByUrl
+	 *            The refs to resolve, keyed by git repository URL
+	 * @return the heads found, and the URLs which failed
+	 * @throws InterruptedException
+	 *             is thrown if we are interrupted while waiting on git
+	 */
+	public Result resolve(final Map<String, Set<String>> refsByUrl)
+			throws InterruptedException {
+		final Result result = new Result();
+		final Map<String, List<String>> urlsByHost =
+				new LinkedHashMap<String, List<String>>();
+		for (final String url : refsByUrl.keySet()) {
+			if (cache != null) {
+				final Map<String, String> cached =
+						cache.getHeads(url, refsByUrl.get(url));
+				if (cached != null) {
+					result.heads.put(url, cached);
+					continue;
+				}
+				if (cache.isBackingOff(url)) {
+					logger.println("Skipping " + url
+							+ " after recent failures");
+					result.failedUrls.add(url);
+					continue;
+				}
+			}
+			final String host = getHost(url);
+			List<String> urls = urlsByHost.get(host);
+			if (urls == null) {
+				urls = new ArrayList<String>();
+				urlsByHost.put(host, urls);
+			}
+			urls.add(url);
+		}
+
+		final Map<String, ExecutorService> pools =
+				new HashMap<String, ExecutorService>();
+		final Map<String, Future<Map<String, String>>> futures =
+				new LinkedHashMap<String, Future<Map<String, String>>>();
+		try {
+			for (final Map.Entry<String, List<String>> entry : urlsByHost
+					.entrySet()) {
+				final ExecutorService pool =
+						Executors.newFixedThreadPool(getThreads(entry
+								.getKey(), entry.getValue().size()),
+								new DaemonThreadFactory());
+				pools.put(entry.getKey(), pool);
+				for (final String url : entry.getValue()) {
+					final Set<String> refs = refsByUrl.get(url);
+					futures.put(url, pool
+							.submit(new Callable<Map<String, String>>() {
+								public Map<String, String> call()
+										throws IOException,
+										InterruptedException {
+									return lsRemote(url, refs);
+								}
+							}));
+				}
+			}
+
+			final long start = System.currentTimeMillis();
+			for (final String url : futures.keySet()) {
+				final Map<String, String> heads =
+						waitFor(url, futures.get(url), start);
+				if (heads == null) {
+					result.failedUrls.add(url);
+					if (cache != null) {
+						cache.putFailure(url);
+					}
+				} else {
+					result.heads.put(url, heads);
+					if (cache != null) {
+						cache.putHeads(url, refsByUrl.get(url), heads);
+					}
+				}
+			}
+		} finally {
+			for (final ExecutorService pool : pools.values()) {
+				pool.shutdownNow();
+			}
+		}
+		return result;
+	}
+
+	private Map<String, String> waitFor(final String url,
+			final Future<Map<String, String>> future, final long start)
+			throws InterruptedException {
+		try {
+			if (timeout <= 0) {
+				return future.get();
+			}
+			final long remaining =
+					Math.max(0, start + timeout - System.currentTimeMillis());
+			return future.get(remaining, TimeUnit.MILLISECONDS);
+		} catch (final TimeoutException e) {
+			future.cancel(true);
+			logger.println("Timed out listing the refs of " + url);
+		} catch (final ExecutionException e) {
+			debug.log(Level.WARNING, "ls-remote failed for " + url,
+					e.getCause());
+			logger.println("Unable to list the refs of " + url + ": "
+					+ e.getCause());
+		}
+		return null;
+	}
+
+	private int getThreads(final String host, final int urls) {
+		Integer threads = hostThreads.get(host);
+		if (threads == null || threads.intValue() < 1) {
+			threads = Integer.valueOf(defaultThreads);
+		}
+		return Math.min(threads.intValue(), urls);
+	}
+
+	/**
+	 * Lists the heads of the specified refs on a server. Annotated tags are
+	 * peeled so that every ref maps to a commit.
+	 *
+	 * @return a map from ref name to SHA-1, or null on failure
+	 */
+	Map<String, String> lsRemote(final String url,
+			final Set<String> refs) throws IOException, InterruptedException {
+		final List<String> commands = new ArrayList<String>();
+		commands.add("git");
+		commands.add("ls-remote");
+		commands.add(url);
+		for (final String ref : refs) {
+			commands.add(ref);
+			if (ref.startsWith("refs/tags/")) {
+				commands.add(ref + "^{}");
+			}
+		}
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		final int returnCode =
+				launcher.launch().stderr(logger).stdout(output).cmds(
+						commands).join();
+		if (returnCode != 0) {
+			return null;
+		}
+		final Map<String, String> result = new HashMap<String, String>();
+		for (final String line : output.toString("UTF-8").split("\n")) {
+			final int tab = line.indexOf('\t');
+			if (tab < 0) {
+				continue;
+			}
+			final String sha = line.substring(0, tab).trim();
+			String ref = line.substring(tab + 1).trim();
+			if (ref.endsWith("^{}")) {
+				// The peeled commit wins over the tag object.
+				ref = ref.substring(0, ref.length() - 3);
+			} else if (result.containsKey(ref)) {
+				continue;
+			}
+			result.put(ref, sha);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the host part of a git URL, including the port if there is
+	 * one. Both URLs with a scheme and scp-like URLs are understood; local
+	 * paths return the empty string.
+	 *
+	 * @param url
+	 *            A git repository URL
+	 */
+	static String getHost(final String url) {
+		String host;
+		final int scheme = url.indexOf("://");
+		if (scheme >= 0) {
+			host = url.substring(scheme + 3);
+			final int slash = host.indexOf('/');
+			if (slash >= 0) {
+				host = host.substring(0, slash);
+			}
+		} else {
+			final int colon = url.indexOf(':');
+			final int slash = url.indexOf('/');
+			if (colon < 0 || (slash >= 0 && slash < colon)) {
+				return "";
+			}
+			host = url.substring(0, colon);
+		}
+		return host.substring(host.indexOf('@') + 1);
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.model.Cause;
+
+/**
+ * A RefUpdatedCause records that a build was started because Gerrit
+ * reported an update to one of the projects in the manifest.
+ */
+public class RefUpdatedCause extends Cause {
+
+	private final String project;
+	private final String ref;
+	private final String revision;
+
+	/**
+	 * Creates a new RefUpdatedCause.
+	 *
+	 * @param project
+	 *            The name of the project on the server
+	 * @param ref
+	 *            The ref which was updated
+	 * @param revision
+	 *            The new SHA-1 of the ref
+	 */
+	public RefUpdatedCause(final String project, final String ref,
+			final String revision) {
+		this.project = project;
+		this.ref = ref;
+		this.revision = revision;
+	}
+
+	/**
+	 * Gets the name of the project on the server.
+	 */
+	public String getProject() {
+		return project;
+	}
+
+	/**
+	 * Gets the ref which was updated.
+	 */
+	public String getRef() {
+		return ref;
+	}
+
+	/**
+	 * Gets the new SHA-1 of the ref.
+	 */
+	public String getRevision() {
+		return revision;
+	}
+
+	@Override
+	public String getShortDescription() {
+		return "Started by an update of " + ref + " in " + project;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (!(obj instanceof RefUpdatedCause)) {
+			return false;
+		}
+		final RefUpdatedCause other = (RefUpdatedCause) obj;
+		return project.equals(other.project) && ref.equals(other.ref);
+	}
+
+	@Override
+	public int hashCode() {
+		return project.hashCode() ^ ref.hashCode();
+	}
+}
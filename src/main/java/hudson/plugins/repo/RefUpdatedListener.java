@@ -0,0 +1,244 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.PeriodicWork;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+/**
+ * The RefUpdatedListener reads Gerrit's event stream and schedules a build
+ * of every job whose last build used a project and branch that was just
+ * updated. The stream is read from the output of a configurable command,
+ * usually "ssh -p 29418 host gerrit stream-events", which is restarted
+ * whenever it exits.
+ */
+@Extension
+public class RefUpdatedListener extends PeriodicWork {
+
+	private static Logger debug =
+		Logger.getLogger("hudson.plugins.repo.RefUpdatedListener");
+
+	private static volatile StreamThread thread;
+
+	@Override
+	public long getRecurrencePeriod() {
+		return MIN;
+	}
+
+	@Override
+	protected synchronized void doRun() {
+		final String command = getDescriptor().getEventCommand();
+		if (thread != null && thread.isAlive()
+				&& thread.command.equals(command)) {
+			return;
+		}
+		if (thread != null) {
+			thread.shutdown();
+			thread = null;
+		}
+		if (command != null) {
+			thread = new StreamThread(command);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Returns the time at which the event stream received its first event
+	 * since it was last (re)started, or 0 if it isn't connected. Updates
+	 * which happened before this time may have been missed.
+	 */
+	public static long getConnectedSince() {
+		final StreamThread current = thread;
+		return current == null ? 0 : current.connectedSince;
+	}
+
+	private static RepoScm.DescriptorImpl getDescriptor() {
+		return Hudson.getInstance().getDescriptorByType(
+				RepoScm.DescriptorImpl.class);
+	}
+
+	/**
+	 * Handles one line of the event stream.
+	 *
+	 * @param line
+	 *            A JSON encoded Gerrit event
+	 */
+	static void handleEvent(final String line) {
+		final RefUpdatedCause cause = parseEvent(line);
+		if (cause == null) {
+			return;
+		}
+		final RepoScm.DescriptorImpl descriptor = getDescriptor();
+		final String host = getHost(descriptor.getEventHost(), descriptor
+				.getEventCommand());
+		if (host == null) {
+			debug.log(Level.WARNING, "The Gerrit host of the event stream "
+					+ "is unknown, ignoring " + line);
+			return;
+		}
+		for (final String name : ProjectIndex.get().getJobs(host,
+				cause.getProject(), cause.getRef())) {
+			final AbstractProject<?, ?> job =
+					Hudson.getInstance().getItemByFullName(name,
+							AbstractProject.class);
+			if (job != null && !job.isDisabled()) {
+				debug.log(Level.INFO, "Scheduling " + name + " for "
+						+ cause.getProject() + " " + cause.getRef());
+				job.scheduleBuild(cause);
+			}
+		}
+	}
+
+	/**
+	 * Reads a line of the event stream.
+	 *
+	 * @param line
+	 *            A JSON encoded Gerrit event
+	 * @return the cause of the builds the event schedules, or null if the
+	 *         line isn't the update of a branch or tag
+	 */
+	static RefUpdatedCause parseEvent(final String line) {
+		final JSONObject event;
+		try {
+			event = JSONObject.fromObject(line);
+		} catch (final JSONException e) {
+			debug.log(Level.FINE, "Not an event: " + line);
+			return null;
+		}
+		if (!"ref-updated".equals(event.optString("type"))) {
+			return null;
+		}
+		final JSONObject refUpdate = event.optJSONObject("refUpdate");
+		if (refUpdate == null) {
+			return null;
+		}
+		final String project = refUpdate.optString("project");
+		final String ref = refUpdate.optString("refName");
+		if (project.length() == 0 || ref.length() == 0
+				|| ref.startsWith("refs/changes/")) {
+			return null;
+		}
+		return new RefUpdatedCause(project, ref, refUpdate
+				.optString("newRev"));
+	}
+
+	/**
+	 * Returns the host name of the Gerrit server sending the events. Events
+	 * don't name their server, so it is either configured or taken from the
+	 * ssh command, such as review.example.com for
+	 * "ssh -p 29418 jenkins@review.example.com gerrit stream-events".
+	 *
+	 * @param eventHost
+	 *            The configured host, or null
+	 * @param command
+	 *            The event stream command, or null
+	 * @return the host name, or null if it is unknown
+	 */
+	static String getHost(final String eventHost, final String command) {
+		if (eventHost != null) {
+			return ProjectIndex.getHostName(eventHost);
+		}
+		if (command == null) {
+			return null;
+		}
+		final String[] args = Util.tokenize(command);
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("gerrit")) {
+				return ProjectIndex.getHostName(args[i - 1]);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * A daemon thread running the event stream command and handling its
+	 * output.
+	 */
+	private static final class StreamThread extends Thread {
+		private final String command;
+		private volatile Process process;
+		private volatile boolean stopped;
+		private volatile long connectedSince;
+
+		private StreamThread(final String command) {
+			super("Repo event stream");
+			this.command = command;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				process = new ProcessBuilder(Arrays.asList(Util
+						.tokenize(command))).redirectErrorStream(true)
+						.start();
+				process.getOutputStream().close();
+				final BufferedReader reader =
+						new BufferedReader(new InputStreamReader(process
+								.getInputStream(), "UTF-8"));
+				try {
+					String line = reader.readLine();
+					while (line != null && !stopped) {
+						if (connectedSince == 0 && line.startsWith("{")) {
+							// The command may still be connecting, or fail,
+							// until the stream sends its first event.
+							connectedSince = System.currentTimeMillis();
+						}
+						handleEvent(line);
+						line = reader.readLine();
+					}
+				} finally {
+					reader.close();
+				}
+			} catch (final IOException e) {
+				debug.log(Level.WARNING, "Event stream failed: " + command,
+						e);
+			} finally {
+				connectedSince = 0;
+				shutdown();
+			}
+			debug.log(Level.INFO, "Event stream ended: " + command);
+		}
+
+		private void shutdown() {
+			stopped = true;
+			if (process != null) {
+				process.destroy();
+			}
+		}
+	}
+}
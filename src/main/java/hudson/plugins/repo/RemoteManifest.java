@@ -0,0 +1,490 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.Util;
+import hudson.util.IOException2;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * A RemoteManifest is the parsed form of a (non-static) repo manifest, as it
+ * is stored in the manifest repository. Unlike the static manifest used by
+ * {@link RevisionState}, project revisions here are whatever the manifest
+ * author wrote: usually a branch name, sometimes a tag or a SHA-1. Remotes,
+ * defaults, includes and the local manifest are resolved so that every
+ * project knows the URL it is fetched from and the revision it tracks.
+ * Elements this parser doesn't understand are skipped, and make
+ * {@link #isComplete()} return false.
+ */
+public class RemoteManifest {
+
+	private static Logger debug =
+		Logger.getLogger("hudson.plugins.repo.RemoteManifest");
+
+	/**
+	 * The elements which don't change the projects synced or where they are
+	 * fetched from.
+	 */
+	private static final Set<String> IGNORED_ELEMENTS =
+			new HashSet<String>(Arrays.asList("notice", "manifest-server",
+					"repo-hooks", "superproject", "contactinfo"));
+
+	private final String manifestUrl;
+	private final Map<String, Remote> remotes = new HashMap<String, Remote>();
+	private final Map<String, Project> projects =
+			new LinkedHashMap<String, Project>();
+	private String defaultRemote;
+	private String defaultRevision;
+	private boolean complete = true;
+
+	/**
+	 * A Source knows how to read the files of the manifest repository. This
+	 * lets the same parser work on a bare clone, a checked out .repo
+	 * directory, or test data.
+	 */
+	public interface Source {
+		/**
+		 * Reads a file from the manifest repository.
+		 *
+		 * @param name
+		 *            The name of the file, relative to the root of the
+		 *            manifest repository
+		 * @return the contents of the file
+		 * @throws IOException
+		 *             is thrown if the file cannot be read
+		 * @throws InterruptedException
+		 *             is thrown if we are interrupted while reading the file
+		 */
+		String read(String name) throws IOException, InterruptedException;
+	}
+
+	/**
+	 * A project element of the manifest, with its remote and revision
+	 * resolved.
+	 */
+	public static final class Project {
+		private final String name;
+		private final String path;
+		private final String remoteName;
+		private final String fetchUrl;
+		private final String revision;
+		private final String groups;
+
+		private Project(final String name, final String path,
+				final String remoteName, final String fetchUrl,
+				final String revision, final String groups) {
+			this.name = name;
+			this.path = path;
+			this.remoteName = remoteName;
+			this.fetchUrl = fetchUrl;
+			this.revision = revision;
+			this.groups = groups;
+		}
+
+		/**
+		 * Gets the server-side name of the project.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Gets the client-side path of the project.
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * Gets the name of the remote this project is fetched from.
+		 */
+		public String getRemoteName() {
+			return remoteName;
+		}
+
+		/**
+		 * Gets the full URL this project is fetched from.
+		 */
+		public String getFetchUrl() {
+			return fetchUrl;
+		}
+
+		/**
+		 * Gets the revision as written in the manifest. This is a branch
+		 * name, a full ref name or a SHA-1.
+		 */
+		public String getRevision() {
+			return revision;
+		}
+
+		/**
+		 * Gets the groups attribute of the project, or null if it has none.
+		 */
+		public String getGroups() {
+			return groups;
+		}
+
+		/**
+		 * Returns true if the revision of this project is a SHA-1, which
+		 * means it can never move.
+		 */
+		public boolean isPinned() {
+			return isSha1(revision);
+		}
+
+		/**
+		 * Returns true if the revision of this project can never move, that
+		 * is if it is a SHA-1 or a tag.
+		 */
+		public boolean isImmutable() {
+			return isPinned() || revision.startsWith("refs/tags/");
+		}
+
+		/**
+		 * Returns the ref this project tracks on the server, such as
+		 * refs/heads/master, or null if the project is pinned to a SHA-1.
+		 */
+		public String getRef() {
+			if (isPinned()) {
+				return null;
+			}
+			if (revision.startsWith("refs/")) {
+				return revision;
+			}
+			return "refs/heads/" + revision;
+		}
+	}
+
+	/**
+	 * A remote element of the manifest.
+	 */
+	private static final class Remote {
+		private final String fetch;
+		private final String revision;
+
+		private Remote(final String fetch, final String revision) {
+			this.fetch = fetch;
+			this.revision = revision;
+		}
+	}
+
+	/**
+	 * Parses a manifest and everything it includes.
+	 *
+	 * @param source
+	 *            Used to read the manifest file and any included files
+	 * @param manifestFile
+	 *            The manifest file name. If null, "default.xml" is used just
+	 *            like repo does.
+	 * @param localManifest
+	 *            The contents of the local manifest, or null if there is none
+	 * @param manifestUrl
+	 *            The URL of the manifest repository, used to resolve
+	 *            relative fetch URLs
+	 * @throws IOException
+	 *             is thrown if the manifest cannot be read or parsed
+	 * @throws InterruptedException
+	 *             is thrown if we are interrupted while reading the manifest
+	 */
+	public RemoteManifest(final Source source, final String manifestFile,
+			final String localManifest, final String manifestUrl)
+			throws IOException, InterruptedException {
+		this.manifestUrl = manifestUrl;
+		parse(source, source.read(manifestFile == null ? "default.xml"
+				: manifestFile));
+		if (localManifest != null) {
+			parse(source, localManifest);
+		}
+	}
+
+	/**
+	 * Returns every project in the manifest, in manifest order.
+	 */
+	public List<Project> getProjects() {
+		return new ArrayList<Project>(projects.values());
+	}
+
+	/**
+	 * Returns false if the manifest has elements or attributes this parser
+	 * doesn't understand, such as nested projects, so that its projects may
+	 * differ from the ones repo syncs.
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * Returns the fetch URL of a remote, resolved against the manifest URL,
+	 * or null if there is no such remote.
+	 *
+	 * @param remoteName
+	 *            The name of the remote
+	 */
+	public String getRemoteUrl(final String remoteName) {
+		final Remote remote = remotes.get(remoteName);
+		return remote == null ? null : remote.fetch;
+	}
+
+	/**
+	 * Returns true if the specified revision is a full SHA-1.
+	 *
+	 * @param revision
+	 *            The revision string from a manifest
+	 */
+	public static boolean isSha1(final String revision) {
+		if (revision == null || revision.length() != 40) {
+			return false;
+		}
+		for (int i = 0; i < revision.length(); i++) {
+			if (Character.digit(revision.charAt(i), 16) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void parse(final Source source, final String text)
+			throws IOException, InterruptedException {
+		final Document doc;
+		try {
+			final InputSource xmlSource = new InputSource();
+			xmlSource.setCharacterStream(new StringReader(text));
+			doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+					.parse(xmlSource);
+		} catch (final Exception e) {
+			throw new IOException2("Unable to parse manifest", e);
+		}
+		final Element root = doc.getDocumentElement();
+		if (!root.getNodeName().equals("manifest")) {
+			throw new IOException("Error - malformed manifest");
+		}
+		final NodeList children = root.getChildNodes();
+		for (int i = 0; i < children.getLength(); i++) {
+			final Node node = children.item(i);
+			if (node.getNodeType() != Node.ELEMENT_NODE) {
+				continue;
+			}
+			final Element element = (Element) node;
+			final String tag = element.getNodeName();
+			if (tag.equals("remote")) {
+				remotes.put(attr(element, "name"), new Remote(
+						resolveUrl(manifestUrl, attr(element, "fetch")),
+						attr(element, "revision")));
+			} else if (tag.equals("default")) {
+				if (attr(element, "remote") != null) {
+					defaultRemote = attr(element, "remote");
+				}
+				if (attr(element, "revision") != null) {
+					defaultRevision = attr(element, "revision");
+				}
+			} else if (tag.equals("include")) {
+				parse(source, source.read(attr(element, "name")));
+			} else if (tag.equals("remove-project")) {
+				removeProject(element);
+			} else if (tag.equals("project")) {
+				addProject(element);
+			} else if (tag.equals("extend-project")) {
+				extendProject(element);
+			} else if (!IGNORED_ELEMENTS.contains(tag)) {
+				debug.log(Level.WARNING, "Unknown manifest element: " + tag);
+				complete = false;
+			}
+		}
+	}
+
+	private void addProject(final Element element) {
+		final String name = attr(element, "name");
+		if (name == null) {
+			return;
+		}
+		String path = attr(element, "path");
+		if (path == null) {
+			path = name;
+		}
+		String remoteName = attr(element, "remote");
+		if (remoteName == null) {
+			remoteName = defaultRemote;
+		}
+		final Remote remote = remotes.get(remoteName);
+		if (remote == null || remote.fetch == null) {
+			debug.log(Level.WARNING, "No remote for project: " + name);
+			return;
+		}
+		String revision = attr(element, "revision");
+		if (revision == null) {
+			revision = remote.revision;
+		}
+		if (revision == null) {
+			revision = defaultRevision;
+		}
+		if (revision == null) {
+			debug.log(Level.WARNING, "No revision for project: " + name);
+			return;
+		}
+		if (hasChildElement(element, "project")) {
+			// Nested projects are synced inside their parent, which this
+			// parser doesn't follow.
+			complete = false;
+		}
+		projects.put(path, new Project(name, path, remoteName, getFetchUrl(
+				remote, name), revision, attr(element, "groups")));
+	}
+
+	/**
+	 * Changes the remote, revision or groups of the projects with the name
+	 * of an extend-project element, like repo does. If the element has a
+	 * path, only the project at that path is changed.
+	 */
+	private void extendProject(final Element element) {
+		final String name = attr(element, "name");
+		final String path = attr(element, "path");
+		if (name == null || attr(element, "dest-path") != null) {
+			complete = false;
+			return;
+		}
+		for (final Project project : getProjects()) {
+			if (!project.getName().equals(name)
+					|| (path != null && !path.equals(project.getPath()))) {
+				continue;
+			}
+			String remoteName = attr(element, "remote");
+			if (remoteName == null) {
+				remoteName = project.getRemoteName();
+			}
+			final Remote remote = remotes.get(remoteName);
+			if (remote == null || remote.fetch == null) {
+				debug.log(Level.WARNING, "No remote for project: " + name);
+				complete = false;
+				continue;
+			}
+			String revision = attr(element, "revision");
+			if (revision == null) {
+				revision = project.getRevision();
+			}
+			String groups = attr(element, "groups");
+			if (groups == null) {
+				groups = project.getGroups();
+			} else if (project.getGroups() != null) {
+				groups = project.getGroups() + "," + groups;
+			}
+			projects.put(project.getPath(), new Project(name, project
+					.getPath(), remoteName, getFetchUrl(remote, name),
+					revision, groups));
+		}
+	}
+
+	private void removeProject(final Element element) {
+		final String name = attr(element, "name");
+		if (name == null) {
+			complete = false;
+			return;
+		}
+		final List<String> paths = new ArrayList<String>();
+		for (final Project project : projects.values()) {
+			if (project.getName().equals(name)) {
+				paths.add(project.getPath());
+			}
+		}
+		for (final String path : paths) {
+			projects.remove(path);
+		}
+	}
+
+	private static String getFetchUrl(final Remote remote, final String name) {
+		String fetchUrl = remote.fetch;
+		if (!fetchUrl.endsWith("/")) {
+			fetchUrl += "/";
+		}
+		return fetchUrl + name;
+	}
+
+	private static boolean hasChildElement(final Element element,
+			final String tag) {
+		final NodeList children = element.getChildNodes();
+		for (int i = 0; i < children.getLength(); i++) {
+			if (children.item(i).getNodeType() == Node.ELEMENT_NODE
+					&& children.item(i).getNodeName().equals(tag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String attr(final Element element, final String name) {
+		return Util.fixEmptyAndTrim(element.getAttribute(name));
+	}
+
+	/**
+	 * Resolves a fetch URL against the manifest URL the same way repo does,
+	 * so that fetch="..", the usual Gerrit idiom, points at the server root.
+	 *
+	 * @param base
+	 *            The manifest repository URL
+	 * @param url
+	 *            The fetch attribute of a remote element
+	 * @return the absolute fetch URL
+	 */
+	static String resolveUrl(final String base, final String url) {
+		if (url == null || base == null || !url.startsWith(".")) {
+			return url;
+		}
+		String resolved = base;
+		while (resolved.endsWith("/")) {
+			resolved = resolved.substring(0, resolved.length() - 1);
+		}
+		resolved = resolved.substring(0, resolved.lastIndexOf('/') + 1);
+		for (final String segment : url.split("/")) {
+			if (segment.equals("..")) {
+				final int end = resolved.lastIndexOf('/',
+						resolved.length() - 2);
+				if (end > resolved.indexOf("//") + 1) {
+					resolved = resolved.substring(0, end + 1);
+				}
+			} else if (segment.length() > 0 && !segment.equals(".")) {
+				resolved += segment + "/";
+			}
+		}
+		return resolved;
+	}
+}
@@ -0,0 +1,486 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+import hudson.Launcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A RemotePoller computes the current state of the repository without a repo
+ * client. It fetches only the manifest repository into a bare git directory,
+ * then asks each server for the heads of the branches the manifest tracks
+ * using a {@link RefResolver}. No project is ever cloned or checked out, so
+ * the cost of a poll depends on the number of refs rather than the size of
+ * the checkout.
+ */
+public class RemotePoller {
+
+	private static Logger debug =
+		Logger.getLogger("hudson.plugins.repo.RemotePoller");
+
+	private static final String MANIFEST_REF = "refs/jenkins/manifest";
+
+	private final Launcher launcher;
+	private final FilePath gitDir;
+	private final PrintStream logger;
+	private final RefResolver resolver;
+	private final boolean partial;
+
+	/**
+	 * Creates a new RemotePoller.
+	 *
+	 * @param launcher
+	 *            The launcher used to run git
+	 * @param gitDir
+	 *            The bare git directory the manifest repository is fetched
+	 *            into, usually from {@link ManifestCache}, or the manifest
+	 *            repository of a workspace. It is created if it doesn't
+	 *            exist yet.
+	 * @param logger
+	 *            A PrintStream for logging errors
+	 * @param resolver
+	 *            Used to query the servers for branch heads. It may be null
+	 *            if the poller is only used for {@link #isUnchanged}.
+	 * @param partial
+	 *            If true, projects whose server couldn't be queried are
+	 *            left unresolved instead of failing the poll
+	 */
+	public RemotePoller(final Launcher launcher, final FilePath gitDir,
+			final PrintStream logger, final RefResolver resolver,
+			final boolean partial) {
+		this.launcher = launcher;
+		this.gitDir = gitDir;
+		this.logger = logger;
+		this.resolver = resolver;
+		this.partial = partial;
+	}
+
+	/**
+	 * Computes the current remote state of the repository described by a
+	 * RepoScm. Only projects tracking a branch are resolved on the servers:
+	 * projects pinned to a SHA-1 are taken from the manifest, and projects
+	 * pinned to a tag reuse the revision recorded in the baseline. In partial
+	 * mode, projects whose server failed are left unresolved, and
+	 * {@link #keepUnresolved} completes the state for a job.
+	 *
+	 * @param scm
+	 *            The RepoScm whose manifest settings should be used
+	 * @param baseline
+	 *            The previous state, or null if there is none
+	 * @return the current state, or null if it couldn't be determined
+	 * @throws IOException
+	 *             is thrown if the manifest cannot be read
+	 * @throws InterruptedException
+	 *             is thrown if we are interrupted while waiting on git
+	 */
+	public RevisionState getRemoteState(final RepoScm scm,
+			final RevisionState baseline) throws IOException,
+			InterruptedException {
+		final String commit = fetchManifest(scm.getManifestRepositoryUrl(),
+				scm.getManifestBranch());
+		if (commit == null) {
+			logger.println("Unable to fetch the manifest repository");
+			return null;
+		}
+		return resolve(getProjects(scm, commit), commit, scm
+				.getManifestBranch(), baseline);
+	}
+
+	/**
+	 * Resolves the revisions of the projects of a manifest. In partial
+	 * mode, the projects whose server failed are left unresolved, see
+	 * {@link RevisionState#getUnresolvedPaths()}. The result only depends
+	 * on the baseline through the revisions of tags, which can't move, so
+	 * it can be shared with other jobs.
+	 *
+	 * @param projects
+	 *            The projects of the manifest
+	 * @param commit
+	 *            The SHA-1 of the manifest commit
+	 * @param branch
+	 *            The manifest branch
+	 * @param baseline
+	 *            The previous state, or null if there is none
+	 * @return the current state, or null if it couldn't be determined
+	 * @throws InterruptedException
+	 *             is thrown if we are interrupted while waiting on git
+	 */
+	RevisionState resolve(final List<RemoteManifest.Project> projects,
+			final String commit, final String branch,
+			final RevisionState baseline) throws InterruptedException {
+		final Map<String, String> revisions = new HashMap<String, String>();
+		final Map<String, Set<String>> refsByUrl =
+				new LinkedHashMap<String, Set<String>>();
+		int floating = 0;
+		for (final RemoteManifest.Project project : projects) {
+			final String known = getImmutableRevision(project, baseline);
+			if (known != null) {
+				revisions.put(project.getPath(), known);
+				continue;
+			}
+			floating++;
+			Set<String> refs = refsByUrl.get(project.getFetchUrl());
+			if (refs == null) {
+				refs = new LinkedHashSet<String>();
+				refsByUrl.put(project.getFetchUrl(), refs);
+			}
+			refs.add(project.getRef());
+		}
+		logger.println("Resolving " + floating + " of " + projects.size()
+				+ " projects");
+
+		final RefResolver.Result heads = resolver.resolve(refsByUrl);
+		if (heads.getFailureCount() > 0
+				&& (!partial || heads.getFailureCount() == refsByUrl.size())) {
+			return null;
+		}
+
+		final Set<String> unresolved = new HashSet<String>();
+		for (final RemoteManifest.Project project : projects) {
+			if (revisions.containsKey(project.getPath())) {
+				continue;
+			}
+			final String url = project.getFetchUrl();
+			final String head = heads.getHead(url, project.getRef());
+			if (head != null) {
+				revisions.put(project.getPath(), head);
+			} else if (heads.isFailed(url)) {
+				unresolved.add(project.getPath());
+			} else {
+				logger.println("No " + project.getRef() + " in " + url);
+				return null;
+			}
+		}
+		return new RevisionState(toStaticManifest(projects, revisions,
+				unresolved), commit, branch, null);
+	}
+
+	/**
+	 * Completes a partial state for one job: each project left unresolved
+	 * keeps the revision it has in the job's baseline, so that it doesn't
+	 * hide changes elsewhere.
+	 *
+	 * @param remote
+	 *            The state returned by {@link #resolve}
+	 * @param baseline
+	 *            The job's previous state, or null if there is none
+	 * @param logger
+	 *            Logs the projects which couldn't be compared
+	 * @return the completed state, or null if a project left unresolved
+	 *         isn't in the baseline
+	 */
+	static RevisionState keepUnresolved(final RevisionState remote,
+			final RevisionState baseline, final PrintStream logger) {
+		if (remote.getUnresolvedPaths().isEmpty()) {
+			return remote;
+		}
+		final List<ProjectState> projects =
+				new ArrayList<ProjectState>(remote.getProjects());
+		for (final String path : remote.getUnresolvedPaths()) {
+			final ProjectState previous =
+					baseline == null ? null : baseline.getProject(path);
+			if (previous == null) {
+				logger.println("Unable to resolve " + path
+						+ ", which has no previous revision");
+				return null;
+			}
+			logger.println("Incomparable: " + path + " (keeping revision "
+					+ previous.getRevision() + ")");
+			projects.add(previous);
+		}
+		final StringBuilder xml = new StringBuilder();
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		xml.append("<manifest>\n");
+		for (final ProjectState project : projects) {
+			appendProject(xml, project.getServerPath(), project.getPath(),
+					project.getRevision(), project.getUpstream());
+		}
+		xml.append("</manifest>\n");
+		return new RevisionState(xml.toString(), remote.getManifestCommit(),
+				remote.getBranch(), null);
+	}
+
+	/**
+	 * Returns the revision of a project if it is known without asking the
+	 * server, or null if the project has to be resolved.
+	 */
+	private static String getImmutableRevision(
+			final RemoteManifest.Project project,
+			final RevisionState baseline) {
+		if (project.isPinned()) {
+			return project.getRevision();
+		}
+		if (!project.isImmutable() || baseline == null) {
+			return null;
+		}
+		final ProjectState previous = baseline.getProject(project.getPath());
+		if (previous != null
+				&& project.getRevision().equals(previous.getUpstream())) {
+			return previous.getRevision();
+		}
+		return null;
+	}
+
+	/**
+	 * Checks whether a previous state is still current without asking any
+	 * project server. This is the case when the manifest repository hasn't
+	 * moved since the previous state was recorded, and the manifest lists
+	 * the same projects, each pinned to the SHA-1 or tag it had then.
+	 *
+	 * @param scm
+	 *            The RepoScm whose manifest settings should be used
+	 * @param baseline
+	 *            The previous state
+	 * @return true if the state cannot have changed
+	 * @throws IOException
+	 *             is thrown if the manifest cannot be read
+	 * @throws InterruptedException
+	 *             is thrown if we are interrupted while waiting on git
+	 */
+	public boolean isUnchanged(final RepoScm scm,
+			final RevisionState baseline) throws IOException,
+			InterruptedException {
+		if (baseline.getManifestCommit() == null) {
+			return false;
+		}
+		final String commit = fetchManifest(scm.getManifestRepositoryUrl(),
+				scm.getManifestBranch());
+		if (!baseline.getManifestCommit().equals(commit)) {
+			return false;
+		}
+		return isUnchanged(getProjects(scm, commit), baseline);
+	}
+
+	/**
+	 * Returns true if the projects of a manifest are exactly the projects of
+	 * a previous state, and none of them can have moved since: each is
+	 * pinned to the SHA-1 it had, or to the tag it was synced from.
+	 *
+	 * @param projects
+	 *            The projects of the manifest the job syncs
+	 * @param baseline
+	 *            The previous state
+	 */
+	static boolean isUnchanged(final List<RemoteManifest.Project> projects,
+			final RevisionState baseline) {
+		if (projects.size() != baseline.getProjects().size()) {
+			return false;
+		}
+		for (final RemoteManifest.Project project : projects) {
+			final ProjectState previous =
+					baseline.getProject(project.getPath());
+			if (previous == null) {
+				return false;
+			}
+			if (project.isPinned()) {
+				if (!project.getRevision().equals(previous.getRevision())) {
+					return false;
+				}
+			} else if (!project.isImmutable()
+					|| !project.getRevision().equals(previous.getUpstream())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the manifest at the specified commit and returns the projects
+	 * the job syncs.
+	 */
+	private List<RemoteManifest.Project> getProjects(final RepoScm scm,
+			final String commit) throws IOException, InterruptedException {
+		return scm.getProjectFilter().filter(
+				new RemoteManifest(new GitSource(commit),
+						scm.getManifestFile(), scm.getLocalManifest(),
+						scm.getManifestRepositoryUrl()).getProjects());
+	}
+
+	/**
+	 * Fetches the manifest branch into the bare git directory.
+	 *
+	 * @return the SHA-1 of the fetched manifest commit, or null on failure
+	 */
+	private String fetchManifest(final String url, final String branch)
+			throws IOException, InterruptedException {
+		final String ref;
+		if (branch == null) {
+			ref = "HEAD";
+		} else if (branch.startsWith("refs/")) {
+			ref = branch;
+		} else {
+			ref = "refs/heads/" + branch;
+		}
+		final ReentrantLock lock = ManifestCache.getLock(gitDir);
+		lock.lockInterruptibly();
+		try {
+			if (!gitDir.child("objects").isDirectory()) {
+				gitDir.mkdirs();
+				if (git("init", "--bare", "--quiet") == null) {
+					return null;
+				}
+			}
+			if (git("fetch", "--quiet", "--force", url, "+" + ref + ":"
+					+ MANIFEST_REF) == null) {
+				return null;
+			}
+			final String commit = git("rev-parse", MANIFEST_REF);
+			return commit == null ? null : commit.trim();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Runs git in the bare git directory.
+	 *
+	 * @return the standard output, or null if git failed
+	 */
+	private String git(final String... args)
+			throws IOException, InterruptedException {
+		final List<String> commands = new ArrayList<String>(args.length + 1);
+		commands.add("git");
+		for (final String arg : args) {
+			commands.add(arg);
+		}
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		final int returnCode =
+				launcher.launch().stderr(logger).stdout(output).pwd(gitDir)
+						.cmds(commands).join();
+		if (returnCode != 0) {
+			debug.log(Level.WARNING, "git failed: " + commands);
+			return null;
+		}
+		return output.toString("UTF-8");
+	}
+
+	/**
+	 * Creates a static manifest, in the same form as repo manifest -r, for
+	 * a set of projects at known revisions.
+	 *
+	 * @param projects
+	 *            The projects in the manifest
+	 * @param revisions
+	 *            A map from project path to SHA-1
+	 * @return the manifest XML
+	 */
+	static String toStaticManifest(
+			final List<RemoteManifest.Project> projects,
+			final Map<String, String> revisions) {
+		return toStaticManifest(projects, revisions, Collections
+				.<String>emptySet());
+	}
+
+	/**
+	 * Creates a static manifest for a set of projects at known revisions,
+	 * in which some projects are left without a revision.
+	 *
+	 * @param projects
+	 *            The projects in the manifest
+	 * @param revisions
+	 *            A map from project path to SHA-1
+	 * @param unresolved
+	 *            The paths of the projects whose revision is unknown
+	 * @return the manifest XML
+	 */
+	static String toStaticManifest(
+			final List<RemoteManifest.Project> projects,
+			final Map<String, String> revisions,
+			final Set<String> unresolved) {
+		final StringBuilder xml = new StringBuilder();
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		xml.append("<manifest>\n");
+		for (final RemoteManifest.Project project : projects) {
+			final String revision = revisions.get(project.getPath());
+			if (revision == null && !unresolved.contains(project.getPath())) {
+				continue;
+			}
+			appendProject(xml, project.getName(), project.getPath(),
+					revision, revision != null
+							&& revision.equals(project.getRevision()) ? null
+							: project.getRevision());
+		}
+		xml.append("</manifest>\n");
+		return xml.toString();
+	}
+
+	private static void appendProject(final StringBuilder xml,
+			final String name, final String path, final String revision,
+			final String upstream) {
+		xml.append("  <project name=\"").append(escape(name)).append(
+				"\" path=\"").append(escape(path)).append('"');
+		if (revision != null) {
+			xml.append(" revision=\"").append(escape(revision)).append('"');
+		}
+		if (upstream != null) {
+			xml.append(" upstream=\"").append(escape(upstream)).append('"');
+		}
+		xml.append("/>\n");
+	}
+
+	/**
+	 * Escapes text for an XML attribute.
+	 */
+	static String escape(final String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">",
+				"&gt;").replace("\"", "&quot;");
+	}
+
+	/**
+	 * Reads manifest files from a commit in the bare git directory.
+	 */
+	private class GitSource implements RemoteManifest.Source {
+		private final String commit;
+
+		GitSource(final String commit) {
+			this.commit = commit;
+		}
+
+		public String read(final String name) throws IOException,
+				InterruptedException {
+			final String text = git("show", commit + ":" + name);
+			if (text == null) {
+				throw new IOException("Unable to read " + name
+						+ " from the manifest repository");
+			}
+			return text;
+		}
+	}
+}
@@ -31,6 +31,7 @@ import hudson.model.BuildListener;
 import hudson.model.TaskListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Node;
 import hudson.model.Run;
 import hudson.scm.ChangeLogParser;
 import hudson.scm.PollingResult;
@@ -38,16 +39,26 @@ import hudson.scm.SCM;
 import hudson.scm.SCMDescriptor;
 import hudson.scm.SCMRevisionState;
 import hudson.scm.PollingResult.Change;
+import hudson.util.ForkOutputStream;
 import hudson.util.FormValidation;
+import hudson.util.StreamTaskListener;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import net.sf.json.JSONObject;
 
@@ -64,6 +75,47 @@ public class RepoScm extends SCM {
 	private static Logger debug = Logger
 			.getLogger("hudson.plugins.repo.RepoScm");
 
+	/**
+	 * The file in .repo recording the arguments of the last successful repo
+	 * init.
+	 */
+	static final String INIT_MARKER = "jenkins-init-args";
+
+	/**
+	 * The file in .repo holding the static manifest of the last successful
+	 * sync of the checkout. It moves and is copied along with the checkout,
+	 * so it stays right for pooled and seeded checkouts.
+	 */
+	static final String STATE_FILE = "jenkins-checkout-manifest";
+
+	/**
+	 * The longest wait, in milliseconds, before retrying a failed sync.
+	 */
+	static final long MAX_RETRY_DELAY = 10L * 60L * 1000L;
+
+	/**
+	 * The manifest written by repo sync -s in .repo/manifests.
+	 */
+	private static final String SMART_SYNC_MANIFEST =
+			"smart_sync_override.xml";
+
+	/**
+	 * The clean strategy removing untracked files from every project after
+	 * sync.
+	 */
+	static final String CLEAN_ALL = "all";
+
+	/**
+	 * The clean strategy removing untracked files only from the projects
+	 * which changed since the last build.
+	 */
+	static final String CLEAN_CHANGED = "changed";
+
+	/**
+	 * The clean strategy deleting the whole checkout before sync.
+	 */
+	static final String CLEAN_WIPE = "wipe";
+
 	private final String manifestRepositoryUrl;
 
 	// Advanced Fields:
@@ -74,6 +126,25 @@ public class RepoScm extends SCM {
 	private final int jobs;
 	private final String localManifest;
 	private final String destinationDir;
+	private boolean lightweightPolling;
+	private String includedPaths;
+	private String excludedPaths;
+	private boolean twoPhaseSync;
+	private int localJobs;
+	private boolean autoJobs;
+	private boolean smartSync;
+	private String smartTag;
+	private boolean currentBranch;
+	private int depth;
+	private boolean noTags;
+	private boolean partialClone;
+	private String cloneFilter;
+	private String manifestGroup;
+	private String projectList;
+	private String cleanStrategy;
+	private boolean managedMirror;
+	private boolean seedWorkspace;
+	private boolean pooledWorkspace;
 
 	/**
 	 * Returns the manifest repository URL.
@@ -106,6 +177,66 @@ public class RepoScm extends SCM {
 		return mirrorDir;
 	}
 
+	/**
+	 * Returns true if the plugin keeps a mirror of the manifest on each node
+	 * and references it instead of the mirror directory. By default, this
+	 * is false.
+	 */
+	public boolean isManagedMirror() {
+		return managedMirror;
+	}
+
+	/**
+	 * Sets the managedMirror option.
+	 *
+	 * @param managedMirror
+	 *            If true, the plugin creates and updates a mirror of the
+	 *            manifest on each node, and references it instead of the
+	 *            mirror directory
+	 */
+	public void setManagedMirror(final boolean managedMirror) {
+		this.managedMirror = managedMirror;
+	}
+
+	/**
+	 * Returns true if a workspace without a checkout is first copied from
+	 * a golden checkout of the node. By default, this is false.
+	 */
+	public boolean isSeedWorkspace() {
+		return seedWorkspace;
+	}
+
+	/**
+	 * Sets the seedWorkspace option.
+	 *
+	 * @param seedWorkspace
+	 *            If true, a workspace without a checkout is copied from a
+	 *            golden checkout of the node before it is synced
+	 */
+	public void setSeedWorkspace(final boolean seedWorkspace) {
+		this.seedWorkspace = seedWorkspace;
+	}
+
+	/**
+	 * Returns true if builds lease their checkout from a pool shared by the
+	 * jobs building the same manifest on the node. By default, this is
+	 * false.
+	 */
+	public boolean isPooledWorkspace() {
+		return pooledWorkspace;
+	}
+
+	/**
+	 * Sets the pooledWorkspace option.
+	 *
+	 * @param pooledWorkspace
+	 *            If true, builds lease the closest checkout from a pool of
+	 *            the node instead of keeping one in the job's workspace
+	 */
+	public void setPooledWorkspace(final boolean pooledWorkspace) {
+		this.pooledWorkspace = pooledWorkspace;
+	}
+
 	/**
 	 * Returns the number of jobs used for sync. By default, this is null and
 	 * repo does not use concurrent jobs.
@@ -130,9 +261,345 @@ public class RepoScm extends SCM {
 		return destinationDir;
 	}
 
+	/**
+	 * Returns true if polling should only fetch the manifest and query the
+	 * servers for branch heads, instead of syncing the workspace. By
+	 * default, this is false.
+	 */
+	public boolean isLightweightPolling() {
+		return lightweightPolling;
+	}
+
+	/**
+	 * Sets the lightweightPolling option.
+	 *
+	 * @param lightweightPolling
+	 *            If true, polling uses git ls-remote against the servers
+	 *            instead of syncing the workspace.
+	 */
+	public void setLightweightPolling(final boolean lightweightPolling) {
+		this.lightweightPolling = lightweightPolling;
+	}
+
+	/**
+	 * Returns the regular expressions, one per line, matching the paths of
+	 * the projects whose changes trigger a build. By default, this is null
+	 * and every project is included.
+	 */
+	public String getIncludedPaths() {
+		return includedPaths;
+	}
+
+	/**
+	 * Sets the includedPaths option.
+	 *
+	 * @param includedPaths
+	 *            If not null, only changes to the projects whose paths match
+	 *            one of these regular expressions trigger a build
+	 */
+	public void setIncludedPaths(final String includedPaths) {
+		this.includedPaths = Util.fixEmptyAndTrim(includedPaths);
+	}
+
+	/**
+	 * Returns the regular expressions, one per line, matching the paths of
+	 * the projects whose changes don't trigger a build. By default, this is
+	 * null and no project is excluded.
+	 */
+	public String getExcludedPaths() {
+		return excludedPaths;
+	}
+
+	/**
+	 * Sets the excludedPaths option.
+	 *
+	 * @param excludedPaths
+	 *            If not null, changes to the projects whose paths match one
+	 *            of these regular expressions don't trigger a build
+	 */
+	public void setExcludedPaths(final String excludedPaths) {
+		this.excludedPaths = Util.fixEmptyAndTrim(excludedPaths);
+	}
+
+	/**
+	 * Returns true if sync should fetch from the network first, using
+	 * {@link #getJobs()} jobs, and then update the working trees, using
+	 * {@link #getLocalJobs()} jobs. By default, this is false and a single
+	 * sync does both.
+	 */
+	public boolean isTwoPhaseSync() {
+		return twoPhaseSync;
+	}
+
+	/**
+	 * Sets the twoPhaseSync option.
+	 *
+	 * @param twoPhaseSync
+	 *            If true, sync runs a network only phase followed by a local
+	 *            only phase
+	 */
+	public void setTwoPhaseSync(final boolean twoPhaseSync) {
+		this.twoPhaseSync = twoPhaseSync;
+	}
+
+	/**
+	 * Returns the number of jobs used to update the working trees in a two
+	 * phase sync. By default, this is 0 and the jobs parameter is not
+	 * specified.
+	 */
+	public int getLocalJobs() {
+		return localJobs;
+	}
+
+	/**
+	 * Sets the localJobs option.
+	 *
+	 * @param localJobs
+	 *            The number of concurrent jobs to use for the local phase of
+	 *            a two phase sync. If this is 0 or negative the jobs
+	 *            parameter is not specified.
+	 */
+	public void setLocalJobs(final int localJobs) {
+		this.localJobs = localJobs;
+	}
+
+	/**
+	 * Returns true if the number of jobs used to fetch should be chosen from
+	 * the agent's processors, its load and the sync times of previous
+	 * builds, instead of {@link #getJobs()}. By default, this is false.
+	 */
+	public boolean isAutoJobs() {
+		return autoJobs;
+	}
+
+	/**
+	 * Sets the autoJobs option.
+	 *
+	 * @param autoJobs
+	 *            If true, the number of jobs used to fetch is chosen for each
+	 *            build and the jobs parameter is ignored
+	 */
+	public void setAutoJobs(final boolean autoJobs) {
+		this.autoJobs = autoJobs;
+	}
+
+	/**
+	 * Returns true if sync should ask the manifest server for the revisions
+	 * of the projects. By default, this is false.
+	 */
+	public boolean isSmartSync() {
+		return smartSync;
+	}
+
+	/**
+	 * Sets the smartSync option.
+	 *
+	 * @param smartSync
+	 *            If true, sync gets the revisions of the projects from the
+	 *            manifest server
+	 */
+	public void setSmartSync(final boolean smartSync) {
+		this.smartSync = smartSync;
+	}
+
+	/**
+	 * Returns the tag the manifest server should resolve revisions for. By
+	 * default, this is null and the manifest server chooses the revisions
+	 * if smart sync is enabled.
+	 */
+	public String getSmartTag() {
+		return smartTag;
+	}
+
+	/**
+	 * Sets the smartTag option.
+	 *
+	 * @param smartTag
+	 *            If not null, sync gets the revisions of the projects for
+	 *            this tag from the manifest server
+	 */
+	public void setSmartTag(final String smartTag) {
+		this.smartTag = Util.fixEmptyAndTrim(smartTag);
+	}
+
+	/**
+	 * Returns true if sync should only fetch the branch named in the
+	 * manifest for each project. By default, this is false and every branch
+	 * is fetched.
+	 */
+	public boolean isCurrentBranch() {
+		return currentBranch;
+	}
+
+	/**
+	 * Sets the currentBranch option.
+	 *
+	 * @param currentBranch
+	 *            If true, sync only fetches the branch named in the manifest
+	 */
+	public void setCurrentBranch(final boolean currentBranch) {
+		this.currentBranch = currentBranch;
+	}
+
+	/**
+	 * Returns the number of commits of history to fetch. By default, this
+	 * is 0 and the full history is fetched.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Sets the depth option.
+	 *
+	 * @param depth
+	 *            The depth of the initial clone. If this is 0 or negative the
+	 *            full history is fetched.
+	 */
+	public void setDepth(final int depth) {
+		this.depth = depth;
+	}
+
+	/**
+	 * Returns true if sync should not fetch tags. By default, this is false.
+	 */
+	public boolean isNoTags() {
+		return noTags;
+	}
+
+	/**
+	 * Sets the noTags option.
+	 *
+	 * @param noTags
+	 *            If true, sync doesn't fetch tags
+	 */
+	public void setNoTags(final boolean noTags) {
+		this.noTags = noTags;
+	}
+
+	/**
+	 * Returns true if projects should be cloned without the objects the
+	 * clone filter excludes, which git then fetches when they are needed.
+	 * By default, this is false.
+	 */
+	public boolean isPartialClone() {
+		return partialClone;
+	}
+
+	/**
+	 * Sets the partialClone option.
+	 *
+	 * @param partialClone
+	 *            If true, projects are partially cloned
+	 */
+	public void setPartialClone(final boolean partialClone) {
+		this.partialClone = partialClone;
+	}
+
+	/**
+	 * Returns the filter used for partial clones. By default, this is null
+	 * and repo's default, blob:none, is used.
+	 */
+	public String getCloneFilter() {
+		return cloneFilter;
+	}
+
+	/**
+	 * Sets the cloneFilter option.
+	 *
+	 * @param cloneFilter
+	 *            The filter of partial clones, such as blob:none. If null,
+	 *            repo's default is used.
+	 */
+	public void setCloneFilter(final String cloneFilter) {
+		this.cloneFilter = Util.fixEmptyAndTrim(cloneFilter);
+	}
+
+	/**
+	 * Returns the manifest groups to sync, as passed to repo init -g. By
+	 * default, this is null and repo syncs its default group.
+	 */
+	public String getManifestGroup() {
+		return manifestGroup;
+	}
+
+	/**
+	 * Sets the manifestGroup option.
+	 *
+	 * @param manifestGroup
+	 *            If not null, only the projects in these manifest groups are
+	 *            synced
+	 */
+	public void setManifestGroup(final String manifestGroup) {
+		this.manifestGroup = Util.fixEmptyAndTrim(manifestGroup);
+	}
+
+	/**
+	 * Returns the names or paths of the projects to sync, separated by
+	 * whitespace. By default, this is null and every project in the
+	 * manifest groups is synced.
+	 */
+	public String getProjectList() {
+		return projectList;
+	}
+
+	/**
+	 * Sets the projectList option.
+	 *
+	 * @param projectList
+	 *            If not null, only these projects are synced
+	 */
+	public void setProjectList(final String projectList) {
+		this.projectList = Util.fixEmptyAndTrim(projectList);
+	}
+
+	/**
+	 * Returns how the checkout is cleaned: "all", "changed" or "wipe". By
+	 * default, this is null and the checkout isn't cleaned.
+	 */
+	public String getCleanStrategy() {
+		return cleanStrategy;
+	}
+
+	/**
+	 * Sets the cleanStrategy option.
+	 *
+	 * @param cleanStrategy
+	 *            How the checkout is cleaned: "all" removes untracked files
+	 *            from every project after sync, "changed" only from the
+	 *            projects which changed since the last build, and "wipe"
+	 *            deletes the checkout before sync. Anything else doesn't
+	 *            clean.
+	 */
+	public void setCleanStrategy(final String cleanStrategy) {
+		if (CLEAN_ALL.equals(cleanStrategy)
+				|| CLEAN_CHANGED.equals(cleanStrategy)
+				|| CLEAN_WIPE.equals(cleanStrategy)) {
+			this.cleanStrategy = cleanStrategy;
+		} else {
+			this.cleanStrategy = null;
+		}
+	}
+
+	/**
+	 * Returns the filter selecting the projects this job syncs.
+	 */
+	ProjectFilter getProjectFilter() {
+		return new ProjectFilter(manifestGroup, projectList);
+	}
+
+	/**
+	 * Returns true if the revisions come from the manifest server, either
+	 * because smart sync is enabled or because a smart tag is set.
+	 */
+	private boolean usesManifestServer() {
+		return smartSync || smartTag != null;
+	}
+
 	/**
 	 * The constructor takes in user parameters and sets them. Each job using
-	 * the RepoSCM will call this constructor.
+	 * the RepoSCM will call this constructor. The other options are set
+	 * with their setters, see {@link DescriptorImpl#newInstance}.
 	 *
 	 * @param manifestRepositoryUrl
 	 *            The URL for the manifest repository.
@@ -183,6 +650,22 @@ public class RepoScm extends SCM {
 		return null;
 	}
 
+	@Override
+	public boolean requiresWorkspaceForPolling() {
+		return !isLightweight();
+	}
+
+	/**
+	 * Returns true if polling doesn't sync the workspace. Only the manifest
+	 * server knows the revisions used by smart sync, so it always syncs.
+	 * Pooled workspaces are empty between builds, so they always poll
+	 * without syncing.
+	 */
+	private boolean isLightweight() {
+		return (lightweightPolling || pooledWorkspace)
+				&& !usesManifestServer();
+	}
+
 	@Override
 	protected PollingResult compareRemoteRevisionWith(
 			final AbstractProject<?, ?> project, final Launcher launcher,
@@ -198,35 +681,118 @@ public class RepoScm extends SCM {
 			}
 		}
 
-		FilePath repoDir;
-		if (destinationDir != null) {
-			repoDir = workspace.child(destinationDir);
-			if (!repoDir.isDirectory()) {
-				repoDir.mkdirs();
+		final long connected = RefUpdatedListener.getConnectedSince();
+		if (getDescriptor().isSkipPollingWithEvents() && connected > 0
+				&& project.getLastBuild() != null
+				&& connected < project.getLastBuild().getTimeInMillis()
+				&& myBaseline instanceof RevisionState
+				&& ProjectIndex.get().isIndexed(project.getFullName(), this,
+						(RevisionState) myBaseline)) {
+			// Nothing was missed since the last build started, and every
+			// project of that build is indexed: any update since then has
+			// already scheduled a build.
+			listener.getLogger().println("Changes are detected from the "
+					+ "Gerrit event stream, skipping polling");
+			return new PollingResult(myBaseline, myBaseline, Change.NONE);
+		}
+
+		final RevisionState currentState;
+		if (isLightweight()) {
+			final RevisionState previousState;
+			if (myBaseline instanceof RevisionState) {
+				previousState = (RevisionState) myBaseline;
+			} else {
+				previousState = null;
+			}
+			currentState = getRemoteState(previousState, listener);
+			if (currentState == null) {
+				// Some error occurred, try a build now so it gets logged.
+				return new PollingResult(myBaseline, myBaseline,
+						Change.INCOMPARABLE);
 			}
 		} else {
-			repoDir = workspace;
-		}
+			FilePath repoDir;
+			if (destinationDir != null) {
+				repoDir = workspace.child(destinationDir);
+				if (!repoDir.isDirectory()) {
+					repoDir.mkdirs();
+				}
+			} else {
+				repoDir = workspace;
+			}
 
-		if (!checkoutCode(launcher, repoDir, listener.getLogger())) {
-			// Some error occurred, try a build now so it gets logged.
-			return new PollingResult(myBaseline, myBaseline,
-					Change.INCOMPARABLE);
-		}
+			if (!usesManifestServer() && myBaseline instanceof RevisionState
+					&& isUnchanged(launcher, repoDir,
+							(RevisionState) myBaseline, listener)) {
+				listener.getLogger().println("The manifest hasn't changed "
+						+ "and every project is pinned to a SHA-1 or tag");
+				return new PollingResult(myBaseline, myBaseline,
+						Change.NONE);
+			}
 
-		final RevisionState currentState =
-				new RevisionState(getStaticManifest(launcher, repoDir,
-						listener.getLogger()), manifestBranch,
-						listener.getLogger());
+			final int syncJobs =
+					getSyncJobs(launcher, project.getLastBuild(), listener
+							.getLogger());
+			if (!checkoutCode(launcher, repoDir, listener.getLogger(),
+					null, syncJobs, getReference(launcher, project
+							.getLastBuiltOn(), listener.getLogger(),
+							syncJobs))) {
+				// Some error occurred, try a build now so it gets logged.
+				return new PollingResult(myBaseline, myBaseline,
+						Change.INCOMPARABLE);
+			}
+
+			currentState =
+					new RevisionState(getSyncedManifest(launcher, repoDir,
+							listener.getLogger()), getManifestCommit(
+							launcher, repoDir), manifestBranch,
+							getProjectFilter(), null);
+		}
 		final Change change;
 		if (currentState.equals(myBaseline)) {
 			change = Change.NONE;
+		} else if (myBaseline instanceof RevisionState) {
+			change = getChange(currentState, (RevisionState) myBaseline,
+					listener.getLogger());
 		} else {
 			change = Change.SIGNIFICANT;
 		}
 		return new PollingResult(myBaseline, currentState, change);
 	}
 
+	/**
+	 * Logs the projects which changed since the baseline, and decides
+	 * whether they are worth a build.
+	 */
+	private Change getChange(final RevisionState currentState,
+			final RevisionState baseline, final PrintStream logger) {
+		final List<ProjectState> changes = currentState.whatChanged(baseline);
+		if (changes.isEmpty()) {
+			// Only the manifest branch differs.
+			return Change.SIGNIFICANT;
+		}
+		final PathFilter filter = new PathFilter(includedPaths, excludedPaths);
+		boolean significant = false;
+		for (final ProjectState previous : changes) {
+			final String path = previous.getPath();
+			final ProjectState current = currentState.getProject(path);
+			final boolean included = filter.isIncluded(path);
+			significant |= included;
+			final String suffix = included ? "" : " (excluded)";
+			if (previous.getRevision() == null) {
+				logger.println("Added: " + path + " at "
+						+ current.getRevision() + suffix);
+			} else if (current == null) {
+				logger.println("Removed: " + path + suffix);
+			} else {
+				logger.println("Changed: " + path + " "
+						+ previous.getRevision() + " -> "
+						+ current.getRevision() + suffix);
+			}
+		}
+		return significant ? Change.SIGNIFICANT : Change.INSIGNIFICANT;
+	}
+
 	@Override
 	public boolean checkout(
 			@SuppressWarnings("rawtypes") final AbstractBuild build,
@@ -244,73 +810,450 @@ public class RepoScm extends SCM {
 			repoDir = workspace;
 		}
 
-		if (!checkoutCode(launcher, repoDir, listener.getLogger())) {
+		if (CLEAN_WIPE.equals(cleanStrategy)) {
+			// Keep .repo, so that init, the mirror and the pool still work:
+			// repo sync checks the projects out again from it.
+			listener.getLogger().println("Wiping out " + repoDir
+					+ ", keeping .repo");
+			for (final FilePath child : repoDir.list()) {
+				if (!child.getName().equals(".repo")) {
+					child.deleteRecursive();
+				}
+			}
+		}
+
+		final Node node = build.getBuiltOn();
+		if (pooledWorkspace && node != null && node.getRootPath() != null) {
+			if (isLightweight()) {
+				final WorkspacePool.Lease lease =
+						WorkspacePool.get().lease(node.getRootPath(),
+								node.getNodeName(), this,
+								getPoolTarget(build, listener), repoDir,
+								listener.getLogger());
+				if (lease != null) {
+					build.addAction(lease);
+				}
+			} else if (!repoDir.child(".repo").isDirectory()) {
+				// Polling would sync a full checkout in the emptied
+				// workspace.
+				listener.getLogger().println("Pooled workspaces need "
+						+ "lightweight polling, which smart sync can't "
+						+ "use: not pooling");
+			}
+		}
+		FilePath golden = null;
+		if (seedWorkspace && node != null && node.getRootPath() != null
+				&& !repoDir.child(".repo").isDirectory()) {
+			golden =
+					GoldenWorkspace.getGoldenDir(node.getRootPath(), this);
+			GoldenWorkspace.seed(launcher, node.getNodeName(), golden,
+					repoDir, listener.getLogger());
+		}
+
+		final RevisionState checkoutState = readCheckoutState(repoDir);
+		final SyncReport report = new SyncReport();
+		report.setJobs(getSyncJobs(launcher, build.getPreviousBuild(),
+				listener.getLogger()));
+		build.addAction(report);
+		if (!checkoutCode(launcher, repoDir, listener.getLogger(), report,
+				report.getJobs(), getReference(launcher, node, listener
+						.getLogger(), report.getJobs()))) {
 			return false;
 		}
 		final String manifest =
-				getStaticManifest(launcher, repoDir, listener.getLogger());
+				getSyncedManifest(launcher, repoDir, listener.getLogger());
 		final RevisionState currentState =
-				new RevisionState(manifest, manifestBranch,
-						listener.getLogger());
+				new RevisionState(manifest, getManifestCommit(launcher,
+						repoDir), manifestBranch, getProjectFilter(), listener
+						.getLogger());
+		repoDir.child(".repo").child(STATE_FILE).write(manifest, "UTF-8");
+		if (golden != null) {
+			// The workspace started without a checkout, so it holds no
+			// build output yet.
+			final List<String> localSync = new ArrayList<String>();
+			localSync.add(getDescriptor().getExecutable());
+			localSync.add("sync");
+			localSync.addAll(getLocalPhase().getOptions());
+			GoldenWorkspace.save(launcher, node, golden, repoDir, localSync,
+					listener.getLogger(), getDescriptor()
+							.getGoldenRefreshInterval() * 3600000L);
+		}
 		build.addAction(currentState);
+		ProjectIndex.get().update(build.getProject().getFullName(), this,
+				currentState);
 		final RevisionState previousState =
 				getLastState(build.getPreviousBuild());
 
 		ChangeLog.saveChangeLog(currentState, previousState, changelogFile,
 				launcher, repoDir);
 		build.addAction(new TagAction(build));
+		final List<String> cleanPaths =
+				getCleanPaths(currentState, checkoutState);
+		if (cleanPaths != null) {
+			if (cleanPaths.isEmpty()) {
+				listener.getLogger().println("No changed projects to clean");
+			} else {
+				runForall(repoDir, listener.getLogger(), cleanPaths, "git",
+						"clean", "-fdx");
+			}
+		}
+		if (getDescriptor().isGcAfterSync()) {
+			runForall(repoDir, listener.getLogger(),
+					getPaths(currentState), "git", "gc", "--auto");
+		}
 		return true;
 	}
 
-	private int doSync(final Launcher launcher, final FilePath workspace,
-			final OutputStream logger)
-		throws IOException, InterruptedException {
-		final List<String> commands = new ArrayList<String>(4);
-		debug.log(Level.FINE, "Syncing out code in: " + workspace.getName());
-		commands.clear();
-		commands.add(getDescriptor().getExecutable());
-		commands.add("sync");
-		commands.add("-d");
-		if (jobs > 0) {
-			commands.add("--jobs=" + jobs);
-		}
-		int returnCode =
-				launcher.launch().stdout(logger).pwd(workspace)
-						.cmds(commands).join();
-		return returnCode;
+	/**
+	 * Returns the state a build is going to sync, to choose the pooled
+	 * checkout needing the smallest sync. It is resolved like a lightweight
+	 * poll, or taken from the previous build if it can't be.
+	 */
+	private RevisionState getPoolTarget(final AbstractBuild<?, ?> build,
+			final TaskListener listener) throws IOException,
+			InterruptedException {
+		final RevisionState previousState =
+				getLastState(build.getPreviousBuild());
+		if (usesManifestServer()) {
+			return previousState;
+		}
+		final RevisionState target = getRemoteState(previousState, listener);
+		return target == null ? previousState : target;
 	}
 
-	private boolean checkoutCode(final Launcher launcher,
-			final FilePath workspace, final OutputStream logger)
-			throws IOException, InterruptedException {
-		final List<String> commands = new ArrayList<String>(4);
+	/**
+	 * Returns the number of jobs to fetch with, choosing it if automatic
+	 * parallelism is enabled.
+	 */
+	private int getSyncJobs(final Launcher launcher,
+			final Run<?, ?> lastBuild, final PrintStream logger)
+			throws InterruptedException {
+		if (autoJobs) {
+			return JobTuner.chooseJobs(launcher, lastBuild, logger);
+		}
+		return jobs;
+	}
 
-		debug.log(Level.INFO, "Checking out code in: " + workspace.getName());
+	private int doSync(final Launcher launcher, final FilePath workspace,
+			final PrintStream logger, final SyncReport report,
+			final int syncJobs)
+		throws IOException, InterruptedException {
+		debug.log(Level.FINE, "Syncing out code in: " + workspace.getName());
+		return runSyncPhases(launcher, workspace, logger, report, syncJobs,
+				getSyncPhases());
+	}
+
+	/**
+	 * Returns the runs of repo sync of a normal sync.
+	 */
+	List<SyncPhase> getSyncPhases() {
+		final List<SyncPhase> phases = new ArrayList<SyncPhase>(2);
+		final List<String> options = new ArrayList<String>();
+		if (!twoPhaseSync) {
+			options.add("-d");
+			addFetchOptions(options);
+			addSmartSyncOptions(options);
+			addProjects(options);
+			phases.add(new SyncPhase("sync", false, options));
+			return phases;
+		}
+		options.add("-n");
+		addFetchOptions(options);
+		addSmartSyncOptions(options);
+		addProjects(options);
+		phases.add(new SyncPhase("network", false, options));
+		phases.add(getLocalPhase());
+		return phases;
+	}
+
+	/**
+	 * Returns the runs of repo sync retrying a failed sync. The failed
+	 * projects are fetched again, then every project is checked out: repo
+	 * doesn't check out anything when a fetch fails, so the projects which
+	 * were fetched are still at their previous revision. Everything is
+	 * synced again if the failed projects are unknown.
+	 *
+	 * @param failed
+	 *            The names or paths of the projects which failed
+	 */
+	List<SyncPhase> getRetryPhases(final Collection<String> failed) {
+		if (failed.isEmpty()) {
+			return getSyncPhases();
+		}
+		final List<SyncPhase> phases = new ArrayList<SyncPhase>(2);
+		final List<String> options = new ArrayList<String>();
+		options.add("-n");
+		addFetchOptions(options);
+		if (usesManifestServer()) {
+			// Stay on the revisions the manifest server gave the first sync.
+			options.add("--manifest-name=" + SMART_SYNC_MANIFEST);
+		}
+		options.addAll(failed);
+		phases.add(new SyncPhase("retry", false, options));
+		phases.add(getLocalPhase());
+		return phases;
+	}
+
+	/**
+	 * Returns the run of repo sync checking out every project from what was
+	 * already fetched.
+	 */
+	private SyncPhase getLocalPhase() {
+		final List<String> options = new ArrayList<String>();
+		options.add("-l");
+		options.add("-d");
+		if (usesManifestServer()) {
+			// Check out the revisions the network phase got from the
+			// manifest server, without asking it again.
+			options.add("--manifest-name=" + SMART_SYNC_MANIFEST);
+		}
+		addProjects(options);
+		return new SyncPhase("local", true, options);
+	}
+
+	/**
+	 * Runs some phases of a sync in order, stopping at the first failure.
+	 */
+	private int runSyncPhases(final Launcher launcher,
+			final FilePath workspace, final PrintStream logger,
+			final SyncReport report, final int syncJobs,
+			final List<SyncPhase> phases)
+		throws IOException, InterruptedException {
+		for (final SyncPhase phase : phases) {
+			final int returnCode =
+					doSyncPhase(launcher, workspace, logger, report, phase
+							.getName(), phase.isLocal() ? localJobs : syncJobs,
+							phase.getOptions());
+			if (returnCode != 0) {
+				return returnCode;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Syncs the projects whose wanted revision is already in the managed
+	 * mirror from the mirror, without going to their servers, then syncs
+	 * the other projects normally. If the wanted revisions couldn't be
+	 * resolved, everything is synced normally.
+	 *
+	 * @param target
+	 *            The wanted revisions, resolved like a poll and shared with
+	 *            the polls of jobs using the same manifest, or null
+	 */
+	// CS IGNORE ParameterNumber FOR NEXT 4 LINES. REASON: sync state.
+	private int syncFromMirror(final Launcher launcher,
+			final FilePath workspace, final PrintStream logger,
+			final SyncReport report, final int syncJobs, final String mirror,
+			final RevisionState target)
+		throws IOException, InterruptedException {
+		if (target == null) {
+			logger.println("Unable to resolve the wanted revisions, "
+					+ "syncing every project from the servers");
+			return doSync(launcher, workspace, logger, report, syncJobs);
+		}
+		final Map<String, String> names = new HashMap<String, String>();
+		final Map<String, String> revisions = new HashMap<String, String>();
+		for (final ProjectState project : target.getProjects()) {
+			names.put(project.getPath(), project.getServerPath());
+			revisions.put(project.getPath(), project.getRevision());
+		}
+		final List<String> local =
+				workspace.act(new MirrorIndex.Check(mirror, names, revisions));
+		logger.println("The mirror has the revisions of " + local.size()
+				+ " of " + names.size() + " projects");
+		if (local.isEmpty()) {
+			return doSync(launcher, workspace, logger, report, syncJobs);
+		}
+
+		final Map<String, String> localNames = new HashMap<String, String>();
+		final Map<String, String> branches = new HashMap<String, String>();
+		for (final String path : local) {
+			localNames.put(path, names.get(path));
+			final String branch = MirrorIndex.getBranch(target.getProject(
+					path).getUpstream());
+			if (branch != null) {
+				branches.put(path, branch);
+			}
+		}
+		final DescriptorImpl descriptor = getDescriptor();
+		final ParallelForall.Result fetched =
+				runForall(workspace, logger, new MirrorIndex.Fetch(mirror,
+						localNames, revisions, branches, descriptor
+								.getForallThreads(), descriptor
+								.getForallTimeout() * 1000L));
+		// Projects which couldn't be fetched from the mirror, or whose
+		// branch isn't at the wanted revision, go to their servers instead.
+		local.removeAll(fetched.getFailures().keySet());
+		final List<String> verified =
+				workspace.act(new MirrorIndex.Verify(local, revisions,
+						branches));
+		if (verified.size() < local.size()) {
+			logger.println((local.size() - verified.size())
+					+ " projects fetched from the mirror aren't at the "
+					+ "wanted revision, syncing them from the servers");
+		}
+		local.retainAll(verified);
+		final List<String> options = new ArrayList<String>();
+		int returnCode = 0;
+		if (!local.isEmpty()) {
+			options.add("-l");
+			options.add("-d");
+			options.addAll(local);
+			returnCode =
+					doSyncPhase(launcher, workspace, logger, report,
+							"mirror", localJobs, options);
+		}
+		final List<String> remote = new ArrayList<String>(names.keySet());
+		remote.removeAll(local);
+		// Projects a partial poll couldn't resolve go to their servers too.
+		remote.addAll(target.getUnresolvedPaths());
+		if (returnCode != 0 || remote.isEmpty()) {
+			return returnCode;
+		}
+		options.clear();
+		options.add("-d");
+		addFetchOptions(options);
+		options.addAll(remote);
+		return doSyncPhase(launcher, workspace, logger, report, "sync",
+				syncJobs, options);
+	}
 
+	private void addProjects(final List<String> options) {
+		if (projectList != null) {
+			options.addAll(Arrays.asList(projectList.split("\\s+")));
+		}
+	}
+
+	private void addFetchOptions(final List<String> options) {
+		if (currentBranch) {
+			options.add("-c");
+		}
+		if (noTags) {
+			options.add("--no-tags");
+		}
+	}
+
+	private void addSmartSyncOptions(final List<String> options) {
+		if (smartTag != null) {
+			options.add("--smart-tag=" + smartTag);
+		} else if (smartSync) {
+			options.add("-s");
+		}
+	}
+
+	/**
+	 * Runs repo sync with the specified options, and records how long it
+	 * took.
+	 */
+	private int doSyncPhase(final Launcher launcher,
+			final FilePath workspace, final PrintStream logger,
+			final SyncReport report, final String name,
+			final int phaseJobs, final List<String> options)
+		throws IOException, InterruptedException {
+		final List<String> commands = new ArrayList<String>(4);
 		commands.add(getDescriptor().getExecutable());
-		commands.add("init");
-		commands.add("-u");
-		commands.add(manifestRepositoryUrl);
+		commands.add("sync");
+		commands.addAll(options);
+		if (phaseJobs > 0) {
+			commands.add("--jobs=" + phaseJobs);
+		}
+		final long start = System.currentTimeMillis();
+		final int returnCode =
+				launcher.launch().stdout(logger).pwd(workspace)
+						.cmds(commands).join();
+		final long duration = System.currentTimeMillis() - start;
+		logger.println("Repo " + name + " took "
+				+ Util.getTimeSpanString(duration));
+		if (report != null) {
+			report.addPhase(name, duration, returnCode);
+		}
+		return returnCode;
+	}
+
+	/**
+	 * Returns the arguments of repo init, which also identify the settings
+	 * a workspace was initialized with.
+	 *
+	 * @param reference
+	 *            The mirror directory to reference, or null
+	 */
+	List<String> getInitOptions(final String reference) {
+		final List<String> options = new ArrayList<String>();
+		options.add("init");
+		options.add("-u");
+		options.add(manifestRepositoryUrl);
 		if (manifestBranch != null) {
-			commands.add("-b");
-			commands.add(manifestBranch);
+			options.add("-b");
+			options.add(manifestBranch);
 		}
 		if (manifestFile != null) {
-			commands.add("-m");
-			commands.add(manifestFile);
+			options.add("-m");
+			options.add(manifestFile);
 		}
-		if (mirrorDir != null) {
-			commands.add("--reference=" + mirrorDir);
+		if (reference != null) {
+			options.add("--reference=" + reference);
+		}
+		if (manifestGroup != null) {
+			options.add("-g");
+			options.add(manifestGroup);
+		}
+		if (depth > 0) {
+			options.add("--depth=" + depth);
+		}
+		if (partialClone) {
+			options.add("--partial-clone");
+			if (cloneFilter != null) {
+				options.add("--clone-filter=" + cloneFilter);
+			}
 		}
 		if (repoUrl != null) {
-			commands.add("--repo-url=" + repoUrl);
-			commands.add("--no-repo-verify");
+			options.add("--repo-url=" + repoUrl);
+			options.add("--no-repo-verify");
 		}
-		int returnCode =
-				launcher.launch().stdout(logger).pwd(workspace)
-						.cmds(commands).join();
-		if (returnCode != 0) {
-			return false;
+		return options;
+	}
+
+	private boolean checkoutCode(final Launcher launcher,
+			final FilePath workspace, final PrintStream logger,
+			final SyncReport report, final int syncJobs,
+			final String reference) throws IOException,
+			InterruptedException {
+		debug.log(Level.INFO, "Checking out code in: " + workspace.getName());
+
+		final List<String> initOptions = getInitOptions(reference);
+		final List<String> commands = new ArrayList<String>();
+		commands.add(getDescriptor().getExecutable());
+		commands.addAll(initOptions);
+		// Everything but the executable identifies the configuration.
+		final String initArgs = Util.join(initOptions, "\n");
+		final FilePath initMarker = workspace.child(".repo").child(INIT_MARKER);
+		final boolean fromMirror =
+				managedMirror && reference != null && !usesManifestServer();
+		RevisionState target = null;
+		if (fromMirror) {
+			target = getSharedRemoteState(null, new StreamTaskListener(logger));
+		}
+		int returnCode;
+		// Syncing from the mirror skips the fetch of the manifest
+		// repository, so init has to update it unless it is already at the
+		// wanted commit.
+		if (isInitialized(workspace, initMarker, initArgs)
+				&& (target == null || isManifestAt(launcher, workspace,
+						target.getManifestCommit()))) {
+			logger.println("The workspace is already initialized with "
+					+ "these settings, skipping repo init");
+		} else {
+			if (initMarker.exists()) {
+				initMarker.delete();
+			}
+			returnCode =
+					launcher.launch().stdout(logger).pwd(workspace)
+							.cmds(commands).join();
+			if (returnCode != 0) {
+				return false;
+			}
+			initMarker.write(initArgs, "UTF-8");
 		}
 		if (workspace != null) {
 			FilePath rdir = workspace.child(".repo");
@@ -322,25 +1265,349 @@ public class RepoScm extends SCM {
 			}
 		}
 
-		returnCode = doSync(launcher, workspace, logger);
-		if (returnCode != 0) {
-			debug.log(Level.WARNING, "Sync failed. Resetting repository");
-			commands.clear();
-			commands.add(getDescriptor().getExecutable());
-			commands.add("forall");
-			commands.add("-c");
-			commands.add("git reset --hard");
-			launcher.launch().stdout(logger).pwd(workspace).cmds(commands)
-				.join();
-			returnCode = doSync(launcher, workspace, logger);
-			if (returnCode != 0) {
+		final ByteArrayOutputStream syncOutput = new ByteArrayOutputStream();
+		final PrintStream syncLogger =
+				new PrintStream(new ForkOutputStream(logger, syncOutput), true);
+		if (fromMirror) {
+			returnCode =
+					syncFromMirror(launcher, workspace, syncLogger, report,
+							syncJobs, reference, target);
+		} else {
+			returnCode =
+					doSync(launcher, workspace, syncLogger, report, syncJobs);
+		}
+		final List<Long> delays =
+				getRetryDelays(getDescriptor().getSyncRetries(),
+						getDescriptor().getSyncRetryDelay());
+		int retries = 0;
+		while (returnCode != 0) {
+			if (retries >= delays.size()) {
 				return false;
 			}
+			final long delay = delays.get(retries).longValue();
+			retries++;
+			final Set<String> failed =
+					SyncFailureParser.parse(syncOutput.toString("UTF-8"));
+			syncOutput.reset();
+			logger.println("Sync failed, retrying in "
+					+ Util.getTimeSpanString(delay) + " (" + retries + " of "
+					+ delays.size() + ")");
+			Thread.sleep(delay);
+			if (failed.isEmpty()) {
+				debug.log(Level.WARNING, "Sync failed. Resetting repository");
+				logger.println("Unable to tell which projects failed, "
+						+ "resetting every project");
+				resetProjects(launcher, workspace, logger, null);
+			} else {
+				logger.println("Recovering " + failed.size()
+						+ " failed projects: " + failed);
+				if (report != null) {
+					report.addRecoveredProjects(failed);
+				}
+				resetProjects(launcher, workspace, logger, failed);
+			}
+			returnCode =
+					runSyncPhases(launcher, workspace, syncLogger, report,
+							syncJobs, getRetryPhases(failed));
 		}
 		return true;
 	}
 
+	/**
+	 * Returns how long to wait before each retry of a failed sync. The first
+	 * delay doubles with each retry, up to {@link #MAX_RETRY_DELAY}.
+	 *
+	 * @param retries
+	 *            How many times a failed sync is retried
+	 * @param firstDelay
+	 *            How long, in seconds, to wait before the first retry
+	 * @return the delays in milliseconds, one per retry
+	 */
+	static List<Long> getRetryDelays(final int retries,
+			final int firstDelay) {
+		final List<Long> delays = new ArrayList<Long>();
+		long delay = Math.min(firstDelay * 1000L, MAX_RETRY_DELAY);
+		for (int i = 0; i < retries; i++) {
+			delays.add(Long.valueOf(delay));
+			delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+		}
+		return delays;
+	}
+
+	/**
+	 * Returns true if the manifest repository of the workspace is checked
+	 * out at a commit.
+	 */
+	private boolean isManifestAt(final Launcher launcher,
+			final FilePath workspace, final String commit)
+			throws IOException, InterruptedException {
+		if (commit == null) {
+			return false;
+		}
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		final int returnCode =
+				launcher.launch().stdout(output).pwd(
+						workspace.child(".repo").child("manifests")).cmds(
+						"git", "rev-parse", "HEAD").join();
+		return returnCode == 0
+				&& output.toString("UTF-8").trim().equals(commit);
+	}
+
+	/**
+	 * Returns the mirror directory to reference, after refreshing the
+	 * managed mirror of the node if the job uses one. The mirror directory
+	 * is used when the node is unknown or its mirror couldn't be created.
+	 *
+	 * @param node
+	 *            The node holding the workspace, or null
+	 */
+	private String getReference(final Launcher launcher, final Node node,
+			final PrintStream logger, final int syncJobs)
+			throws IOException, InterruptedException {
+		if (!managedMirror || node == null || node.getRootPath() == null) {
+			return mirrorDir;
+		}
+		final FilePath mirror =
+				MirrorManager.getMirrorDir(node.getRootPath(),
+						manifestRepositoryUrl, manifestBranch, manifestFile);
+		final List<String> init = new ArrayList<String>();
+		init.add(getDescriptor().getExecutable());
+		init.add("init");
+		init.add("-u");
+		init.add(manifestRepositoryUrl);
+		if (manifestBranch != null) {
+			init.add("-b");
+			init.add(manifestBranch);
+		}
+		if (manifestFile != null) {
+			init.add("-m");
+			init.add(manifestFile);
+		}
+		init.add("--mirror");
+		final List<String> sync = new ArrayList<String>();
+		sync.add(getDescriptor().getExecutable());
+		sync.add("sync");
+		if (syncJobs > 0) {
+			sync.add("--jobs=" + syncJobs);
+		}
+		if (MirrorManager.refresh(launcher, node.getNodeName(), mirror,
+				logger, init, sync,
+				getDescriptor().getMirrorRefreshInterval() * 60000L)) {
+			return mirror.getRemote();
+		}
+		return mirrorDir;
+	}
+
+	/**
+	 * Discards local changes in some projects, or in every project if none
+	 * are specified.
+	 */
+	private void resetProjects(final Launcher launcher,
+			final FilePath workspace, final PrintStream logger,
+			final Collection<String> projects)
+			throws IOException, InterruptedException {
+		final List<String> paths =
+				listProjectPaths(launcher, workspace, projects);
+		if (paths != null) {
+			runForall(workspace, logger, paths, "git", "reset", "--hard");
+		}
+	}
+
+	/**
+	 * Returns the paths of some projects of the checkout, or of every
+	 * project if none are specified, using repo list.
+	 *
+	 * @param projects
+	 *            The names or paths of the projects, or null
+	 * @return the paths, or null if repo list failed
+	 */
+	private List<String> listProjectPaths(final Launcher launcher,
+			final FilePath workspace, final Collection<String> projects)
+			throws IOException, InterruptedException {
+		final List<String> commands = new ArrayList<String>();
+		commands.add(getDescriptor().getExecutable());
+		commands.add("list");
+		if (projects != null) {
+			commands.addAll(projects);
+		}
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		final int returnCode =
+				launcher.launch().stdout(output).pwd(workspace).cmds(commands)
+						.join();
+		if (returnCode != 0) {
+			debug.log(Level.WARNING, "repo list failed: " + commands);
+			return null;
+		}
+		final List<String> paths = new ArrayList<String>();
+		for (final String line : output.toString("UTF-8").split("\n")) {
+			// Each line is "path : name".
+			final int separator = line.indexOf(" : ");
+			if (separator > 0) {
+				paths.add(line.substring(0, separator).trim());
+			}
+		}
+		return paths;
+	}
+
+	/**
+	 * Runs a command in many projects at once, on the machine holding the
+	 * workspace, and logs the failures.
+	 *
+	 * @return the aggregated results
+	 */
+	private ParallelForall.Result runForall(final FilePath workspace,
+			final PrintStream logger, final List<String> paths,
+			final String... command) throws IOException,
+			InterruptedException {
+		final DescriptorImpl descriptor = getDescriptor();
+		return runForall(workspace, logger, new ParallelForall(paths,
+				descriptor.getForallThreads(),
+				descriptor.getForallTimeout() * 1000L, command));
+	}
+
+	/**
+	 * Runs a ParallelForall on the machine holding the workspace, and logs
+	 * the failures.
+	 *
+	 * @return the aggregated results
+	 */
+	private ParallelForall.Result runForall(final FilePath workspace,
+			final PrintStream logger, final ParallelForall forall)
+			throws IOException, InterruptedException {
+		final ParallelForall.Result result = workspace.act(forall);
+		logger.println("Ran " + forall.getCommandLine() + " in "
+				+ result.getProjectCount() + " projects in "
+				+ Util.getTimeSpanString(result.getDuration()));
+		for (final Map.Entry<String, String> failure : result.getFailures()
+				.entrySet()) {
+			logger.println(forall.getCommandLine() + " failed in "
+					+ failure.getKey() + ": " + failure.getValue());
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the state the checkout of a workspace was last synced to, and
+	 * forgets it until the coming sync succeeds.
+	 *
+	 * @param repoDir
+	 *            The top of the checkout
+	 * @return the state, or null if it is unknown
+	 */
+	RevisionState readCheckoutState(final FilePath repoDir)
+			throws IOException, InterruptedException {
+		final FilePath stateFile = repoDir.child(".repo").child(STATE_FILE);
+		if (!stateFile.exists()) {
+			return null;
+		}
+		final RevisionState state =
+				new RevisionState(stateFile.readToString(), null,
+						manifestBranch, getProjectFilter(), null);
+		stateFile.delete();
+		return state;
+	}
+
+	/**
+	 * Returns the paths of the projects the clean strategy cleans after a
+	 * sync. Without a previous state, every project counts as changed.
+	 *
+	 * @param currentState
+	 *            The state which was just synced
+	 * @param previousState
+	 *            The state the checkout had before the sync, or null if it
+	 *            is unknown
+	 * @return the paths, or null if nothing is cleaned after sync
+	 */
+	List<String> getCleanPaths(final RevisionState currentState,
+			final RevisionState previousState) {
+		if (CLEAN_ALL.equals(cleanStrategy)
+				|| (CLEAN_CHANGED.equals(cleanStrategy)
+						&& previousState == null)) {
+			return getPaths(currentState);
+		}
+		if (!CLEAN_CHANGED.equals(cleanStrategy)) {
+			return null;
+		}
+		final List<String> paths = new ArrayList<String>();
+		for (final ProjectState project : currentState
+				.whatChanged(previousState)) {
+			// Removed projects are gone from the checkout, and are skipped.
+			if (currentState.getProject(project.getPath()) != null) {
+				paths.add(project.getPath());
+			}
+		}
+		return paths;
+	}
+
+	/**
+	 * Returns the paths of the projects of a state.
+	 */
+	private static List<String> getPaths(final RevisionState state) {
+		final List<String> paths = new ArrayList<String>();
+		for (final ProjectState project : state.getProjects()) {
+			paths.add(project.getPath());
+		}
+		return paths;
+	}
+
+	/**
+	 * Returns true if repo init already ran successfully in the workspace
+	 * with the same arguments. Repo sync fetches the manifest repository
+	 * itself, so running init again would only redo that fetch.
+	 */
+	static boolean isInitialized(final FilePath workspace,
+			final FilePath initMarker, final String initArgs)
+			throws IOException, InterruptedException {
+		return initMarker.exists()
+				&& workspace.child(".repo").child("manifests").isDirectory()
+				&& workspace.child(".repo").child("manifest.xml").exists()
+				&& initArgs.equals(initMarker.readToString());
+	}
+
+	/**
+	 * Returns the static manifest of the checkout which was just synced.
+	 * With smart sync, the revisions come from the manifest server but the
+	 * projects still include those of the local manifest, so repo is asked
+	 * for the manifest of the checkout rather than the server's manifest
+	 * being used as is.
+	 */
+	private String getSyncedManifest(final Launcher launcher,
+			final FilePath workspace, final PrintStream logger)
+			throws IOException, InterruptedException {
+		if (usesManifestServer()) {
+			return getRepoStaticManifest(launcher, workspace, logger);
+		}
+		return getStaticManifest(launcher, workspace, logger);
+	}
+
+	/**
+	 * Returns the static manifest of a checkout. It is read directly from
+	 * the checkout when possible, which is much faster than asking repo.
+	 */
 	private String getStaticManifest(final Launcher launcher,
+			final FilePath workspace, final PrintStream logger)
+			throws IOException, InterruptedException {
+		try {
+			final String manifest =
+					workspace.act(new StaticManifestReader(
+							manifestRepositoryUrl));
+			if (manifest != null) {
+				debug.log(Level.FINEST, manifest);
+				return manifest;
+			}
+		} catch (final IOException e) {
+			debug.log(Level.WARNING, "Unable to read the static manifest",
+					e);
+			logger.println("Unable to read the static manifest, asking "
+					+ "repo instead: " + e.getMessage());
+		}
+		return getRepoStaticManifest(launcher, workspace, logger);
+	}
+
+	/**
+	 * Returns the static manifest of a checkout using repo manifest -r.
+	 */
+	private String getRepoStaticManifest(final Launcher launcher,
 			final FilePath workspace, final OutputStream logger)
 			throws IOException, InterruptedException {
 		final ByteArrayOutputStream output = new ByteArrayOutputStream();
@@ -358,7 +1625,123 @@ public class RepoScm extends SCM {
 		return manifestText;
 	}
 
-	private RevisionState getLastState(final Run<?, ?> lastBuild) {
+	private String getManifestCommit(final Launcher launcher,
+			final FilePath workspace) throws IOException,
+			InterruptedException {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		final int returnCode =
+				launcher.launch().stdout(output).pwd(
+						workspace.child(".repo").child("manifests")).cmds(
+						"git", "rev-parse", "HEAD").join();
+		if (returnCode != 0) {
+			return null;
+		}
+		return Util.fixEmptyAndTrim(output.toString());
+	}
+
+	/**
+	 * Creates a RemotePoller which works on the server, using the shared
+	 * manifest cache.
+	 */
+	private RemotePoller createRemotePoller(final TaskListener listener) {
+		final DescriptorImpl descriptor = getDescriptor();
+		final Launcher launcher = new Launcher.LocalLauncher(listener);
+		final RefResolver resolver =
+				new RefResolver(launcher, listener.getLogger(), descriptor
+						.getThreadsPerHost(), descriptor.getHostThreadMap(),
+						descriptor.getHostTimeout() * 1000L, RefCache.get());
+		return new RemotePoller(launcher, ManifestCache.getGitDir(
+				manifestRepositoryUrl, manifestBranch), listener.getLogger(),
+				resolver, descriptor.isPartialPolling());
+	}
+
+	/**
+	 * Computes the remote state without a workspace, completed with the
+	 * baseline's revisions for the projects a partial poll couldn't
+	 * resolve.
+	 */
+	private RevisionState getRemoteState(final RevisionState baseline,
+			final TaskListener listener) throws IOException,
+			InterruptedException {
+		final RevisionState remote =
+				getSharedRemoteState(baseline, listener);
+		if (remote == null) {
+			return null;
+		}
+		return RemotePoller.keepUnresolved(remote, baseline, listener
+				.getLogger());
+	}
+
+	/**
+	 * Computes the remote state without a workspace. This runs on the
+	 * server, so that polls don't have to wait for an executor, and jobs
+	 * sharing a manifest share the result. The baseline is only used for
+	 * revisions which can't move, and projects a partial poll couldn't
+	 * resolve are left unresolved rather than taken from the baseline, so
+	 * sharing the result between jobs is safe.
+	 */
+	private RevisionState getSharedRemoteState(final RevisionState baseline,
+			final TaskListener listener) throws IOException,
+			InterruptedException {
+		final PollingCoalescer.Resolver resolver =
+				new PollingCoalescer.Resolver() {
+					public RevisionState resolve(
+							final TaskListener pollListener)
+							throws IOException, InterruptedException {
+						return createRemotePoller(pollListener)
+								.getRemoteState(RepoScm.this, baseline);
+					}
+				};
+		return PollingCoalescer.resolve(getPollingKey(), getDescriptor()
+				.getPollingInterval() * 1000L, listener, resolver);
+	}
+
+	/**
+	 * Checks, without syncing, whether the manifest is unchanged since the
+	 * baseline and pins every project. This runs on the node, in the
+	 * manifest repository of the workspace, so it needs nothing sync
+	 * doesn't. Any failure here simply means we fall back to a normal poll.
+	 */
+	private boolean isUnchanged(final Launcher launcher,
+			final FilePath workspace, final RevisionState baseline,
+			final TaskListener listener) throws IOException,
+			InterruptedException {
+		final FilePath gitDir = workspace.child(".repo").child(
+				"manifests.git");
+		if (!gitDir.isDirectory()) {
+			return false;
+		}
+		try {
+			return new RemotePoller(launcher, gitDir, listener.getLogger(),
+					null, false).isUnchanged(this, baseline);
+		} catch (final IOException e) {
+			debug.log(Level.WARNING, "Unable to check the manifest", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Returns a key identifying everything that determines the remote state
+	 * of this repository, so that jobs with equal keys can share polling
+	 * results.
+	 */
+	String getPollingKey() {
+		return manifestRepositoryUrl + "\n" + Util.fixNull(manifestBranch)
+				+ "\n" + Util.fixNull(manifestFile) + "\n"
+				+ Util.fixNull(manifestGroup) + "\n"
+				+ Util.fixNull(projectList) + "\n"
+				+ Util.getDigestOf(Util.fixNull(localManifest));
+	}
+
+	/**
+	 * Returns the state recorded by the most recent build using the same
+	 * manifest branch.
+	 *
+	 * @param lastBuild
+	 *            The build to start looking from
+	 * @return the state, or null if no build recorded one
+	 */
+	RevisionState getLastState(final Run<?, ?> lastBuild) {
 		if (lastBuild == null) {
 			return null;
 		}
@@ -380,6 +1763,54 @@ public class RepoScm extends SCM {
 		return (DescriptorImpl) super.getDescriptor();
 	}
 
+	/**
+	 * A run of repo sync, in one of the phases of a sync.
+	 */
+	static final class SyncPhase {
+		private final String name;
+		private final boolean local;
+		private final List<String> options;
+
+		/**
+		 * Creates a new SyncPhase.
+		 *
+		 * @param name
+		 *            The name of the phase, shown in the log and the report
+		 * @param local
+		 *            Whether the phase only works on the checkout, and so
+		 *            runs with the number of local jobs
+		 * @param options
+		 *            The options of repo sync
+		 */
+		SyncPhase(final String name, final boolean local,
+				final List<String> options) {
+			this.name = name;
+			this.local = local;
+			this.options = options;
+		}
+
+		/**
+		 * Returns the name of the phase.
+		 */
+		String getName() {
+			return name;
+		}
+
+		/**
+		 * Returns whether the phase only works on the checkout.
+		 */
+		boolean isLocal() {
+			return local;
+		}
+
+		/**
+		 * Returns the options of repo sync.
+		 */
+		List<String> getOptions() {
+			return options;
+		}
+	}
+
 	/**
 	 * A DescriptorImpl contains variables used server-wide. In our case, we
 	 * only store the path to the repo executable, which defaults to just
@@ -388,6 +1819,35 @@ public class RepoScm extends SCM {
 	@Extension
 	public static class DescriptorImpl extends SCMDescriptor<RepoScm> {
 		private String repoExecutable;
+		private int pollingInterval = DEFAULT_POLLING_INTERVAL;
+		private int threadsPerHost = DEFAULT_THREADS_PER_HOST;
+		private String hostThreads;
+		private int hostTimeout = DEFAULT_HOST_TIMEOUT;
+		private boolean partialPolling;
+		private String eventCommand;
+		private String eventHost;
+		private boolean skipPollingWithEvents;
+		private int refCacheTtl = DEFAULT_REF_CACHE_TTL;
+		private int refFailureBackoff = DEFAULT_REF_FAILURE_BACKOFF;
+		private int syncRetries = DEFAULT_SYNC_RETRIES;
+		private int syncRetryDelay = DEFAULT_SYNC_RETRY_DELAY;
+		private int forallThreads;
+		private int forallTimeout = DEFAULT_FORALL_TIMEOUT;
+		private boolean gcAfterSync;
+		private int mirrorRefreshInterval = DEFAULT_MIRROR_REFRESH_INTERVAL;
+		private int goldenRefreshInterval = DEFAULT_GOLDEN_REFRESH_INTERVAL;
+		private int poolBudget;
+
+		private static final int DEFAULT_POLLING_INTERVAL = 60;
+		private static final int DEFAULT_THREADS_PER_HOST = 4;
+		private static final int DEFAULT_HOST_TIMEOUT = 300;
+		private static final int DEFAULT_REF_CACHE_TTL = 30;
+		private static final int DEFAULT_REF_FAILURE_BACKOFF = 60;
+		private static final int DEFAULT_SYNC_RETRIES = 2;
+		private static final int DEFAULT_SYNC_RETRY_DELAY = 10;
+		private static final int DEFAULT_FORALL_TIMEOUT = 600;
+		private static final int DEFAULT_MIRROR_REFRESH_INTERVAL = 60;
+		private static final int DEFAULT_GOLDEN_REFRESH_INTERVAL = 24;
 
 		/**
 		 * Call the superclass constructor and load our configuration from the
@@ -396,6 +1856,7 @@ public class RepoScm extends SCM {
 		public DescriptorImpl() {
 			super(null);
 			load();
+			configureRefCache();
 		}
 
 		@Override
@@ -409,10 +1870,84 @@ public class RepoScm extends SCM {
 				throws hudson.model.Descriptor.FormException {
 			repoExecutable =
 					Util.fixEmptyAndTrim(json.getString("executable"));
+			pollingInterval =
+					parseInt(json.getString("pollingInterval"),
+							DEFAULT_POLLING_INTERVAL);
+			threadsPerHost =
+					parseInt(json.getString("threadsPerHost"),
+							DEFAULT_THREADS_PER_HOST);
+			hostThreads = Util.fixEmptyAndTrim(json.getString("hostThreads"));
+			hostTimeout =
+					parseInt(json.getString("hostTimeout"),
+							DEFAULT_HOST_TIMEOUT);
+			partialPolling = json.optBoolean("partialPolling");
+			eventCommand =
+					Util.fixEmptyAndTrim(json.getString("eventCommand"));
+			eventHost = Util.fixEmptyAndTrim(json.getString("eventHost"));
+			skipPollingWithEvents = json.optBoolean("skipPollingWithEvents");
+			refCacheTtl =
+					parseInt(json.getString("refCacheTtl"),
+							DEFAULT_REF_CACHE_TTL);
+			refFailureBackoff =
+					parseInt(json.getString("refFailureBackoff"),
+							DEFAULT_REF_FAILURE_BACKOFF);
+			syncRetries =
+					parseInt(json.getString("syncRetries"),
+							DEFAULT_SYNC_RETRIES);
+			syncRetryDelay =
+					parseInt(json.getString("syncRetryDelay"),
+							DEFAULT_SYNC_RETRY_DELAY);
+			forallThreads = parseInt(json.getString("forallThreads"), 0);
+			forallTimeout =
+					parseInt(json.getString("forallTimeout"),
+							DEFAULT_FORALL_TIMEOUT);
+			gcAfterSync = json.optBoolean("gcAfterSync");
+			mirrorRefreshInterval =
+					parseInt(json.getString("mirrorRefreshInterval"),
+							DEFAULT_MIRROR_REFRESH_INTERVAL);
+			goldenRefreshInterval =
+					parseInt(json.getString("goldenRefreshInterval"),
+							DEFAULT_GOLDEN_REFRESH_INTERVAL);
+			poolBudget = parseInt(json.getString("poolBudget"), 0);
+			configureRefCache();
 			save();
 			return super.configure(req, json);
 		}
 
+		/**
+		 * Creates the RepoScm of a job from its configuration form. The
+		 * constructor binds the original settings, and every option added
+		 * since is set with its setter, so that adding an option doesn't
+		 * change the constructor.
+		 */
+		@Override
+		public SCM newInstance(final StaplerRequest req,
+				final JSONObject formData)
+				throws hudson.model.Descriptor.FormException {
+			final RepoScm scm = (RepoScm) super.newInstance(req, formData);
+			scm.setLightweightPolling(formData
+					.optBoolean("lightweightPolling"));
+			scm.setIncludedPaths(formData.optString("includedPaths", null));
+			scm.setExcludedPaths(formData.optString("excludedPaths", null));
+			scm.setTwoPhaseSync(formData.optBoolean("twoPhaseSync"));
+			scm.setLocalJobs(formData.optInt("localJobs", 0));
+			scm.setAutoJobs(formData.optBoolean("autoJobs"));
+			scm.setSmartSync(formData.optBoolean("smartSync"));
+			scm.setSmartTag(formData.optString("smartTag", null));
+			scm.setCurrentBranch(formData.optBoolean("currentBranch"));
+			scm.setDepth(formData.optInt("depth", 0));
+			scm.setNoTags(formData.optBoolean("noTags"));
+			scm.setPartialClone(formData.optBoolean("partialClone"));
+			scm.setCloneFilter(formData.optString("cloneFilter", null));
+			scm.setManifestGroup(formData.optString("manifestGroup", null));
+			scm.setProjectList(formData.optString("projectList", null));
+			scm.setCleanStrategy(formData.optString("cleanStrategy", null));
+			scm.setManagedMirror(formData.optBoolean("managedMirror"));
+			scm.setSeedWorkspace(formData.optBoolean("seedWorkspace"));
+			scm.setPooledWorkspace(formData.optBoolean("pooledWorkspace"));
+			return scm;
+		}
+
 		/**
 		 * Check that the specified parameter exists on the file system and is a
 		 * valid executable.
@@ -426,6 +1961,258 @@ public class RepoScm extends SCM {
 			return FormValidation.validateExecutable(value);
 		}
 
+		/**
+		 * Check that the specified parameter is a non-negative number.
+		 *
+		 * @param value
+		 *            The value entered in the configuration form
+		 * @return Error if the value isn't a non-negative integer, otherwise
+		 *         return OK.
+		 */
+		public FormValidation doNonNegativeCheck(
+				@QueryParameter final String value) {
+			return FormValidation.validateNonNegativeInteger(value);
+		}
+
+		/**
+		 * Check that the specified parameter is a valid clone depth.
+		 *
+		 * @param value
+		 *            The depth entered in the configuration form
+		 * @return Error if the value isn't a non-negative integer, a warning
+		 *         if it limits the history, otherwise return OK.
+		 */
+		public FormValidation doDepthCheck(
+				@QueryParameter final String value) {
+			final FormValidation validation =
+					FormValidation.validateNonNegativeInteger(value);
+			if (validation.kind != FormValidation.Kind.OK
+					|| parseInt(value, 0) == 0) {
+				return validation;
+			}
+			return FormValidation.warning("Change logs can't include "
+					+ "commits older than the fetched history");
+		}
+
+		/**
+		 * Check that every line of the specified parameter is a valid
+		 * regular expression.
+		 *
+		 * @param value
+		 *            The patterns entered in the configuration form
+		 * @return Error for the first invalid pattern, otherwise return OK.
+		 */
+		public FormValidation doRegexCheck(
+				@QueryParameter final String value) {
+			for (final String line : Util.fixNull(value).split("\n")) {
+				try {
+					Pattern.compile(line.trim());
+				} catch (final PatternSyntaxException e) {
+					return FormValidation.error("Invalid pattern: "
+							+ e.getDescription());
+				}
+			}
+			return FormValidation.ok();
+		}
+
+		/**
+		 * Returns how long, in seconds, the result of a lightweight poll is
+		 * shared with other jobs using the same manifest. By default, this
+		 * is one minute.
+		 */
+		public int getPollingInterval() {
+			return pollingInterval;
+		}
+
+		/**
+		 * Returns the number of concurrent git ls-remote queries sent to one
+		 * host by lightweight polling. By default, this is 4.
+		 */
+		public int getThreadsPerHost() {
+			return threadsPerHost;
+		}
+
+		/**
+		 * Returns the per-host overrides of the number of concurrent
+		 * queries, one host=threads pair per line. By default, this is null.
+		 */
+		public String getHostThreads() {
+			return hostThreads;
+		}
+
+		/**
+		 * Returns the per-host overrides of the number of concurrent queries
+		 * as a map from host name to number of threads.
+		 */
+		public Map<String, Integer> getHostThreadMap() {
+			final Map<String, Integer> map = new HashMap<String, Integer>();
+			if (hostThreads == null) {
+				return map;
+			}
+			for (final String line : hostThreads.split("\n")) {
+				final int equals = line.indexOf('=');
+				if (equals > 0) {
+					map.put(line.substring(0, equals).trim(), Integer
+							.valueOf(parseInt(line.substring(equals + 1),
+									threadsPerHost)));
+				}
+			}
+			return map;
+		}
+
+		/**
+		 * Returns how long, in seconds, all the queries to one host may take
+		 * during a lightweight poll. 0 means no limit. By default, this is 5
+		 * minutes.
+		 */
+		public int getHostTimeout() {
+			return hostTimeout;
+		}
+
+		/**
+		 * Returns true if a lightweight poll should still compare the
+		 * projects it could resolve when some servers fail or time out. By
+		 * default, this is false and any failure makes the poll
+		 * incomparable.
+		 */
+		public boolean isPartialPolling() {
+			return partialPolling;
+		}
+
+		/**
+		 * Returns the command whose output is the Gerrit event stream, such
+		 * as "ssh -p 29418 review.example.com gerrit stream-events". By
+		 * default, this is null and no events are read.
+		 */
+		public String getEventCommand() {
+			return eventCommand;
+		}
+
+		/**
+		 * Returns the host name of the Gerrit server sending the events, as
+		 * it appears in the fetch URLs of the manifests. By default, this is
+		 * null and the host is taken from the ssh command.
+		 */
+		public String getEventHost() {
+			return eventHost;
+		}
+
+		/**
+		 * Returns true if polling should be skipped while the event stream
+		 * is connected, because builds are scheduled from events. By
+		 * default, this is false.
+		 */
+		public boolean isSkipPollingWithEvents() {
+			return skipPollingWithEvents;
+		}
+
+		/**
+		 * Returns how long, in seconds, the head of a ref found by a
+		 * lightweight poll is reused by other polls. By default, this is 30
+		 * seconds.
+		 */
+		public int getRefCacheTtl() {
+			return refCacheTtl;
+		}
+
+		/**
+		 * Returns how long, in seconds, a server which failed to list its
+		 * refs is skipped. The delay doubles with each consecutive failure.
+		 * By default, this is one minute.
+		 */
+		public int getRefFailureBackoff() {
+			return refFailureBackoff;
+		}
+
+		/**
+		 * Returns how many times a failed sync is retried. By default, this
+		 * is 2.
+		 */
+		public int getSyncRetries() {
+			return syncRetries;
+		}
+
+		/**
+		 * Returns how long, in seconds, to wait before the first retry of a
+		 * failed sync. The delay doubles with each retry, up to 10 minutes.
+		 * By default, this is 10 seconds.
+		 */
+		public int getSyncRetryDelay() {
+			return syncRetryDelay;
+		}
+
+		/**
+		 * Returns how many projects workspace maintenance, such as resets
+		 * and garbage collection, works on at once. By default, this is 0
+		 * and the number of processors of the agent is used.
+		 */
+		public int getForallThreads() {
+			return forallThreads;
+		}
+
+		/**
+		 * Returns how long, in seconds, workspace maintenance may take in
+		 * one project. 0 means no limit. By default, this is 10 minutes.
+		 */
+		public int getForallTimeout() {
+			return forallTimeout;
+		}
+
+		/**
+		 * Returns true if git gc --auto should run in every project after a
+		 * build's sync. By default, this is false.
+		 */
+		public boolean isGcAfterSync() {
+			return gcAfterSync;
+		}
+
+		/**
+		 * Returns how long, in minutes, a managed mirror is used before a
+		 * checkout updates it. By default, this is one hour.
+		 */
+		public int getMirrorRefreshInterval() {
+			return mirrorRefreshInterval;
+		}
+
+		/**
+		 * Returns how long, in hours, a golden checkout is used to seed
+		 * workspaces before it is saved again. By default, this is one day.
+		 */
+		public int getGoldenRefreshInterval() {
+			return goldenRefreshInterval;
+		}
+
+		/**
+		 * Returns how much disk space, in gigabytes, the pooled checkouts of
+		 * one manifest may take on a node. 0 means no limit. By default,
+		 * this is 0.
+		 */
+		public int getPoolBudget() {
+			return poolBudget;
+		}
+
+		/**
+		 * Returns the cache of ref heads, for its statistics.
+		 */
+		public RefCache getRefCache() {
+			return RefCache.get();
+		}
+
+		private void configureRefCache() {
+			RefCache.get().configure(refCacheTtl * 1000L,
+					refFailureBackoff * 1000L);
+		}
+
+		private static int parseInt(final String value,
+				final int defaultValue) {
+			try {
+				return Math.max(0, Integer.parseInt(Util.fixNull(value)
+						.trim()));
+			} catch (final NumberFormatException e) {
+				return defaultValue;
+			}
+		}
+
 		/**
 		 * Returns the command to use when running repo. By default, we assume
 		 * that repo is in the server's PATH and just return "repo".
@@ -30,11 +30,14 @@ import java.io.PrintStream;
 import java.io.Serializable;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -56,6 +59,8 @@ public class RevisionState extends SCMRevisionState implements Serializable {
 	private final Map<String, ProjectState> projects =
 			new TreeMap<String, ProjectState>();
 	private final String branch;
+	private final String manifestCommit;
+	private transient Set<String> unresolved;
 
 	private static Logger debug =
 		Logger.getLogger("hudson.plugins.repo.RevisionState");
@@ -72,7 +77,50 @@ public class RevisionState extends SCMRevisionState implements Serializable {
 	 */
 	public RevisionState(final String manifest, final String branch,
 			final PrintStream logger) {
+		this(manifest, null, branch, logger);
+	}
+
+	/**
+	 * Creates a new RepoRevisionState which also records the commit of the
+	 * manifest repository.
+	 *
+	 * @param manifest
+	 *            A string representation of the static manifest XML file
+	 * @param manifestCommit
+	 *            The SHA-1 of the manifest repository commit, or null if it
+	 *            is unknown
+	 * @param branch
+	 *            The branch of the manifest project
+	 * @param logger
+	 *            A PrintStream for logging errors
+	 */
+	public RevisionState(final String manifest, final String manifestCommit,
+			final String branch, final PrintStream logger) {
+		this(manifest, manifestCommit, branch, null, logger);
+	}
+
+	/**
+	 * Creates a new RepoRevisionState which only includes the projects the
+	 * job syncs.
+	 *
+	 * @param manifest
+	 *            A string representation of the static manifest XML file
+	 * @param manifestCommit
+	 *            The SHA-1 of the manifest repository commit, or null if it
+	 *            is unknown
+	 * @param branch
+	 *            The branch of the manifest project
+	 * @param filter
+	 *            Selects the projects to include. If null, every project is
+	 *            included.
+	 * @param logger
+	 *            A PrintStream for logging errors
+	 */
+	public RevisionState(final String manifest, final String manifestCommit,
+			final String branch, final ProjectFilter filter,
+			final PrintStream logger) {
 		this.manifest = manifest;
+		this.manifestCommit = manifestCommit;
 		this.branch = branch;
 		try {
 			final InputSource xmlSource = new InputSource();
@@ -82,7 +130,7 @@ public class RevisionState extends SCMRevisionState implements Serializable {
 							.parse(xmlSource);
 
 			if (!doc.getDocumentElement().getNodeName().equals("manifest")) {
-				logger.println("Error - malformed manifest");
+				log(logger, "Error - malformed manifest");
 				return;
 			}
 			final NodeList projectNodes = doc.getElementsByTagName("project");
@@ -98,14 +146,30 @@ public class RevisionState extends SCMRevisionState implements Serializable {
 				final String revision =
 						Util.fixEmptyAndTrim(projectElement
 								.getAttribute("revision"));
+				final String upstream =
+						Util.fixEmptyAndTrim(projectElement
+								.getAttribute("upstream"));
 				if (path == null) {
 					// 'repo manifest -o' doesn't output a path if it is the
 					// same as the server path, even if the path is specified.
 					path = serverPath;
 				}
+				if (filter != null
+						&& serverPath != null
+						&& !filter.isIncluded(serverPath, path, Util
+								.fixEmptyAndTrim(projectElement
+										.getAttribute("groups")))) {
+					continue;
+				}
+				if (path != null && serverPath != null && revision == null) {
+					if (unresolved == null) {
+						unresolved = new TreeSet<String>();
+					}
+					unresolved.add(path);
+				}
 				if (path != null && serverPath != null && revision != null) {
 					projects.put(path, new ProjectState(path, serverPath,
-							revision));
+							revision, upstream));
 					if (logger != null) {
 						logger.println("Added a project: " + path
 								+ " at revision: " + revision);
@@ -113,11 +177,19 @@ public class RevisionState extends SCMRevisionState implements Serializable {
 				}
 			}
 		} catch (final Exception e) {
-			logger.println(e);
+			log(logger, e.toString());
 			return;
 		}
 	}
 
+	private static void log(final PrintStream logger, final String message) {
+		if (logger == null) {
+			debug.log(Level.WARNING, message);
+		} else {
+			logger.println(message);
+		}
+	}
+
 	@Override
 	public boolean equals(final Object obj) {
 		if (obj instanceof RevisionState) {
@@ -147,6 +219,14 @@ public class RevisionState extends SCMRevisionState implements Serializable {
 		return branch;
 	}
 
+	/**
+	 * Returns the SHA-1 of the manifest repository commit this state was
+	 * created from, or null if it is unknown.
+	 */
+	public String getManifestCommit() {
+		return manifestCommit;
+	}
+
 	/**
 	 * Returns the static XML manifest for this repository state in String form.
 	 */
@@ -166,6 +246,36 @@ public class RevisionState extends SCMRevisionState implements Serializable {
 		return project == null ? null : project.getRevision();
 	}
 
+	/**
+	 * Returns the state of every project in this repository state.
+	 */
+	public Collection<ProjectState> getProjects() {
+		return Collections.unmodifiableCollection(projects.values());
+	}
+
+	/**
+	 * Returns the paths of the projects the manifest lists without a
+	 * revision. Only a partial lightweight poll leaves projects unresolved,
+	 * static manifests written by repo never do.
+	 */
+	public Set<String> getUnresolvedPaths() {
+		if (unresolved == null) {
+			return Collections.emptySet();
+		}
+		return Collections.unmodifiableSet(unresolved);
+	}
+
+	/**
+	 * Returns the state of the project at the specified path, or null if
+	 * there is no such project.
+	 *
+	 * @param path
+	 *            The path to the repository in which we are interested.
+	 */
+	public ProjectState getProject(final String path) {
+		return projects.get(path);
+	}
+
 	/**
 	 * Calculate what has changed from a specified previous repository state.
 	 *
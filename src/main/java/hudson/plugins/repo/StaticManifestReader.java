@@ -0,0 +1,264 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The StaticManifestReader produces the static manifest of a checkout, like
+ * repo manifest -r, without running repo. It runs on the machine holding
+ * the workspace: the manifest is read from .repo/manifest.xml and the
+ * manifest repository, and the revision of each project is read from the
+ * HEAD of its git directory.
+ *
+ * It returns null when the checkout uses something this reader doesn't
+ * understand, such as a .repo/local_manifests directory or a manifest
+ * element {@link RemoteManifest} skips, so that the caller can fall back to
+ * repo manifest -r.
+ */
+public class StaticManifestReader implements FileCallable<String> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String manifestUrl;
+
+	/**
+	 * Creates a new StaticManifestReader.
+	 *
+	 * @param manifestUrl
+	 *            The URL of the manifest repository, used to resolve
+	 *            relative fetch URLs
+	 */
+	public StaticManifestReader(final String manifestUrl) {
+		this.manifestUrl = manifestUrl;
+	}
+
+	/**
+	 * Reads the static manifest of a checkout.
+	 *
+	 * @param workspace
+	 *            The top of the repo checkout
+	 * @param channel
+	 *            Unused
+	 * @return the manifest XML, or null if it has to be asked to repo
+	 * @throws IOException
+	 *             is thrown if the manifest cannot be read or parsed
+	 * @throws InterruptedException
+	 *             is never thrown, reading files isn't interruptible
+	 */
+	public String invoke(final File workspace, final VirtualChannel channel)
+			throws IOException, InterruptedException {
+		final File repoDir = new File(workspace, ".repo");
+		final File manifestsDir = new File(repoDir, "manifests");
+		final String[] localManifests =
+				new File(repoDir, "local_manifests").list();
+		if (!new File(repoDir, "manifest.xml").isFile()
+				|| (localManifests != null && localManifests.length > 0)) {
+			return null;
+		}
+		final File localManifestFile =
+				new File(repoDir, "local_manifest.xml");
+		final String localManifest =
+				localManifestFile.isFile() ? readFile(localManifestFile)
+						: null;
+		final RemoteManifest manifest =
+				new RemoteManifest(new RemoteManifest.Source() {
+					public String read(final String name)
+							throws IOException {
+						return readFile(new File(manifestsDir, name));
+					}
+				}, "../manifest.xml", localManifest, manifestUrl);
+		if (!manifest.isComplete()) {
+			return null;
+		}
+
+		final Map<String, String> revisions = new HashMap<String, String>();
+		for (final RemoteManifest.Project project : manifest.getProjects()) {
+			final String head =
+					readHead(new File(workspace, project.getPath()));
+			if (head != null) {
+				revisions.put(project.getPath(), head);
+			}
+		}
+		return toXml(manifest, revisions);
+	}
+
+	/**
+	 * Writes a static manifest in the form of repo manifest -r. Projects
+	 * without a revision, which aren't checked out, are left out.
+	 *
+	 * @param manifest
+	 *            The manifest of the checkout
+	 * @param revisions
+	 *            A map from project path to the SHA-1 checked out
+	 * @return the manifest XML
+	 */
+	static String toXml(final RemoteManifest manifest,
+			final Map<String, String> revisions) {
+		final List<RemoteManifest.Project> projects = manifest.getProjects();
+		final Set<String> remotes = new LinkedHashSet<String>();
+		for (final RemoteManifest.Project project : projects) {
+			if (revisions.containsKey(project.getPath())) {
+				remotes.add(project.getRemoteName());
+			}
+		}
+		final StringBuilder xml = new StringBuilder();
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		xml.append("<manifest>\n");
+		for (final String remote : remotes) {
+			xml.append("  <remote name=\"").append(
+					RemotePoller.escape(remote)).append("\" fetch=\"").append(
+					RemotePoller.escape(manifest.getRemoteUrl(remote)))
+					.append("\"/>\n");
+		}
+		xml.append('\n');
+		for (final RemoteManifest.Project project : projects) {
+			final String revision = revisions.get(project.getPath());
+			if (revision == null) {
+				continue;
+			}
+			xml.append("  <project name=\"").append(
+					RemotePoller.escape(project.getName())).append(
+					"\" path=\"").append(
+					RemotePoller.escape(project.getPath())).append(
+					"\" remote=\"").append(
+					RemotePoller.escape(project.getRemoteName())).append(
+					"\" revision=\"").append(revision).append('"');
+			if (!revision.equals(project.getRevision())) {
+				xml.append(" upstream=\"").append(
+						RemotePoller.escape(project.getRevision())).append(
+						'"');
+			}
+			if (project.getGroups() != null) {
+				xml.append(" groups=\"").append(
+						RemotePoller.escape(project.getGroups())).append('"');
+			}
+			xml.append("/>\n");
+		}
+		xml.append("</manifest>\n");
+		return xml.toString();
+	}
+
+	/**
+	 * Returns the SHA-1 checked out in a project, or null if it isn't
+	 * checked out. The git directory of the work tree is either a .git
+	 * directory, as repo creates it, or the target of a .git file.
+	 *
+	 * @param worktree
+	 *            The top of the project's work tree
+	 */
+	static String readHead(final File worktree) throws IOException {
+		final File dotGit = new File(worktree, ".git");
+		File gitDir;
+		if (dotGit.isDirectory()) {
+			gitDir = dotGit;
+		} else if (dotGit.isFile()) {
+			final String link = readFile(dotGit).trim();
+			if (!link.startsWith("gitdir:")) {
+				return null;
+			}
+			gitDir = new File(link.substring(7).trim());
+			if (!gitDir.isAbsolute()) {
+				gitDir = new File(worktree, gitDir.getPath());
+			}
+		} else {
+			return null;
+		}
+		final File headFile = new File(gitDir, "HEAD");
+		if (!headFile.isFile()) {
+			return null;
+		}
+		String head = readFile(headFile).trim();
+		// Follow symbolic refs, a few levels at most.
+		for (int i = 0; i < 5 && head != null && head.startsWith("ref:");
+				i++) {
+			head = resolveRef(gitDir, head.substring(4).trim());
+		}
+		return RemoteManifest.isSha1(head) ? head : null;
+	}
+
+	/**
+	 * Returns the value of a ref, either loose or packed. Work trees added
+	 * with git worktree keep most refs in their common directory.
+	 */
+	private static String resolveRef(final File gitDir, final String ref)
+			throws IOException {
+		File commonDir = gitDir;
+		final File commonDirFile = new File(gitDir, "commondir");
+		if (commonDirFile.isFile()) {
+			commonDir = new File(readFile(commonDirFile).trim());
+			if (!commonDir.isAbsolute()) {
+				commonDir = new File(gitDir, commonDir.getPath());
+			}
+		}
+		for (final File dir : new File[] {gitDir, commonDir}) {
+			final File loose = new File(dir, ref);
+			if (loose.isFile()) {
+				return readFile(loose).trim();
+			}
+		}
+		for (final File dir : new File[] {gitDir, commonDir}) {
+			final File packedRefs = new File(dir, "packed-refs");
+			if (!packedRefs.isFile()) {
+				continue;
+			}
+			for (final String line : readFile(packedRefs).split("\n")) {
+				if (line.endsWith(" " + ref) && !line.startsWith("#")) {
+					return line.substring(0, line.indexOf(' '));
+				}
+			}
+		}
+		return null;
+	}
+
+	private static String readFile(final File file) throws IOException {
+		final StringBuilder text = new StringBuilder();
+		final BufferedReader reader =
+				new BufferedReader(new InputStreamReader(new FileInputStream(
+						file), "UTF-8"));
+		try {
+			final char[] buffer = new char[8192];
+			int read = reader.read(buffer);
+			while (read >= 0) {
+				text.append(buffer, 0, read);
+				read = reader.read(buffer);
+			}
+		} finally {
+			reader.close();
+		}
+		return text.toString();
+	}
+}
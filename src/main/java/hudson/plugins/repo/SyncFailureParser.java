@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The SyncFailureParser reads the output of a failed repo sync and finds
+ * the projects which caused the failure, so that only those need to be
+ * recovered.
+ */
+public final class SyncFailureParser {
+
+	/**
+	 * Matches the error lines of repo sync which name a project, by name or
+	 * by path, in their first group.
+	 */
+	private static final Pattern[] ERRORS = {
+		Pattern.compile("^error: Cannot (?:fetch|checkout|initialize work "
+				+ "tree for|remove project) \"?([^\\s\"]+)\"?"),
+		Pattern.compile("^error\\.GitError: ([^\\s:]+) "),
+		Pattern.compile("^error: ([^\\s:]+)/: "),
+		Pattern.compile("^error: ([^\\s:]+): (?:contains uncommitted changes"
+				+ "|leaving|branch)"),
+	};
+
+	/**
+	 * Starts the list of failing projects printed by recent versions of
+	 * repo, one per line.
+	 */
+	private static final String FAILING_REPOS = "Failing repos";
+
+	private SyncFailureParser() {
+	}
+
+	/**
+	 * Returns the names or paths of the projects which failed to sync.
+	 *
+	 * @param output
+	 *            The combined output of repo sync
+	 * @return the failing projects, empty if none could be identified
+	 */
+	public static Set<String> parse(final String output) {
+		final Set<String> projects = new TreeSet<String>();
+		boolean inList = false;
+		for (final String rawLine : output.split("\r?\n")) {
+			final String line = rawLine.trim();
+			if (inList) {
+				if (line.length() == 0 || line.indexOf(' ') >= 0) {
+					inList = false;
+				} else {
+					projects.add(trimSlash(line));
+					continue;
+				}
+			}
+			if (line.startsWith(FAILING_REPOS)) {
+				inList = true;
+				continue;
+			}
+			for (final Pattern pattern : ERRORS) {
+				final Matcher matcher = pattern.matcher(line);
+				if (matcher.find()) {
+					projects.add(trimSlash(matcher.group(1)));
+					break;
+				}
+			}
+		}
+		return projects;
+	}
+
+	private static String trimSlash(final String project) {
+		if (project.endsWith("/")) {
+			return project.substring(0, project.length() - 1);
+		}
+		return project;
+	}
+}
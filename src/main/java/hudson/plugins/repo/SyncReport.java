@@ -0,0 +1,204 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.Util;
+import hudson.model.Action;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The SyncReport records how a build's repo sync went, one entry per repo
+ * command, and shows it on the build page.
+ */
+public class SyncReport implements Action, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final List<Phase> phases = new ArrayList<Phase>();
+	private int jobs;
+	private final Set<String> recoveredProjects = new TreeSet<String>();
+
+	/**
+	 * One run of repo sync, or of one of its phases.
+	 */
+	public static final class Phase implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String name;
+		private final long duration;
+		private final int returnCode;
+
+		private Phase(final String name, final long duration,
+				final int returnCode) {
+			this.name = name;
+			this.duration = duration;
+			this.returnCode = returnCode;
+		}
+
+		/**
+		 * Returns the name of the phase, such as "network".
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Returns how long the phase took, in milliseconds.
+		 */
+		public long getDuration() {
+			return duration;
+		}
+
+		/**
+		 * Returns how long the phase took, as a human readable string.
+		 */
+		public String getDurationString() {
+			return Util.getTimeSpanString(duration);
+		}
+
+		/**
+		 * Returns the exit code of repo.
+		 */
+		public int getReturnCode() {
+			return returnCode;
+		}
+	}
+
+	/**
+	 * Records a phase.
+	 *
+	 * @param name
+	 *            The name of the phase
+	 * @param duration
+	 *            How long the phase took, in milliseconds
+	 * @param returnCode
+	 *            The exit code of repo
+	 */
+	public synchronized void addPhase(final String name, final long duration,
+			final int returnCode) {
+		phases.add(new Phase(name, duration, returnCode));
+	}
+
+	/**
+	 * Returns the phases in the order they ran.
+	 */
+	public synchronized List<Phase> getPhases() {
+		return Collections.unmodifiableList(new ArrayList<Phase>(phases));
+	}
+
+	/**
+	 * Returns the number of jobs used to fetch, or 0 if the jobs parameter
+	 * was not specified.
+	 */
+	public synchronized int getJobs() {
+		return jobs;
+	}
+
+	/**
+	 * Records the number of jobs used to fetch.
+	 *
+	 * @param jobs
+	 *            The value passed to repo sync --jobs
+	 */
+	public synchronized void setJobs(final int jobs) {
+		this.jobs = jobs;
+	}
+
+	/**
+	 * Records projects which failed to sync and were reset and synced
+	 * again.
+	 *
+	 * @param projects
+	 *            The names or paths of the projects
+	 */
+	public synchronized void addRecoveredProjects(
+			final Collection<String> projects) {
+		recoveredProjects.addAll(projects);
+	}
+
+	/**
+	 * Returns the names or paths of the projects which needed recovery.
+	 */
+	public synchronized List<String> getRecoveredProjects() {
+		return new ArrayList<String>(recoveredProjects);
+	}
+
+	/**
+	 * Returns true if every phase succeeded on the first try.
+	 */
+	public synchronized boolean isSuccessful() {
+		for (final Phase phase : phases) {
+			if (phase.returnCode != 0) {
+				return false;
+			}
+		}
+		return !phases.isEmpty();
+	}
+
+	/**
+	 * Returns the total time spent syncing, in milliseconds.
+	 */
+	public synchronized long getTotalDuration() {
+		long total = 0;
+		for (final Phase phase : phases) {
+			total += phase.duration;
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the total time spent syncing, as a human readable string.
+	 */
+	public String getTotalDurationString() {
+		return Util.getTimeSpanString(getTotalDuration());
+	}
+
+	/**
+	 * Returns null, the report is only shown as a summary on the build page.
+	 */
+	public String getIconFileName() {
+		return null;
+	}
+
+	/**
+	 * Returns the display name of the report.
+	 */
+	public String getDisplayName() {
+		return "Repo Sync";
+	}
+
+	/**
+	 * Returns null, the report has no page of its own.
+	 */
+	public String getUrlName() {
+		return null;
+	}
+}
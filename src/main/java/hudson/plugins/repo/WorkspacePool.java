@@ -0,0 +1,708 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Hudson;
+import hudson.model.InvisibleAction;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.remoting.VirtualChannel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The WorkspacePool shares checkouts of a manifest between the jobs
+ * building it on a node. Instead of every job keeping its own checkout, a
+ * build leases the free checkout of the pool whose last state is closest
+ * to the revisions it is going to sync, so that the sync touches as few
+ * projects as possible. The checkout is moved into the build's workspace
+ * for the duration of the build, and moved back when the build completes.
+ * Only the checkout moves: .repo and the top directories of the projects.
+ * Anything else the build writes next to them stays in the workspace.
+ *
+ * The pool of a node is kept in the repo-pool directory of the node's
+ * root, with one directory per manifest configuration holding numbered
+ * checkouts. The least recently used checkouts are deleted when the pool
+ * grows over its disk budget. Measuring a checkout is slow, so its size is
+ * kept in the checkout and measured again at most once a day. While a
+ * checkout is leased, its directory records the workspace it was moved to,
+ * so that it can be taken back if the build never completes, for example
+ * when Jenkins restarts during the build.
+ */
+public final class WorkspacePool {
+
+	private static Logger debug =
+		Logger.getLogger("hudson.plugins.repo.WorkspacePool");
+
+	/**
+	 * The directory of the node's root holding the pools.
+	 */
+	static final String POOL_ROOT = "repo-pool";
+
+	/**
+	 * The file in a pooled checkout's .repo holding its last measured size.
+	 */
+	private static final String SIZE_FILE = "jenkins-pool-size";
+
+	/**
+	 * The file in the directory of a leased checkout holding the path of the
+	 * workspace it was moved to.
+	 */
+	private static final String LEASE_FILE = ".jenkins-pool-lease";
+
+	/**
+	 * How long, in milliseconds, the measured size of a checkout is used.
+	 */
+	private static final long SIZE_MAX_AGE = 24L * 3600L * 1000L;
+
+	private static final WorkspacePool INSTANCE = new WorkspacePool();
+
+	private final Map<String, List<Entry>> pools =
+			new HashMap<String, List<Entry>>();
+
+	/**
+	 * A checkout of the pool.
+	 */
+	static final class Entry {
+		private final FilePath dir;
+		private RevisionState state;
+		private long lastUsed;
+		private long size;
+		private boolean leased;
+
+		/**
+		 * Creates a new Entry.
+		 *
+		 * @param dir
+		 *            The directory of the checkout
+		 * @param state
+		 *            The state of the checkout, or null if it is unknown
+		 * @param lastUsed
+		 *            When the checkout was last released
+		 */
+		Entry(final FilePath dir, final RevisionState state,
+				final long lastUsed) {
+			this.dir = dir;
+			this.state = state;
+			this.lastUsed = lastUsed;
+		}
+
+		/**
+		 * Returns the directory of the checkout.
+		 */
+		FilePath getDir() {
+			return dir;
+		}
+	}
+
+	/**
+	 * Records on a build which pooled checkout it leased, so that it is
+	 * returned to the pool when the build completes.
+	 */
+	public static final class Lease extends InvisibleAction {
+		private final String key;
+		private final String entry;
+		private final String workspace;
+		private transient boolean released;
+
+		private Lease(final String key, final String entry,
+				final String workspace) {
+			this.key = key;
+			this.entry = entry;
+			this.workspace = workspace;
+		}
+
+		/**
+		 * Returns the directory of the pooled checkout.
+		 */
+		public String getEntry() {
+			return entry;
+		}
+	}
+
+	/**
+	 * Creates an empty pool. Jenkins uses the shared instance returned by
+	 * {@link #get()}.
+	 */
+	WorkspacePool() {
+	}
+
+	/**
+	 * Returns the pool shared by the whole server.
+	 */
+	public static WorkspacePool get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the directory of the pool of a job's manifest. Jobs share a
+	 * pool only if their checkouts are made with the same manifest, groups
+	 * and clone options.
+	 *
+	 * @param root
+	 *            The root directory of the node
+	 * @param scm
+	 *            The RepoScm of the job
+	 */
+	static FilePath getPoolDir(final FilePath root, final RepoScm scm) {
+		final String url = scm.getManifestRepositoryUrl();
+		return root.child(POOL_ROOT).child(
+				MirrorManager.getMirrorName(url, url + "#"
+						+ scm.getManifestBranch() + "\n"
+						+ Util.fixNull(scm.getManifestFile()) + "\n"
+						+ Util.fixNull(scm.getManifestGroup()) + "\n"
+						+ scm.getDepth() + "\n" + scm.isPartialClone()
+						+ "\n" + Util.fixNull(scm.getCloneFilter())));
+	}
+
+	/**
+	 * Leases the free pooled checkout closest to a target state, and moves
+	 * it into a workspace. If every checkout is leased, a new empty one is
+	 * added to the pool. Nothing is leased if the workspace still holds a
+	 * checkout once the pool is loaded.
+	 *
+	 * @param root
+	 *            The root directory of the node running the build
+	 * @param nodeName
+	 *            The name of the node running the build
+	 * @param scm
+	 *            The RepoScm of the job, whose manifest selects the pool
+	 * @param target
+	 *            The state the build is going to sync, or null if it isn't
+	 *            known
+	 * @param repoDir
+	 *            The directory without a checkout the checkout is moved to
+	 * @param logger
+	 *            A PrintStream for logging the progress
+	 * @return the lease, to be recorded on the build, or null if the
+	 *         workspace already holds a checkout
+	 * @throws IOException
+	 *             is thrown if the checkout couldn't be moved, in which case
+	 *             it stays in the pool
+	 * @throws InterruptedException
+	 *             is thrown if we are interrupted while moving the checkout
+	 */
+	// CS IGNORE ParameterNumber FOR NEXT 4 LINES. REASON: node and paths.
+	public Lease lease(final FilePath root, final String nodeName,
+			final RepoScm scm, final RevisionState target,
+			final FilePath repoDir, final PrintStream logger)
+			throws IOException, InterruptedException {
+		final FilePath poolDir = getPoolDir(root, scm);
+		final String key = nodeName + "\n" + poolDir.getRemote();
+		// Loading the pool may take back a checkout left in this workspace.
+		final List<Entry> entries = getEntries(key, poolDir, scm);
+		if (repoDir.child(".repo").isDirectory()) {
+			logger.println("The workspace already holds a checkout: "
+					+ "not pooling it");
+			return null;
+		}
+		final Entry entry;
+		synchronized (this) {
+			Entry best = choose(entries, target);
+			if (best == null) {
+				int number = entries.size();
+				while (poolDir.child(Integer.toString(number)).exists()) {
+					number++;
+				}
+				best = new Entry(poolDir.child(Integer.toString(number)),
+						null, 0);
+				entries.add(best);
+				logger.println("Adding checkout " + best.dir.getRemote()
+						+ " to the pool");
+			} else if (target != null && best.state != null) {
+				logger.println("Leasing " + best.dir.getRemote() + ", "
+						+ countChanges(target, best.state)
+						+ " projects away from the wanted revisions");
+			} else {
+				logger.println("Leasing " + best.dir.getRemote());
+			}
+			best.leased = true;
+			entry = best;
+		}
+		boolean moved = false;
+		try {
+			entry.dir.mkdirs();
+			entry.dir.child(LEASE_FILE).write(repoDir.getRemote(), "UTF-8");
+			entry.dir.act(new MoveCheckout(repoDir.getRemote()));
+			moved = true;
+		} finally {
+			if (!moved) {
+				entry.dir.child(LEASE_FILE).delete();
+				// The checkout was moved back, and is left in the pool.
+				logger.println("Unable to move the pooled checkout into the "
+						+ "workspace");
+				synchronized (this) {
+					entry.leased = false;
+				}
+			}
+		}
+		return new Lease(key, entry.dir.getRemote(), repoDir.getRemote());
+	}
+
+	/**
+	 * Moves a leased checkout back to the pool, records its state and
+	 * evicts the least recently used checkouts if the pool is over budget.
+	 * If the checkout can't be moved, it stays in the workspace, and the
+	 * pool forgets the state of the checkout it leased.
+	 *
+	 * @param lease
+	 *            The lease of the build
+	 * @param workspace
+	 *            The workspace of the build, on the node of the pool
+	 * @param state
+	 *            The state the build synced, or null if it didn't
+	 * @param budget
+	 *            The disk budget of the pool, in bytes, or 0 for no limit
+	 * @param logger
+	 *            A PrintStream for logging the progress
+	 * @throws IOException
+	 *             is thrown if the checkout couldn't be moved
+	 * @throws InterruptedException
+	 *             is thrown if we are interrupted while moving the checkout
+	 */
+	public void release(final Lease lease, final FilePath workspace,
+			final RevisionState state, final long budget,
+			final PrintStream logger) throws IOException,
+			InterruptedException {
+		if (lease.released) {
+			return;
+		}
+		lease.released = true;
+		final FilePath repoDir =
+				new FilePath(workspace.getChannel(), lease.workspace);
+		final FilePath entryDir =
+				new FilePath(workspace.getChannel(), lease.entry);
+		Entry entry = null;
+		synchronized (this) {
+			final List<Entry> entries = pools.get(lease.key);
+			if (entries != null) {
+				for (final Entry candidate : entries) {
+					if (candidate.dir.getRemote().equals(lease.entry)) {
+						entry = candidate;
+					}
+				}
+			}
+		}
+		boolean returned = false;
+		long size = 0;
+		try {
+			repoDir.act(new MoveCheckout(entryDir.getRemote()));
+			entryDir.child(LEASE_FILE).delete();
+			size = getSize(entryDir);
+			returned = true;
+			logger.println("Returned " + lease.entry + " to the pool");
+		} finally {
+			if (entry != null) {
+				synchronized (this) {
+					if (returned) {
+						entry.state = state;
+						entry.size = size;
+						entry.lastUsed = System.currentTimeMillis();
+					} else {
+						entry.state = null;
+					}
+					entry.leased = false;
+				}
+			}
+		}
+		if (entry == null) {
+			// The pool was reloaded since the lease, and the checkout
+			// wasn't there to be found.
+			return;
+		}
+		evict(lease.key, budget, logger);
+	}
+
+	/**
+	 * Deletes the least recently used free checkouts of a pool until it
+	 * fits in its budget.
+	 */
+	private void evict(final String key, final long budget,
+			final PrintStream logger) throws IOException,
+			InterruptedException {
+		if (budget <= 0) {
+			return;
+		}
+		final List<Entry> evicted = new ArrayList<Entry>();
+		synchronized (this) {
+			final List<Entry> entries = pools.get(key);
+			long total = 0;
+			for (final Entry entry : entries) {
+				total += entry.size;
+			}
+			while (total > budget) {
+				Entry oldest = null;
+				for (final Entry entry : entries) {
+					if (!entry.leased
+							&& (oldest == null
+									|| entry.lastUsed < oldest.lastUsed)) {
+						oldest = entry;
+					}
+				}
+				if (oldest == null) {
+					break;
+				}
+				entries.remove(oldest);
+				evicted.add(oldest);
+				total -= oldest.size;
+			}
+		}
+		for (final Entry entry : evicted) {
+			logger.println("Evicting " + entry.dir.getRemote()
+					+ " from the pool");
+			entry.dir.deleteRecursive();
+		}
+	}
+
+	/**
+	 * Returns the free entry closest to a target state. Among equally close
+	 * entries, the most recently used wins. Entries with an unknown state
+	 * come last.
+	 *
+	 * @param entries
+	 *            The entries of a pool
+	 * @param target
+	 *            The wanted state, or null if it isn't known
+	 * @return the entry, or null if every entry is leased
+	 */
+	static Entry choose(final List<Entry> entries,
+			final RevisionState target) {
+		Entry best = null;
+		int bestChanges = 0;
+		for (final Entry entry : entries) {
+			if (entry.leased) {
+				continue;
+			}
+			final int changes = countChanges(target, entry.state);
+			if (best == null || changes < bestChanges
+					|| (changes == bestChanges
+							&& entry.lastUsed > best.lastUsed)) {
+				best = entry;
+				bestChanges = changes;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Returns how many projects differ between two states.
+	 */
+	private static int countChanges(final RevisionState target,
+			final RevisionState state) {
+		if (state == null) {
+			return Integer.MAX_VALUE;
+		}
+		if (target == null) {
+			return 0;
+		}
+		return target.whatChanged(state).size();
+	}
+
+	/**
+	 * Returns the entries of a pool, reading them from the node the first
+	 * time. Directories without a checkout belong to a lease which was never
+	 * returned: the checkout is taken back from the workspace it was leased
+	 * to if it is still there, and the directory is deleted otherwise.
+	 */
+	private List<Entry> getEntries(final String key, final FilePath poolDir,
+			final RepoScm scm) throws IOException, InterruptedException {
+		synchronized (this) {
+			final List<Entry> entries = pools.get(key);
+			if (entries != null) {
+				return entries;
+			}
+		}
+		final List<Entry> loaded = new ArrayList<Entry>();
+		if (poolDir.isDirectory()) {
+			for (final FilePath dir : poolDir.list()) {
+				final FilePath repo = dir.child(".repo");
+				if (!repo.isDirectory() && !recover(dir)) {
+					dir.deleteRecursive();
+					continue;
+				}
+				final FilePath stateFile = repo.child(RepoScm.STATE_FILE);
+				RevisionState state = null;
+				long lastUsed = 0;
+				if (stateFile.exists()) {
+					state = new RevisionState(stateFile.readToString(),
+							scm.getManifestBranch(), null);
+					lastUsed = stateFile.lastModified();
+				}
+				final Entry entry = new Entry(dir, state, lastUsed);
+				entry.size = getSize(dir);
+				loaded.add(entry);
+			}
+		}
+		debug.log(Level.FINE, "Loaded " + loaded.size()
+				+ " pooled checkouts from " + poolDir.getRemote());
+		synchronized (this) {
+			// Another build may have loaded the pool meanwhile.
+			final List<Entry> entries = pools.get(key);
+			if (entries != null) {
+				return entries;
+			}
+			pools.put(key, loaded);
+			return loaded;
+		}
+	}
+
+	/**
+	 * Moves a checkout whose lease was never returned back from its
+	 * workspace. The build using it didn't complete, so the state of the
+	 * checkout is forgotten.
+	 *
+	 * @param dir
+	 *            The directory of the pooled checkout
+	 * @return true if the checkout is back, false if it is gone
+	 */
+	private static boolean recover(final FilePath dir) throws IOException,
+			InterruptedException {
+		final FilePath leaseFile = dir.child(LEASE_FILE);
+		if (!leaseFile.exists()) {
+			return false;
+		}
+		final FilePath workspace =
+				new FilePath(dir.getChannel(), leaseFile.readToString()
+						.trim());
+		if (!workspace.child(".repo").isDirectory()) {
+			return false;
+		}
+		try {
+			workspace.act(new MoveCheckout(dir.getRemote()));
+		} catch (final IOException e) {
+			debug.log(Level.WARNING, "Unable to take back the checkout in "
+					+ workspace.getRemote(), e);
+			return false;
+		}
+		leaseFile.delete();
+		dir.child(".repo").child(RepoScm.STATE_FILE).delete();
+		debug.log(Level.INFO, "Took back the checkout in "
+				+ workspace.getRemote() + " to " + dir.getRemote());
+		return true;
+	}
+
+	/**
+	 * Returns the size of a pooled checkout, measuring it again if the size
+	 * kept in the checkout is missing or older than a day.
+	 */
+	private static long getSize(final FilePath dir) throws IOException,
+			InterruptedException {
+		final FilePath sizeFile = dir.child(".repo").child(SIZE_FILE);
+		if (sizeFile.exists()
+				&& System.currentTimeMillis() - sizeFile.lastModified()
+						< SIZE_MAX_AGE) {
+			try {
+				return Long.parseLong(sizeFile.readToString().trim());
+			} catch (final NumberFormatException e) {
+				debug.log(Level.FINE, "Measuring " + dir.getRemote()
+						+ " again", e);
+			}
+		}
+		final long size = dir.act(new DiskUsage());
+		sizeFile.write(Long.toString(size), "UTF-8");
+		return size;
+	}
+
+	/**
+	 * Moves a checkout from a directory into another one, on the machine
+	 * holding them. Only .repo and the top directories of the projects
+	 * listed in .repo/project.list are moved. Both directories have to be on
+	 * the same file system. If a part can't be moved, the parts already
+	 * moved are moved back.
+	 */
+	static final class MoveCheckout implements FileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private final String target;
+
+		/**
+		 * Creates a new MoveCheckout.
+		 *
+		 * @param target
+		 *            The directory to move the checkout to
+		 */
+		MoveCheckout(final String target) {
+			this.target = target;
+		}
+
+		/**
+		 * Moves the checkout.
+		 *
+		 * @param dir
+		 *            The directory holding the checkout
+		 * @param channel
+		 *            Unused
+		 * @return null
+		 */
+		public Void invoke(final File dir, final VirtualChannel channel)
+				throws IOException {
+			final File targetDir = new File(target);
+			targetDir.mkdirs();
+			final List<String> names = getCheckoutNames(dir);
+			for (final String name : names) {
+				if (new File(targetDir, name).exists()) {
+					throw new IOException(targetDir + " already holds "
+							+ name);
+				}
+			}
+			final List<String> moved = new ArrayList<String>();
+			for (final String name : names) {
+				if (!new File(dir, name).renameTo(new File(targetDir, name))) {
+					for (final String done : moved) {
+						new File(targetDir, done).renameTo(new File(dir, done));
+					}
+					throw new IOException("Unable to move " + name + " from "
+							+ dir + " to " + targetDir);
+				}
+				moved.add(name);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the names of the children of a directory which belong to its
+	 * checkout: .repo and the top directories of the projects.
+	 */
+	static List<String> getCheckoutNames(final File dir) throws IOException {
+		final Set<String> names = new TreeSet<String>();
+		final File repo = new File(dir, ".repo");
+		if (!repo.isDirectory()) {
+			return new ArrayList<String>(names);
+		}
+		names.add(".repo");
+		final File projectList = new File(repo, "project.list");
+		if (projectList.isFile()) {
+			final BufferedReader reader =
+					new BufferedReader(new InputStreamReader(
+							new FileInputStream(projectList), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					final String path = line.trim();
+					final int slash = path.indexOf('/');
+					final String name =
+							slash < 0 ? path : path.substring(0, slash);
+					if (name.length() > 0 && new File(dir, name).exists()) {
+						names.add(name);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		return new ArrayList<String>(names);
+	}
+
+	/**
+	 * Computes the size of the files in a directory, without following
+	 * symbolic links out of it.
+	 */
+	private static final class DiskUsage implements FileCallable<Long> {
+		private static final long serialVersionUID = 1L;
+
+		public Long invoke(final File dir, final VirtualChannel channel)
+				throws IOException {
+			return Long.valueOf(getSize(dir));
+		}
+
+		private static long getSize(final File file) throws IOException {
+			if (!file.getCanonicalPath().equals(file.getAbsolutePath())) {
+				// A symbolic link, whose target is counted elsewhere.
+				return 0;
+			}
+			final File[] children = file.listFiles();
+			if (children == null) {
+				return file.length();
+			}
+			long size = 0;
+			for (final File child : children) {
+				size += getSize(child);
+			}
+			return size;
+		}
+	}
+
+	/**
+	 * Returns pooled checkouts when the builds leasing them complete.
+	 */
+	@Extension
+	@SuppressWarnings("rawtypes")
+	public static class Releaser extends RunListener<AbstractBuild> {
+		/**
+		 * Creates a new Releaser.
+		 */
+		public Releaser() {
+			super(AbstractBuild.class);
+		}
+
+		@Override
+		public void onCompleted(final AbstractBuild build,
+				final TaskListener listener) {
+			final Lease lease = build.getAction(Lease.class);
+			if (lease == null) {
+				return;
+			}
+			final FilePath workspace = build.getWorkspace();
+			if (workspace == null) {
+				return;
+			}
+			try {
+				get().release(lease, workspace, build
+						.getAction(RevisionState.class), getBudget(),
+						listener.getLogger());
+			} catch (final IOException e) {
+				debug.log(Level.WARNING, "Unable to return "
+						+ lease.getEntry() + " to the pool", e);
+			} catch (final InterruptedException e) {
+				debug.log(Level.WARNING, "Interrupted while returning "
+						+ lease.getEntry() + " to the pool", e);
+			}
+		}
+
+		private static long getBudget() {
+			return Hudson.getInstance().getDescriptorByType(
+					RepoScm.DescriptorImpl.class).getPoolBudget()
+					* 1024L * 1024L * 1024L;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the git log runs of {@link ChangeLog}.
+ */
+public class TestChangeLog extends TestCase {
+
+	// CS IGNORE LineLength FOR NEXT 80 LINES. REASON: unit test data.
+
+	private static final String FORMAT = "--format=\"zzREPOzz%H%n%an<%ae>%aD%n%cn<%ce>%cD%n%s%n%n%byyREPOyy\"";
+
+	private static final String COMMIT =
+			"\"zzREPOzz0e24608ae196811e2d971d1d62a50d0dc87d7c65\n"
+					+ "Jane Doe<jane@example.com>Mon, 5 Oct 2026 10:00:00 +0000\n"
+					+ "John Roe<john@example.com>Mon, 5 Oct 2026 10:00:00 +0000\n"
+					+ "Rename b\n"
+					+ "\n"
+					+ "Body line.\n"
+					+ "yyREPOyy\"\n";
+
+	/**
+	 * Test the git log commands, with and without the file list.
+	 */
+	public void testLogCommand() {
+		Assert.assertEquals(Arrays.asList("git", "log", "--raw", "--no-renames", "--first-parent", FORMAT, "a..b"),
+				ChangeLog.getLogCommand("a..b", true));
+		Assert.assertEquals(Arrays.asList("git", "log", "--first-parent", FORMAT, "a..b"),
+				ChangeLog.getLogCommand("a..b", false));
+	}
+
+	private static void assertCommit(final ChangeLogEntry entry) {
+		Assert.assertEquals("platform/build", entry.getPath());
+		Assert.assertEquals("build", entry.getServerPath());
+		Assert.assertEquals("0e24608ae196811e2d971d1d62a50d0dc87d7c65", entry.getRevision());
+		Assert.assertEquals("Jane Doe", entry.getAuthorName());
+		Assert.assertEquals("jane@example.com", entry.getAuthorEmail());
+		Assert.assertEquals("Mon, 5 Oct 2026 10:00:00 +0000", entry.getAuthorDate());
+		Assert.assertEquals("John Roe", entry.getCommitterName());
+		Assert.assertEquals("john@example.com", entry.getCommitterEmail());
+		Assert.assertEquals("Rename b\n\nBody line.\n", entry.getCommitText());
+	}
+
+	private static void assertFiles(final List<ChangeLogEntry.ModifiedFile> files) {
+		Assert.assertEquals(3, files.size());
+		Assert.assertEquals("a.txt", files.get(0).getPath());
+		Assert.assertEquals('M', files.get(0).getAction());
+		Assert.assertEquals("b.txt", files.get(1).getPath());
+		Assert.assertEquals('D', files.get(1).getAction());
+		Assert.assertEquals("c.txt", files.get(2).getPath());
+		Assert.assertEquals('A', files.get(2).getAction());
+	}
+
+	/**
+	 * Test the output of git log with the file list.
+	 */
+	public void testRaw() {
+		final List<ChangeLogEntry> logs = ChangeLog.parseLog("platform/build", "build", COMMIT + "\n"
+				+ ":100644 100644 7898192 93829c7 M\ta.txt\n"
+				+ ":100644 000000 6178079 0000000 D\tb.txt\n"
+				+ ":000000 100644 0000000 6178079 A\tc.txt\n");
+		Assert.assertEquals(1, logs.size());
+		assertCommit(logs.get(0));
+		assertFiles(logs.get(0).getModifiedFiles());
+	}
+
+	/**
+	 * Test the file list of older git versions, which end abbreviated
+	 * sha1s with "...".
+	 */
+	public void testRawEllipsis() {
+		final List<ChangeLogEntry> logs = ChangeLog.parseLog("platform/build", "build", COMMIT + "\n"
+				+ ":100644 100644 7898192... 93829c7... M\ta.txt\n"
+				+ ":100644 000000 6178079... 0000000... D\tb.txt\n"
+				+ ":000000 100644 0000000... 6178079... A\tc.txt\n");
+		Assert.assertEquals(1, logs.size());
+		assertFiles(logs.get(0).getModifiedFiles());
+	}
+
+	/**
+	 * Test the output of git log without the file list, as used when a
+	 * partial clone lacks the trees.
+	 */
+	public void testWithoutFiles() {
+		final List<ChangeLogEntry> logs = ChangeLog.parseLog("platform/build", "build", COMMIT);
+		Assert.assertEquals(1, logs.size());
+		assertCommit(logs.get(0));
+		Assert.assertTrue(logs.get(0).getModifiedFiles().isEmpty());
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+import hudson.Util;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the clean strategies of {@link RepoScm}.
+ */
+public class TestCleanStrategy extends TestCase {
+
+	// CS IGNORE LineLength FOR NEXT 100 LINES. REASON: unit test data.
+	private final RevisionState before = new RevisionState(
+			"<manifest>"
+					+ "<project name=\"a\" path=\"a\" revision=\"c9039e9649d133d80073e432816b9b4915776b41\"/>"
+					+ "<project name=\"b\" path=\"b\" revision=\"c27d6b02c859b291878db67f256cefac3adb26df\"/>"
+					+ "<project name=\"c\" path=\"c\" revision=\"fa822eff984195ec8923718cd025fd44b77a26ef\"/>"
+					+ "</manifest>", "master", null);
+	private final RevisionState after = new RevisionState(
+			"<manifest>"
+					+ "<project name=\"a\" path=\"a\" revision=\"9297f42afa37eaabf1328b44f9f583fc12638c58\"/>"
+					+ "<project name=\"b\" path=\"b\" revision=\"c27d6b02c859b291878db67f256cefac3adb26df\"/>"
+					+ "<project name=\"c\" path=\"c\" revision=\"fa822eff984195ec8923718cd025fd44b77a26ef\"/>"
+					+ "</manifest>", "master", null);
+
+	private static RepoScm createScm(final String cleanStrategy) {
+		final RepoScm scm = new RepoScm("https://example.com/manifest", null, null, null, 0, null, null);
+		scm.setCleanStrategy(cleanStrategy);
+		return scm;
+	}
+
+	private static List<String> sorted(final List<String> paths) {
+		Collections.sort(paths);
+		return paths;
+	}
+
+	/**
+	 * Test that only known strategies are kept.
+	 */
+	public void testStrategies() {
+		Assert.assertNull(createScm(null).getCleanStrategy());
+		Assert.assertNull(createScm("none").getCleanStrategy());
+		Assert.assertNull(createScm("bogus").getCleanStrategy());
+		Assert.assertEquals("wipe", createScm("wipe").getCleanStrategy());
+		Assert.assertNull(createScm("wipe").getCleanPaths(after, before));
+		Assert.assertNull(createScm(null).getCleanPaths(after, before));
+	}
+
+	/**
+	 * Test that "all" cleans every project.
+	 */
+	public void testAll() {
+		Assert.assertEquals(Arrays.asList("a", "b", "c"), sorted(createScm("all").getCleanPaths(after, before)));
+	}
+
+	/**
+	 * Test that "changed" cleans the changed projects, or every project
+	 * without a previous build.
+	 */
+	public void testChanged() {
+		final RepoScm scm = createScm("changed");
+		Assert.assertEquals(Arrays.asList("a"), scm.getCleanPaths(after, before));
+		Assert.assertTrue(scm.getCleanPaths(after, after).isEmpty());
+		Assert.assertEquals(Arrays.asList("a", "b", "c"), sorted(scm.getCleanPaths(after, null)));
+	}
+
+	/**
+	 * Test that "changed" cleans added projects but not removed ones.
+	 */
+	public void testAddedAndRemoved() {
+		final RevisionState replaced = new RevisionState(
+				"<manifest>"
+						+ "<project name=\"a\" path=\"a\" revision=\"c9039e9649d133d80073e432816b9b4915776b41\"/>"
+						+ "<project name=\"b\" path=\"b\" revision=\"c27d6b02c859b291878db67f256cefac3adb26df\"/>"
+						+ "<project name=\"d\" path=\"d\" revision=\"fa822eff984195ec8923718cd025fd44b77a26ef\"/>"
+						+ "</manifest>", "master", null);
+		final RepoScm scm = createScm("changed");
+		Assert.assertEquals(Arrays.asList("d"), scm.getCleanPaths(replaced, before));
+		Assert.assertEquals(Arrays.asList("c"), scm.getCleanPaths(before, replaced));
+	}
+
+	/**
+	 * Test that the state recorded in the checkout is read once, since the
+	 * sync is about to change the checkout.
+	 */
+	public void testCheckoutState() throws Exception {
+		final File dir = File.createTempFile("checkout", "");
+		dir.delete();
+		try {
+			final FilePath checkout = new FilePath(dir);
+			final RepoScm scm = createScm("changed");
+			Assert.assertNull(scm.readCheckoutState(checkout));
+			checkout.child(".repo").child(RepoScm.STATE_FILE).write(before.getManifest(), "UTF-8");
+			final RevisionState state = scm.readCheckoutState(checkout);
+			Assert.assertEquals(Arrays.asList("a"), scm.getCleanPaths(after, state));
+			Assert.assertNull(scm.readCheckoutState(checkout));
+		} finally {
+			Util.deleteRecursive(dir);
+		}
+	}
+}
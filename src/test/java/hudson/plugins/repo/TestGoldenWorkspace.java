@@ -0,0 +1,137 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+import hudson.Util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+import org.junit.Assert;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link GoldenWorkspace} class.
+ */
+public class TestGoldenWorkspace extends TestCase {
+
+	// CS IGNORE LineLength FOR NEXT 100 LINES. REASON: unit test data.
+	private File checkout;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		checkout = File.createTempFile("golden", "");
+		checkout.delete();
+
+		write(new File(checkout, ".repo/manifest.xml"), "<manifest/>\n");
+		write(new File(checkout, ".repo/manifests/default.xml"), "<manifest/>\n");
+		write(new File(checkout, ".repo/project-objects/platform/build.git/objects/pack/pack-1.pack"), "");
+		write(new File(checkout, ".repo/project-objects/platform/build.git/config"), "");
+		write(new File(checkout, ".repo/projects/build.git/HEAD"), "ref: refs/heads/master\n");
+		link("../../project-objects/platform/build.git/objects", new File(checkout, ".repo/projects/build.git/objects"));
+		// A project synced by a version of repo without project-objects.
+		write(new File(checkout, ".repo/projects/dalvik.git/objects/pack/pack-2.pack"), "");
+		write(new File(checkout, ".repo/projects/dalvik.git/config"), "");
+		write(new File(checkout, "build/Makefile"), "all:\n");
+		link("../.repo/projects/build.git", new File(checkout, "build/.git"));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		Util.deleteRecursive(checkout);
+		super.tearDown();
+	}
+
+	private static void write(final File file, final String text) throws IOException {
+		file.getParentFile().mkdirs();
+		final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			writer.write(text);
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static void link(final String target, final File link) throws Exception {
+		Assert.assertEquals(0, Runtime.getRuntime().exec(new String[] {"ln", "-s", target, link.getPath()}).waitFor());
+	}
+
+	/**
+	 * Test that the object stores are listed apart from the rest, without
+	 * following the links to them.
+	 */
+	public void testListParts() throws Exception {
+		Assert.assertEquals(Arrays.asList(
+				".repo/project-objects/platform/build.git/objects",
+				".repo/projects/dalvik.git/objects"),
+				new GoldenWorkspace.ListParts(true).invoke(checkout, null));
+		Assert.assertEquals(Arrays.asList(
+				".repo/manifest.xml",
+				".repo/manifests",
+				".repo/project-objects/platform/build.git/config",
+				".repo/projects/build.git",
+				".repo/projects/dalvik.git/config",
+				"build"),
+				new GoldenWorkspace.ListParts(false).invoke(checkout, null));
+	}
+
+	/**
+	 * Test that saving copies the parts in .repo, leaving out the work
+	 * trees.
+	 */
+	public void testRepoParts() throws Exception {
+		Assert.assertEquals(Arrays.asList(
+				".repo/manifest.xml",
+				".repo/manifests",
+				".repo/project-objects/platform/build.git/config",
+				".repo/projects/build.git",
+				".repo/projects/dalvik.git/config"),
+				GoldenWorkspace.getRepoParts(new GoldenWorkspace.ListParts(false).invoke(checkout, null)));
+		Assert.assertEquals(Arrays.asList(".repo"), GoldenWorkspace.getRepoParts(Arrays.asList(".repo", ".repository", "build")));
+	}
+
+	/**
+	 * Test that jobs only share a golden checkout if they poll the same
+	 * checkout.
+	 */
+	public void testGoldenDir() {
+		final FilePath root = new FilePath(new File("/var/jenkins"));
+		final RepoScm scm = new RepoScm("https://example.com/platform/manifest", "master", null, null, 0, null, null);
+		final RepoScm same = new RepoScm("https://example.com/platform/manifest", "master", null, null, 4, null, null);
+		final RepoScm group = new RepoScm("https://example.com/platform/manifest", "master", null, null, 0, null, null);
+		group.setManifestGroup("tv");
+		final RepoScm branch = new RepoScm("https://example.com/platform/manifest", "stable", null, null, 0, null, null);
+		final String dir = GoldenWorkspace.getGoldenDir(root, scm).getRemote();
+		Assert.assertEquals(dir, GoldenWorkspace.getGoldenDir(root, same).getRemote());
+		Assert.assertFalse(dir.equals(GoldenWorkspace.getGoldenDir(root, group).getRemote()));
+		Assert.assertFalse(dir.equals(GoldenWorkspace.getGoldenDir(root, branch).getRemote()));
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link JobTuner} class.
+ */
+public class TestJobTuner extends TestCase {
+
+	private final List<SyncReport> history = new ArrayList<SyncReport>();
+
+	private void addSync(final int jobs, final long duration) {
+		final SyncReport report = new SyncReport();
+		report.setJobs(jobs);
+		report.addPhase("sync", duration, 0);
+		history.add(report);
+	}
+
+	/**
+	 * Test the first choice and the bound from the load average.
+	 */
+	public void testNoHistory() {
+		Assert.assertEquals(8, JobTuner.choose(8, -1, history));
+		Assert.assertEquals(4, JobTuner.choose(4, 0.5, history));
+		Assert.assertEquals(2, JobTuner.choose(4, 5.8, history));
+		Assert.assertEquals(1, JobTuner.choose(1, 10, history));
+	}
+
+	/**
+	 * Test that the neighbours of the best value are tried, and that the
+	 * best value is then kept.
+	 */
+	public void testConverges() {
+		addSync(8, 100000);
+		Assert.assertEquals(10, JobTuner.choose(8, 0, history));
+		addSync(10, 90000);
+		Assert.assertEquals(12, JobTuner.choose(8, 0, history));
+		addSync(12, 95000);
+		Assert.assertEquals(10, JobTuner.choose(8, 0, history));
+		addSync(10, 92000);
+		Assert.assertEquals(10, JobTuner.choose(8, 0, history));
+		// A busy agent caps the choice.
+		Assert.assertEquals(6, JobTuner.choose(8, 10, history));
+	}
+
+	/**
+	 * Test that fewer jobs are tried once more jobs were slower or are
+	 * out of bounds.
+	 */
+	public void testStepsDown() {
+		addSync(8, 100000);
+		addSync(10, 120000);
+		Assert.assertEquals(6, JobTuner.choose(8, 0, history));
+
+		history.clear();
+		addSync(8, 100000);
+		// Four processors allow at most eight jobs.
+		Assert.assertEquals(6, JobTuner.choose(4, 0, history));
+	}
+
+	/**
+	 * Test that repeated syncs with the same jobs are averaged.
+	 */
+	public void testAverages() {
+		addSync(8, 100000);
+		addSync(8, 200000);
+		addSync(6, 140000);
+		Assert.assertEquals(7, JobTuner.choose(8, 0, history));
+	}
+}
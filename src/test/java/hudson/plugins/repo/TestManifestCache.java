@@ -0,0 +1,64 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+
+import java.io.File;
+
+import org.junit.Assert;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link ManifestCache} class.
+ */
+public class TestManifestCache extends TestCase {
+
+	// CS IGNORE LineLength FOR NEXT 30 LINES. REASON: unit test data.
+	private final File root = new File("/var/jenkins/repo-manifests");
+
+	/**
+	 * Test that every manifest URL and branch gets its own clone, shared by
+	 * the jobs using them.
+	 */
+	public void testGitDir() {
+		final FilePath master = ManifestCache.getGitDir(root, "https://example.com/platform/manifest", "master");
+		Assert.assertEquals(root.getPath(), new File(master.getRemote()).getParent());
+		Assert.assertEquals(master.getRemote(), ManifestCache.getGitDir(root, "https://example.com/platform/manifest", "master").getRemote());
+		Assert.assertFalse(master.getRemote().equals(ManifestCache.getGitDir(root, "https://example.com/platform/manifest", "stable").getRemote()));
+		Assert.assertFalse(master.getRemote().equals(ManifestCache.getGitDir(root, "https://example.com/platform/manifest", null).getRemote()));
+		Assert.assertFalse(master.getRemote().equals(ManifestCache.getGitDir(root, "https://example.com/other/manifest", "master").getRemote()));
+	}
+
+	/**
+	 * Test that polls fetching into the same clone share a lock.
+	 */
+	public void testLocks() {
+		final FilePath master = ManifestCache.getGitDir(root, "https://example.com/platform/manifest", "master");
+		final FilePath stable = ManifestCache.getGitDir(root, "https://example.com/platform/manifest", "stable");
+		Assert.assertSame(ManifestCache.getLock(master), ManifestCache.getLock(ManifestCache.getGitDir(root, "https://example.com/platform/manifest", "master")));
+		Assert.assertNotSame(ManifestCache.getLock(master), ManifestCache.getLock(stable));
+	}
+}
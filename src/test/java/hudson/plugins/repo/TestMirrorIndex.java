@@ -0,0 +1,207 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.Util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link MirrorIndex} class.
+ */
+public class TestMirrorIndex extends TestCase {
+
+	// CS IGNORE LineLength FOR NEXT 200 LINES. REASON: unit test data.
+	private static final String BUILD_HEAD = "9297f42afa37eaabf1328b44f9f583fc12638c58";
+	private static final String BUILD_TAG = "c27d6b02c859b291878db67f256cefac3adb26df";
+	private static final String BUILD_TAGGED = "fa822eff984195ec8923718cd025fd44b77a26ef";
+	private static final String DALVIK_HEAD = "c9039e9649d133d80073e432816b9b4915776b41";
+
+	private File root;
+	private File mirror;
+	private File workspace;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		root = File.createTempFile("mirror", "");
+		root.delete();
+		mirror = new File(root, "mirror");
+		workspace = new File(root, "workspace");
+
+		write(new File(mirror, ".repo/manifests.git/objects/.keep"), "");
+		write(new File(mirror, "platform/build.git/objects/.keep"), "");
+		write(new File(mirror, "platform/build.git/packed-refs"),
+				"# pack-refs with: peeled fully-peeled\n"
+						+ BUILD_HEAD + " refs/heads/master\n"
+						+ BUILD_TAG + " refs/tags/v1.0\n"
+						+ "^" + BUILD_TAGGED + "\n");
+		write(new File(mirror, "platform/build.git/HEAD"), "ref: refs/heads/master\n");
+		write(new File(mirror, "platform/dalvik.git/objects/.keep"), "");
+		write(new File(mirror, "platform/dalvik.git/refs/heads/master"), DALVIK_HEAD + "\n");
+
+		write(new File(workspace, ".repo/projects/build.git/config"),
+				"[core]\n\tbare = false\n[remote \"aosp\"]\n\turl = https://example.com/platform/build\n");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		Util.deleteRecursive(root);
+		super.tearDown();
+	}
+
+	private static void write(final File file, final String text) throws IOException {
+		file.getParentFile().mkdirs();
+		final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			writer.write(text);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Test that the index has the packed, peeled and loose refs of every
+	 * project.
+	 */
+	public void testUpdate() throws Exception {
+		Assert.assertEquals(Integer.valueOf(2), new MirrorIndex.Update().invoke(mirror, null));
+		final Map<String, Set<String>> index =
+				MirrorIndex.read(new File(mirror, ".repo/" + MirrorIndex.INDEX_FILE));
+		Assert.assertEquals(2, index.size());
+		Assert.assertEquals(3, index.get("platform/build").size());
+		Assert.assertTrue(index.get("platform/build").contains(BUILD_TAGGED));
+		Assert.assertTrue(index.get("platform/dalvik").contains(DALVIK_HEAD));
+	}
+
+	/**
+	 * Test that only projects synced in the workspace whose revision is in
+	 * the mirror are selected.
+	 */
+	public void testCheck() throws Exception {
+		final Map<String, String> names = new HashMap<String, String>();
+		final Map<String, String> revisions = new HashMap<String, String>();
+		names.put("build", "platform/build");
+		revisions.put("build", BUILD_HEAD);
+		names.put("dalvik", "platform/dalvik");
+		revisions.put("dalvik", DALVIK_HEAD);
+
+		final MirrorIndex.Check check = new MirrorIndex.Check(mirror.getPath(), names, revisions);
+		Assert.assertTrue(check.invoke(workspace, null).isEmpty());
+
+		new MirrorIndex.Update().invoke(mirror, null);
+		List<String> paths = check.invoke(workspace, null);
+		Assert.assertEquals(1, paths.size());
+		Assert.assertEquals("build", paths.get(0));
+
+		revisions.put("build", "7086d7305fa6c7c1930de1e7d96fffc9c819b479");
+		paths = new MirrorIndex.Check(mirror.getPath(), names, revisions).invoke(workspace, null);
+		Assert.assertTrue(paths.isEmpty());
+	}
+
+	/**
+	 * Test reading the remote of a project.
+	 */
+	public void testRemote() throws Exception {
+		Assert.assertEquals("aosp", MirrorIndex.readRemote(new File(workspace, ".repo/projects/build.git")));
+		Assert.assertNull(MirrorIndex.readRemote(new File(workspace, ".repo/projects/dalvik.git")));
+	}
+
+	/**
+	 * Test that the wanted revision is fetched by SHA-1 into the remote
+	 * branch, or alone for a pinned project.
+	 */
+	public void testFetch() throws Exception {
+		final Map<String, String> names = new HashMap<String, String>();
+		final Map<String, String> revisions = new HashMap<String, String>();
+		final Map<String, String> branches = new HashMap<String, String>();
+		names.put("build", "platform/build");
+		revisions.put("build", BUILD_HEAD);
+		branches.put("build", "master");
+		names.put("dalvik", "platform/dalvik");
+		revisions.put("dalvik", DALVIK_HEAD);
+
+		final MirrorIndex.Fetch fetch =
+				new MirrorIndex.Fetch(mirror.getPath(), names, revisions, branches, 1, 1000L);
+		List<String> command = fetch.getCommand(workspace, "build");
+		Assert.assertEquals(new File(mirror, "platform/build.git").getPath(),
+				command.get(command.size() - 2));
+		Assert.assertEquals("+" + BUILD_HEAD + ":refs/remotes/aosp/master",
+				command.get(command.size() - 1));
+		Assert.assertTrue(command.contains("--upload-pack=git -c uploadpack.allowAnySHA1InWant=true upload-pack"));
+
+		command = fetch.getCommand(workspace, "dalvik");
+		Assert.assertEquals(DALVIK_HEAD, command.get(command.size() - 1));
+	}
+
+	/**
+	 * Test the branch a project tracks.
+	 */
+	public void testBranch() throws Exception {
+		Assert.assertEquals("master", MirrorIndex.getBranch("master"));
+		Assert.assertEquals("gingerbread", MirrorIndex.getBranch("refs/heads/gingerbread"));
+		Assert.assertNull(MirrorIndex.getBranch("refs/tags/v1.0"));
+		Assert.assertNull(MirrorIndex.getBranch(BUILD_HEAD));
+		Assert.assertNull(MirrorIndex.getBranch(null));
+	}
+
+	/**
+	 * Test that only projects whose remote branch points to the wanted
+	 * revision, loose or packed, are verified.
+	 */
+	public void testVerify() throws Exception {
+		final File gitDir = new File(workspace, ".repo/projects/build.git");
+		final Map<String, String> revisions = new HashMap<String, String>();
+		final Map<String, String> branches = new HashMap<String, String>();
+		revisions.put("build", BUILD_HEAD);
+		branches.put("build", "master");
+		revisions.put("dalvik", DALVIK_HEAD);
+		final MirrorIndex.Verify verify =
+				new MirrorIndex.Verify(Arrays.asList("build", "dalvik"), revisions, branches);
+
+		Assert.assertEquals(Arrays.asList("dalvik"), verify.invoke(workspace, null));
+
+		write(new File(gitDir, "packed-refs"), BUILD_TAG + " refs/remotes/aosp/master\n");
+		Assert.assertEquals(Arrays.asList("dalvik"), verify.invoke(workspace, null));
+
+		write(new File(gitDir, "packed-refs"), BUILD_HEAD + " refs/remotes/aosp/master\n");
+		Assert.assertEquals(Arrays.asList("build", "dalvik"), verify.invoke(workspace, null));
+
+		write(new File(gitDir, "refs/remotes/aosp/master"), BUILD_TAG + "\n");
+		Assert.assertEquals(Arrays.asList("dalvik"), verify.invoke(workspace, null));
+	}
+}
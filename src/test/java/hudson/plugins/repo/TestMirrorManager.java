@@ -0,0 +1,95 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+import hudson.Util;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link MirrorManager} class.
+ */
+public class TestMirrorManager extends TestCase {
+
+	// CS IGNORE LineLength FOR NEXT 60 LINES. REASON: unit test data.
+
+	/**
+	 * Test that every manifest URL, branch and file gets its own readable
+	 * directory.
+	 */
+	public void testMirrorDir() {
+		final FilePath root = new FilePath(new File("/var/jenkins"));
+		final String url = "ssh://review.example.com:29418/platform/manifest.git";
+		final FilePath mirror = MirrorManager.getMirrorDir(root, url, "master", null);
+		Assert.assertTrue(mirror.getName().startsWith("platform_manifest-"));
+		Assert.assertEquals(mirror.getRemote(), MirrorManager.getMirrorDir(root, url, "master", null).getRemote());
+		Assert.assertFalse(mirror.getRemote().equals(MirrorManager.getMirrorDir(root, "ssh://other.example.com/platform/manifest.git", "master", null).getRemote()));
+		Assert.assertFalse(mirror.getRemote().equals(MirrorManager.getMirrorDir(root, url, "stable", null).getRemote()));
+		Assert.assertFalse(mirror.getRemote().equals(MirrorManager.getMirrorDir(root, url, "master", "tv.xml").getRemote()));
+		Assert.assertFalse(mirror.getRemote().equals(MirrorManager.getMirrorDir(root, url, null, null).getRemote()));
+	}
+
+	/**
+	 * Test that a recently synced mirror is only used as is if it was set
+	 * up by the same repo init command.
+	 */
+	public void testFresh() throws Exception {
+		final File dir = File.createTempFile("mirror", "");
+		dir.delete();
+		try {
+			final FilePath mirror = new FilePath(dir);
+			final FilePath repoDir = mirror.child(".repo");
+			final List<String> init = Arrays.asList("repo", "init", "-u", "https://example.com/manifest", "-b", "master", "--mirror");
+			Assert.assertFalse(MirrorManager.isFresh(mirror, init, 60000L));
+			repoDir.child("manifests").mkdirs();
+			repoDir.child("jenkins-mirror-synced").write(Long.toString(System.currentTimeMillis()), "UTF-8");
+			// Created before the init command was recorded.
+			Assert.assertFalse(MirrorManager.isFresh(mirror, init, 60000L));
+			repoDir.child("jenkins-mirror-init").write(Util.join(init, "\n"), "UTF-8");
+			Assert.assertTrue(MirrorManager.isFresh(mirror, init, 60000L));
+			Assert.assertFalse(MirrorManager.isFresh(mirror, init, 0L));
+			Assert.assertFalse(MirrorManager.isFresh(mirror, Arrays.asList("repo", "init", "-u", "https://example.com/manifest", "-b", "stable", "--mirror"), 60000L));
+		} finally {
+			new FilePath(dir).deleteRecursive();
+		}
+	}
+
+	/**
+	 * Test that updates of the same mirror on the same node share a lock.
+	 */
+	public void testLocks() {
+		final FilePath one = new FilePath(new File("/var/jenkins/repo-mirrors/one"));
+		final FilePath two = new FilePath(new File("/var/jenkins/repo-mirrors/two"));
+		Assert.assertSame(MirrorManager.getLock("agent", one), MirrorManager.getLock("agent", one));
+		Assert.assertNotSame(MirrorManager.getLock("agent", one), MirrorManager.getLock("other", one));
+		Assert.assertNotSame(MirrorManager.getLock("agent", one), MirrorManager.getLock("agent", two));
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Assert;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link ParallelForall} class. They run Unix commands,
+ * so they do nothing elsewhere.
+ */
+public class TestParallelForall extends TestCase {
+
+	private File workspace;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		workspace = File.createTempFile("forall", "");
+		workspace.delete();
+		new File(workspace, "a").mkdirs();
+		new File(workspace, "b/c").mkdirs();
+		new File(workspace, "a/marker").createNewFile();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		new File(workspace, "a/marker").delete();
+		new File(workspace, "b/c").delete();
+		new File(workspace, "b").delete();
+		new File(workspace, "a").delete();
+		workspace.delete();
+		super.tearDown();
+	}
+
+	private static boolean isUnix() {
+		return File.pathSeparatorChar == ':';
+	}
+
+	/**
+	 * Test that failures and missing projects are collected.
+	 */
+	public void testFailures() throws IOException, InterruptedException {
+		if (!isUnix()) {
+			return;
+		}
+		final ParallelForall.Result result =
+				new ParallelForall(Arrays.asList("a", "b/c", "missing"), 2, 0,
+						"test", "-f", "marker").invoke(workspace, null);
+		Assert.assertEquals(2, result.getProjectCount());
+		Assert.assertEquals(1, result.getMissingCount());
+		Assert.assertFalse(result.isSuccessful());
+		Assert.assertEquals(1, result.getFailures().size());
+		Assert.assertTrue(result.getFailures().get("b/c").startsWith(
+				"exit code 1"));
+	}
+
+	/**
+	 * Test the per-project timeout.
+	 */
+	public void testTimeout() throws IOException, InterruptedException {
+		if (!isUnix()) {
+			return;
+		}
+		final long start = System.currentTimeMillis();
+		final ParallelForall.Result result =
+				new ParallelForall(Arrays.asList("a", "b/c"), 1, 200,
+						"sleep", "10").invoke(workspace, null);
+		Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+		Assert.assertEquals("timed out", result.getFailures().get("a"));
+		Assert.assertEquals("timed out", result.getFailures().get("b/c"));
+	}
+}
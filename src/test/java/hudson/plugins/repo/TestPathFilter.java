@@ -0,0 +1,65 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import org.junit.Assert;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link PathFilter} class.
+ */
+public class TestPathFilter extends TestCase {
+
+	/**
+	 * Test that everything is included by default.
+	 */
+	public void testEmpty() {
+		final PathFilter filter = new PathFilter(null, "\n");
+		Assert.assertTrue(filter.isEmpty());
+		Assert.assertTrue(filter.isIncluded("build"));
+	}
+
+	/**
+	 * Test that excludes win over includes.
+	 */
+	public void testIncludeExclude() {
+		final PathFilter filter =
+				new PathFilter("frameworks/.*\nbuild", "frameworks/docs");
+		Assert.assertTrue(filter.isIncluded("build"));
+		Assert.assertTrue(filter.isIncluded("frameworks/base"));
+		Assert.assertFalse(filter.isIncluded("frameworks/docs"));
+		Assert.assertFalse(filter.isIncluded("bionic"));
+		Assert.assertFalse(filter.isIncluded("build/tools"));
+	}
+
+	/**
+	 * Test that invalid patterns are ignored.
+	 */
+	public void testInvalidPattern() {
+		final PathFilter filter = new PathFilter(null, "docs/.*\n[");
+		Assert.assertFalse(filter.isIncluded("docs/guide"));
+		Assert.assertTrue(filter.isIncluded("build"));
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link PollingCoalescer} class.
+ */
+public class TestPollingCoalescer extends TestCase {
+
+	private static final long MAX_AGE = 60000;
+
+	private final RevisionState state = new RevisionState("<manifest/>", "master", null);
+	private final AtomicInteger calls = new AtomicInteger();
+	private final CountDownLatch running = new CountDownLatch(1);
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	/**
+	 * A resolver which blocks its first call until it is released. The
+	 * first call is interrupted if interruptFirst is set.
+	 */
+	private PollingCoalescer.Resolver createResolver(final boolean interruptFirst) {
+		return new PollingCoalescer.Resolver() {
+			public RevisionState resolve(final TaskListener listener)
+					throws IOException, InterruptedException {
+				final int call = calls.incrementAndGet();
+				listener.getLogger().println("Resolving " + call);
+				if (call == 1) {
+					running.countDown();
+					release.await();
+					if (interruptFirst) {
+						throw new InterruptedException();
+					}
+				}
+				return state;
+			}
+		};
+	}
+
+	/**
+	 * A thread polling like a job would.
+	 */
+	private final class PollThread extends Thread {
+		private final String key;
+		private final PollingCoalescer.Resolver resolver;
+		private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+		private RevisionState result;
+		private Exception failure;
+
+		private PollThread(final String key, final PollingCoalescer.Resolver resolver) {
+			this.key = key;
+			this.resolver = resolver;
+		}
+
+		@Override
+		public void run() {
+			try {
+				result = PollingCoalescer.resolve(key, MAX_AGE, new StreamTaskListener(log), resolver);
+			} catch (final Exception e) {
+				failure = e;
+			}
+		}
+	}
+
+	/**
+	 * Starts a poll which blocks in its resolver, and waiters for it.
+	 */
+	private PollThread[] startPolls(final String key, final boolean interruptFirst, final int count)
+			throws InterruptedException {
+		final PollingCoalescer.Resolver resolver = createResolver(interruptFirst);
+		final PollThread[] threads = new PollThread[count];
+		for (int i = 0; i < count; i++) {
+			threads[i] = new PollThread(key, resolver);
+			threads[i].start();
+			if (i == 0) {
+				running.await();
+			}
+		}
+		// Let the waiters reach the running poll.
+		Thread.sleep(200);
+		release.countDown();
+		for (final PollThread thread : threads) {
+			thread.join();
+		}
+		return threads;
+	}
+
+	/**
+	 * Test that concurrent polls of the same manifest resolve it once, and
+	 * that every job gets the log of the poll.
+	 */
+	public void testShared() throws Exception {
+		final PollThread[] threads = startPolls("shared", false, 4);
+		Assert.assertEquals(1, calls.get());
+		for (final PollThread thread : threads) {
+			Assert.assertNull(thread.failure);
+			Assert.assertSame(state, thread.result);
+			Assert.assertTrue(thread.log.toString("UTF-8").contains("Resolving 1"));
+		}
+		Assert.assertSame(state, PollingCoalescer.resolve("shared", MAX_AGE,
+				new StreamTaskListener(new ByteArrayOutputStream()), createResolver(false)));
+		Assert.assertEquals(1, calls.get());
+	}
+
+	/**
+	 * Test that the jobs waiting for an interrupted poll poll again instead
+	 * of failing.
+	 */
+	public void testInterrupted() throws Exception {
+		final PollThread[] threads = startPolls("interrupted", true, 3);
+		Assert.assertTrue(threads[0].failure instanceof InterruptedException);
+		for (int i = 1; i < threads.length; i++) {
+			Assert.assertNull(threads[i].failure);
+			Assert.assertSame(state, threads[i].result);
+		}
+		// The first waiter to retry polls again, the other shares its
+		// result.
+		Assert.assertEquals(2, calls.get());
+	}
+
+	/**
+	 * Test that results which can't be shared anymore are forgotten.
+	 */
+	public void testPruned() throws Exception {
+		release.countDown();
+		final TaskListener listener = new StreamTaskListener(new ByteArrayOutputStream());
+		PollingCoalescer.resolve("pruned-one", MAX_AGE, listener, createResolver(false));
+		PollingCoalescer.resolve("pruned-two", MAX_AGE, listener, createResolver(false));
+		final int size = PollingCoalescer.size();
+		Thread.sleep(10);
+		PollingCoalescer.resolve("pruned-three", 0, listener, createResolver(false));
+		Assert.assertTrue(PollingCoalescer.size() < size);
+	}
+}
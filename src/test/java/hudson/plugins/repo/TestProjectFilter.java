@@ -0,0 +1,85 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import org.junit.Assert;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link ProjectFilter} class.
+ */
+public class TestProjectFilter extends TestCase {
+
+	// CS IGNORE LineLength FOR NEXT 60 LINES. REASON: unit test data.
+
+	/**
+	 * Test repo's group matching rules.
+	 */
+	public void testGroups() {
+		final ProjectFilter defaults = new ProjectFilter(null, null);
+		Assert.assertTrue(defaults.isEmpty());
+		Assert.assertTrue(defaults.isIncluded("platform/build", "build", null));
+		Assert.assertTrue(defaults.isIncluded("platform/docs", "docs", "docs"));
+		Assert.assertFalse(defaults.isIncluded("vendor/x", "vendor/x", "notdefault,vendor"));
+
+		final ProjectFilter groups = new ProjectFilter("default, vendor,-docs", null);
+		Assert.assertFalse(groups.isEmpty());
+		Assert.assertTrue(groups.isIncluded("platform/build", "build", null));
+		Assert.assertFalse(groups.isIncluded("platform/docs", "docs", "docs"));
+		Assert.assertTrue(groups.isIncluded("vendor/x", "vendor/x", "notdefault,vendor"));
+
+		final ProjectFilter implicit = new ProjectFilter("path:build name:tools/repo", null);
+		Assert.assertTrue(implicit.isIncluded("platform/build", "build", null));
+		Assert.assertTrue(implicit.isIncluded("tools/repo", "repo", null));
+		Assert.assertFalse(implicit.isIncluded("platform/bionic", "bionic", null));
+	}
+
+	/**
+	 * Test the project list.
+	 */
+	public void testProjects() {
+		final ProjectFilter filter = new ProjectFilter(null, "platform/build\nbionic");
+		Assert.assertTrue(filter.isIncluded("platform/build", "build", null));
+		Assert.assertTrue(filter.isIncluded("platform/bionic", "bionic", null));
+		Assert.assertFalse(filter.isIncluded("platform/dalvik", "dalvik", null));
+		Assert.assertFalse(filter.isIncluded("platform/bionic", "bionic", "notdefault"));
+	}
+
+	/**
+	 * Test that a filtered {@link RevisionState} only has the selected
+	 * projects.
+	 */
+	public void testRevisionState() {
+		final String manifest =
+				"<manifest>"
+						+ "<project name=\"platform/build\" path=\"build\" revision=\"c9039e9649d133d80073e432816b9b4915776b41\"/>"
+						+ "<project name=\"platform/docs\" path=\"docs\" groups=\"docs\" revision=\"c27d6b02c859b291878db67f256cefac3adb26df\"/>"
+						+ "</manifest>";
+		final RevisionState state = new RevisionState(manifest, null, "master",
+				new ProjectFilter("default,-docs", null), null);
+		Assert.assertNotNull(state.getProject("build"));
+		Assert.assertNull(state.getProject("docs"));
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import java.util.Map;
+
+import org.junit.Assert;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link ProjectIndex} class.
+ */
+public class TestProjectIndex extends TestCase {
+
+	// CS IGNORE LineLength FOR NEXT 110 LINES. REASON: unit test data.
+	private final RepoScm scm = new RepoScm(
+			"ssh://review.example.com:29418/platform/manifest.git", "stable",
+			null, null, 0, null, null);
+
+	private final String manifestOne =
+			"<manifest>"
+					+ "<remote name=\"aosp\" fetch=\"..\"/>"
+					+ "<remote name=\"other\" fetch=\"https://android.googlesource.com/\"/>"
+					+ "<default remote=\"aosp\" revision=\"master\"/>"
+					+ "<project name=\"platform/build\" path=\"build\" revision=\"c9039e9649d133d80073e432816b9b4915776b41\" upstream=\"master\"/>"
+					+ "<project name=\"platform/bionic\" path=\"bionic\" revision=\"c27d6b02c859b291878db67f256cefac3adb26df\" upstream=\"refs/tags/v1.0\"/>"
+					+ "<project name=\"platform/dalvik\" path=\"dalvik\" revision=\"fa822eff984195ec8923718cd025fd44b77a26ef\"/>"
+					+ "<project name=\"platform/external/foo\" path=\"external/foo\" remote=\"other\" revision=\"fa822eff984195ec8923718cd025fd44b77a26ef\" upstream=\"master\"/>"
+					+ "</manifest>";
+	private final String manifestTwo =
+			"<manifest>"
+					+ "<project name=\"platform/build\" path=\"build\" revision=\"9297f42afa37eaabf1328b44f9f583fc12638c58\" upstream=\"dev\"/>"
+					+ "</manifest>";
+
+	/**
+	 * Test lookups by host, project and branch.
+	 */
+	public void testLookup() {
+		final ProjectIndex index = new ProjectIndex();
+		index.update("one", scm, new RevisionState(manifestOne, "stable", null));
+		index.update("two", scm, new RevisionState(manifestTwo, "stable", null));
+
+		Assert.assertEquals(1, index.getJobs("review.example.com", "platform/build", "master").size());
+		Assert.assertTrue(index.getJobs("review.example.com", "platform/build", "refs/heads/master").contains("one"));
+		Assert.assertTrue(index.getJobs("review.example.com", "platform/build", "dev").contains("two"));
+		Assert.assertTrue(index.getJobs("review.example.com", "platform/build", "other").isEmpty());
+		// Tags and SHA-1s don't move.
+		Assert.assertTrue(index.getJobs("review.example.com", "platform/bionic", "refs/tags/v1.0").isEmpty());
+		Assert.assertTrue(index.getJobs("review.example.com", "platform/dalvik", "master").isEmpty());
+		Assert.assertTrue(index.getJobs("review.example.com", "platform/dalvik", "anything").isEmpty());
+		Assert.assertEquals(2, index.getJobs("review.example.com", "platform/manifest", "stable").size());
+		// Projects are matched on the host serving them.
+		Assert.assertTrue(index.getJobs("android.googlesource.com", "platform/external/foo", "master").contains("one"));
+		Assert.assertTrue(index.getJobs("review.example.com", "platform/external/foo", "master").isEmpty());
+		Assert.assertTrue(index.getJobs("android.googlesource.com", "platform/build", "master").isEmpty());
+		Assert.assertTrue(index.getJobs("Review.Example.com:29418", "platform/build", "master").contains("one"));
+	}
+
+	/**
+	 * Test that updating and removing a job only touches its own entries.
+	 */
+	public void testIncrementalUpdate() {
+		final ProjectIndex index = new ProjectIndex();
+		index.update("one", scm, new RevisionState(manifestOne, "stable", null));
+		index.update("two", scm, new RevisionState(manifestOne, "stable", null));
+		final int size = index.size();
+
+		index.update("one", scm, new RevisionState(manifestTwo, "stable", null));
+		Assert.assertEquals(2, index.getKeys("one").size());
+		Assert.assertFalse(index.getJobs("review.example.com", "platform/build", "master").contains("one"));
+		Assert.assertTrue(index.getJobs("review.example.com", "platform/build", "master").contains("two"));
+		Assert.assertTrue(index.getJobs("review.example.com", "platform/build", "dev").contains("one"));
+		Assert.assertEquals(size + 1, index.size());
+
+		index.remove("two");
+		Assert.assertTrue(index.getJobs("review.example.com", "platform/build", "master").isEmpty());
+		Assert.assertTrue(index.getJobs("android.googlesource.com", "platform/external/foo", "master").isEmpty());
+		Assert.assertEquals(2, index.size());
+	}
+
+	/**
+	 * Test which jobs can rely on the event stream instead of polling.
+	 */
+	public void testIndexed() {
+		final ProjectIndex index = new ProjectIndex();
+		final RevisionState one = new RevisionState(manifestOne, "stable", null);
+		final RevisionState two = new RevisionState(manifestTwo, "stable", null);
+		Assert.assertFalse(index.isIndexed("two", scm, two));
+		index.update("two", scm, two);
+		Assert.assertTrue(index.isIndexed("two", scm, two));
+		// A build not indexed yet.
+		Assert.assertFalse(index.isIndexed("two", scm, one));
+		// dalvik has no upstream, so its branch is unknown.
+		index.update("one", scm, one);
+		Assert.assertFalse(index.isIndexed("one", scm, one));
+		Assert.assertFalse(index.isIndexed("one", scm, null));
+	}
+
+	/**
+	 * Test the host names of URLs and manifests.
+	 */
+	public void testHosts() {
+		Assert.assertEquals("review.example.com", ProjectIndex.getHostName("ssh://jenkins@review.example.com:29418/platform/manifest"));
+		Assert.assertEquals("review.example.com", ProjectIndex.getHostName("jenkins@Review.example.com:29418"));
+		Assert.assertEquals("review.example.com", ProjectIndex.getHostName("review.example.com"));
+		Assert.assertEquals("android.googlesource.com", ProjectIndex.getHostName("https://android.googlesource.com/"));
+
+		final Map<String, String> hosts = ProjectIndex.getHosts(manifestOne, scm.getManifestRepositoryUrl());
+		Assert.assertEquals("review.example.com", hosts.get("build"));
+		Assert.assertEquals("android.googlesource.com", hosts.get("external/foo"));
+		Assert.assertTrue(ProjectIndex.getHosts(manifestTwo, scm.getManifestRepositoryUrl()).isEmpty());
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link RefCache} class.
+ */
+public class TestRefCache extends TestCase {
+
+	private static final String URL = "https://host/platform/build";
+
+	private long time = 1000000;
+
+	private final RefCache cache = new RefCache() {
+		@Override
+		long now() {
+			return time;
+		}
+	};
+
+	private final Set<String> refs = new HashSet<String>();
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		cache.configure(30000, 60000);
+		refs.add("refs/heads/master");
+		refs.add("refs/heads/missing");
+	}
+
+	/**
+	 * Test that heads expire and that missing refs are cached.
+	 */
+	public void testHeads() {
+		Assert.assertNull(cache.getHeads(URL, refs));
+		final Map<String, String> found = new HashMap<String, String>();
+		found.put("refs/heads/master",
+				"c9039e9649d133d80073e432816b9b4915776b41");
+		cache.putHeads(URL, refs, found);
+
+		time += 10000;
+		final Map<String, String> cached = cache.getHeads(URL, refs);
+		Assert.assertEquals(found.get("refs/heads/master"),
+				cached.get("refs/heads/master"));
+		Assert.assertTrue(cached.containsKey("refs/heads/missing"));
+		Assert.assertNull(cached.get("refs/heads/missing"));
+
+		refs.add("refs/heads/other");
+		Assert.assertNull(cache.getHeads(URL, refs));
+		refs.remove("refs/heads/other");
+
+		time += 20000;
+		Assert.assertNull(cache.getHeads(URL, refs));
+		Assert.assertEquals(1, cache.getHits());
+		Assert.assertEquals(3, cache.getMisses());
+		Assert.assertEquals(25, cache.getHitRate());
+	}
+
+	/**
+	 * Test that the backoff doubles and is reset by a success.
+	 */
+	public void testBackoff() {
+		cache.putFailure(URL);
+		Assert.assertTrue(cache.isBackingOff(URL));
+		time += 60000;
+		Assert.assertFalse(cache.isBackingOff(URL));
+
+		cache.putFailure(URL);
+		time += 60000;
+		Assert.assertTrue(cache.isBackingOff(URL));
+		time += 60000;
+		Assert.assertFalse(cache.isBackingOff(URL));
+
+		cache.putFailure(URL);
+		cache.putHeads(URL, refs, new HashMap<String, String>());
+		Assert.assertFalse(cache.isBackingOff(URL));
+		Assert.assertEquals(2, cache.getSkips());
+	}
+
+	/**
+	 * Test that a zero lifetime disables the cache.
+	 */
+	public void testDisabled() {
+		cache.configure(0, 0);
+		cache.putHeads(URL, refs, new HashMap<String, String>());
+		Assert.assertNull(cache.getHeads(URL, refs));
+		cache.putFailure(URL);
+		Assert.assertFalse(cache.isBackingOff(URL));
+	}
+}
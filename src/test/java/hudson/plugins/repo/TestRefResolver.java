@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link RefResolver} class.
+ */
+public class TestRefResolver extends TestCase {
+
+	// CS IGNORE LineLength FOR NEXT 100 LINES. REASON: unit test data.
+	private static final String SHA = "9297f42afa37eaabf1328b44f9f583fc12638c58";
+
+	private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+	private final PrintStream logger = new PrintStream(log, true);
+
+	/**
+	 * A resolver which answers every query with the same SHA-1 after a delay
+	 * depending on the host, instead of running git.
+	 */
+	private RefResolver createResolver(final Map<String, Long> delays, final long timeout) {
+		return new RefResolver(null, logger, 2, new HashMap<String, Integer>(), timeout, null) {
+			@Override
+			Map<String, String> lsRemote(final String url, final Set<String> refs) throws InterruptedException {
+				final Long delay = delays.get(getHost(url));
+				if (delay != null) {
+					Thread.sleep(delay.longValue());
+				}
+				final Map<String, String> heads = new HashMap<String, String>();
+				for (final String ref : refs) {
+					heads.put(ref, SHA);
+				}
+				return heads;
+			}
+		};
+	}
+
+	/**
+	 * Test the host of the URL forms used in manifests.
+	 */
+	public void testGetHost() {
+		Assert.assertEquals("android.googlesource.com", RefResolver.getHost("https://android.googlesource.com/platform/build"));
+		Assert.assertEquals("review.example.com:29418", RefResolver.getHost("ssh://jenkins@review.example.com:29418/platform/build"));
+		Assert.assertEquals("review.example.com", RefResolver.getHost("git://review.example.com"));
+		Assert.assertEquals("review.example.com", RefResolver.getHost("jenkins@review.example.com:platform/build"));
+		Assert.assertEquals("", RefResolver.getHost("/srv/git/platform/build"));
+		Assert.assertEquals("", RefResolver.getHost("../platform/build"));
+	}
+
+	/**
+	 * Test that a slow host fails after its timeout without holding up the
+	 * other hosts.
+	 */
+	public void testHostTimeout() throws Exception {
+		final Map<String, Long> delays = new HashMap<String, Long>();
+		delays.put("slow.example.com", Long.valueOf(10000));
+		final Map<String, Set<String>> refs = new LinkedHashMap<String, Set<String>>();
+		refs.put("https://slow.example.com/one", Collections.singleton("refs/heads/master"));
+		refs.put("https://fast.example.com/one", Collections.singleton("refs/heads/master"));
+		refs.put("https://fast.example.com/two", Collections.singleton("refs/heads/master"));
+		refs.put("https://fast.example.com/three", Collections.singleton("refs/heads/master"));
+
+		final long start = System.currentTimeMillis();
+		final RefResolver.Result result = createResolver(delays, 500).resolve(refs);
+		Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+		Assert.assertEquals(1, result.getFailureCount());
+		Assert.assertTrue(result.isFailed("https://slow.example.com/one"));
+		Assert.assertNull(result.getHead("https://slow.example.com/one", "refs/heads/master"));
+		Assert.assertEquals(SHA, result.getHead("https://fast.example.com/three", "refs/heads/master"));
+		Assert.assertTrue(log.toString("UTF-8").contains("Timed out listing the refs of https://slow.example.com/one"));
+	}
+
+	/**
+	 * Test that without a timeout every query is waited for.
+	 */
+	public void testNoTimeout() throws Exception {
+		final Map<String, Long> delays = new HashMap<String, Long>();
+		delays.put("slow.example.com", Long.valueOf(200));
+		final Map<String, Set<String>> refs = new LinkedHashMap<String, Set<String>>();
+		refs.put("https://slow.example.com/one", Collections.singleton("refs/heads/master"));
+		final RefResolver.Result result = createResolver(delays, 0).resolve(refs);
+		Assert.assertEquals(0, result.getFailureCount());
+		Assert.assertEquals(SHA, result.getHead("https://slow.example.com/one", "refs/heads/master"));
+	}
+}
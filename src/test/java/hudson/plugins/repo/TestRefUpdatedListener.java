@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import org.junit.Assert;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link RefUpdatedListener} class.
+ */
+public class TestRefUpdatedListener extends TestCase {
+
+	// CS IGNORE LineLength FOR NEXT 80 LINES. REASON: unit test data.
+	private static final String EVENT =
+			"{\"type\":\"ref-updated\",\"submitter\":{\"name\":\"Jenkins\"},"
+					+ "\"refUpdate\":{\"oldRev\":\"c9039e9649d133d80073e432816b9b4915776b41\","
+					+ "\"newRev\":\"9297f42afa37eaabf1328b44f9f583fc12638c58\","
+					+ "\"refName\":\"%s\",\"project\":\"%s\"},\"eventCreatedOn\":1318432800}";
+
+	private static String event(final String project, final String ref) {
+		return String.format(EVENT, ref, project);
+	}
+
+	/**
+	 * Test which lines of the event stream schedule builds.
+	 */
+	public void testParseEvent() {
+		final RefUpdatedCause cause = RefUpdatedListener.parseEvent(event("platform/build", "master"));
+		Assert.assertEquals("platform/build", cause.getProject());
+		Assert.assertEquals("master", cause.getRef());
+		Assert.assertEquals("9297f42afa37eaabf1328b44f9f583fc12638c58", cause.getRevision());
+		Assert.assertEquals("refs/tags/v1.0", RefUpdatedListener.parseEvent(event("platform/build", "refs/tags/v1.0")).getRef());
+
+		Assert.assertNull(RefUpdatedListener.parseEvent(event("platform/build", "refs/changes/42/1042/1")));
+		Assert.assertNull(RefUpdatedListener.parseEvent(event("", "master")));
+		Assert.assertNull(RefUpdatedListener.parseEvent("{\"type\":\"patchset-created\",\"change\":{\"project\":\"platform/build\"}}"));
+		Assert.assertNull(RefUpdatedListener.parseEvent("{\"type\":\"ref-updated\"}"));
+		Assert.assertNull(RefUpdatedListener.parseEvent("Permission denied (publickey)."));
+	}
+
+	/**
+	 * Test the host of the event stream.
+	 */
+	public void testHost() {
+		Assert.assertEquals("review.example.com", RefUpdatedListener.getHost(null, "ssh -p 29418 jenkins@review.example.com gerrit stream-events"));
+		Assert.assertEquals("review.example.com", RefUpdatedListener.getHost(null, "ssh review.example.com gerrit stream-events"));
+		Assert.assertEquals("other.example.com", RefUpdatedListener.getHost("other.example.com:29418", "ssh review.example.com gerrit stream-events"));
+		Assert.assertNull(RefUpdatedListener.getHost(null, "tail -F /tmp/events"));
+		Assert.assertNull(RefUpdatedListener.getHost(null, null));
+	}
+
+	/**
+	 * Test that events only schedule the jobs using the updated branch of
+	 * the project on the same server.
+	 */
+	public void testMatchingJobs() {
+		final RepoScm scm = new RepoScm("ssh://review.example.com:29418/platform/manifest", null, null, null, 0, null, null);
+		final ProjectIndex index = new ProjectIndex();
+		index.update("job", scm, new RevisionState(
+				"<manifest>"
+						+ "<remote name=\"aosp\" fetch=\"..\"/>"
+						+ "<remote name=\"other\" fetch=\"https://android.googlesource.com/\"/>"
+						+ "<default remote=\"aosp\" revision=\"master\"/>"
+						+ "<project name=\"platform/build\" path=\"build\" revision=\"c9039e9649d133d80073e432816b9b4915776b41\" upstream=\"master\"/>"
+						+ "<project name=\"platform/dalvik\" path=\"dalvik\" revision=\"fa822eff984195ec8923718cd025fd44b77a26ef\"/>"
+						+ "<project name=\"platform/bionic\" path=\"bionic\" remote=\"other\" revision=\"c27d6b02c859b291878db67f256cefac3adb26df\" upstream=\"master\"/>"
+						+ "</manifest>", null, null));
+		final String host = RefUpdatedListener.getHost(null, "ssh -p 29418 review.example.com gerrit stream-events");
+
+		RefUpdatedCause cause = RefUpdatedListener.parseEvent(event("platform/build", "refs/heads/master"));
+		Assert.assertTrue(index.getJobs(host, cause.getProject(), cause.getRef()).contains("job"));
+		cause = RefUpdatedListener.parseEvent(event("platform/manifest", "master"));
+		Assert.assertTrue(index.getJobs(host, cause.getProject(), cause.getRef()).contains("job"));
+		// Another branch of a tracked project.
+		cause = RefUpdatedListener.parseEvent(event("platform/build", "dev"));
+		Assert.assertTrue(index.getJobs(host, cause.getProject(), cause.getRef()).isEmpty());
+		// A project pinned to a SHA-1.
+		cause = RefUpdatedListener.parseEvent(event("platform/dalvik", "master"));
+		Assert.assertTrue(index.getJobs(host, cause.getProject(), cause.getRef()).isEmpty());
+		// A project with the same name on another server.
+		cause = RefUpdatedListener.parseEvent(event("platform/bionic", "master"));
+		Assert.assertTrue(index.getJobs(host, cause.getProject(), cause.getRef()).isEmpty());
+		Assert.assertTrue(index.getJobs("android.googlesource.com", cause.getProject(), cause.getRef()).contains("job"));
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link RemoteManifest} class.
+ */
+public class TestRemoteManifest extends TestCase {
+
+	// CS IGNORE LineLength FOR NEXT 180 LINES. REASON: unit test data.
+	private static final String MANIFEST_URL =
+			"https://android.googlesource.com/platform/manifest";
+
+	private final Map<String, String> files = new HashMap<String, String>();
+
+	private final RemoteManifest.Source source = new RemoteManifest.Source() {
+		public String read(final String name) throws IOException {
+			final String text = files.get(name);
+			if (text == null) {
+				throw new IOException("No such file: " + name);
+			}
+			return text;
+		}
+	};
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		files.put("default.xml",
+				"<manifest>"
+						+ "<remote name=\"aosp\" fetch=\"..\"/>"
+						+ "<remote name=\"other\" fetch=\"ssh://review.example.com/\" revision=\"stable\"/>"
+						+ "<default remote=\"aosp\" revision=\"master\"/>"
+						+ "<project name=\"platform/build\" path=\"build\"/>"
+						+ "<project name=\"platform/bionic\" path=\"bionic\" revision=\"refs/tags/v1.0\"/>"
+						+ "<project name=\"tools/repo\" remote=\"other\"/>"
+						+ "<include name=\"extra.xml\"/>"
+						+ "</manifest>");
+		files.put("extra.xml",
+				"<manifest>"
+						+ "<project name=\"platform/dalvik\" path=\"dalvik\" revision=\"c9039e9649d133d80073e432816b9b4915776b41\"/>"
+						+ "</manifest>");
+	}
+
+	/**
+	 * Test remotes, defaults and includes.
+	 */
+	public void testParse() throws Exception {
+		final List<RemoteManifest.Project> projects =
+				new RemoteManifest(source, null, null, MANIFEST_URL).getProjects();
+		Assert.assertEquals(4, projects.size());
+
+		final RemoteManifest.Project build = projects.get(0);
+		Assert.assertEquals("build", build.getPath());
+		Assert.assertEquals("https://android.googlesource.com/platform/build", build.getFetchUrl());
+		Assert.assertEquals("refs/heads/master", build.getRef());
+		Assert.assertFalse(build.isPinned());
+
+		Assert.assertEquals("refs/tags/v1.0", projects.get(1).getRef());
+
+		final RemoteManifest.Project repo = projects.get(2);
+		Assert.assertEquals("tools/repo", repo.getPath());
+		Assert.assertEquals("ssh://review.example.com/tools/repo", repo.getFetchUrl());
+		Assert.assertEquals("refs/heads/stable", repo.getRef());
+
+		final RemoteManifest.Project dalvik = projects.get(3);
+		Assert.assertTrue(dalvik.isPinned());
+		Assert.assertNull(dalvik.getRef());
+	}
+
+	/**
+	 * Test that the local manifest can add and remove projects.
+	 */
+	public void testLocalManifest() throws Exception {
+		final String localManifest =
+				"<manifest>"
+						+ "<remove-project name=\"platform/bionic\"/>"
+						+ "<project name=\"vendor/foo\" path=\"vendor/foo\" revision=\"dev\"/>"
+						+ "</manifest>";
+		final List<RemoteManifest.Project> projects =
+				new RemoteManifest(source, null, localManifest, MANIFEST_URL).getProjects();
+		Assert.assertEquals(4, projects.size());
+		for (final RemoteManifest.Project project : projects) {
+			Assert.assertFalse(project.getPath().equals("bionic"));
+		}
+		Assert.assertEquals("refs/heads/dev", projects.get(3).getRef());
+	}
+
+	/**
+	 * Test that extend-project changes the revision, remote and groups of
+	 * the projects with its name, and only at its path if it has one.
+	 */
+	public void testExtendProject() throws Exception {
+		final String localManifest =
+				"<manifest>"
+						+ "<project name=\"platform/build\" path=\"build2\"/>"
+						+ "<extend-project name=\"platform/build\" path=\"build\" revision=\"dev\" groups=\"extra\"/>"
+						+ "<extend-project name=\"tools/repo\" remote=\"aosp\"/>"
+						+ "</manifest>";
+		final RemoteManifest manifest = new RemoteManifest(source, null, localManifest, MANIFEST_URL);
+		Assert.assertTrue(manifest.isComplete());
+		final List<RemoteManifest.Project> projects = manifest.getProjects();
+		Assert.assertEquals(5, projects.size());
+
+		final RemoteManifest.Project build = projects.get(0);
+		Assert.assertEquals("refs/heads/dev", build.getRef());
+		Assert.assertEquals("extra", build.getGroups());
+		Assert.assertEquals("refs/heads/master", projects.get(4).getRef());
+		Assert.assertNull(projects.get(4).getGroups());
+
+		final RemoteManifest.Project repo = projects.get(2);
+		Assert.assertEquals("aosp", repo.getRemoteName());
+		Assert.assertEquals("https://android.googlesource.com/tools/repo", repo.getFetchUrl());
+		Assert.assertEquals("refs/heads/stable", repo.getRef());
+	}
+
+	/**
+	 * Test that elements the parser doesn't understand make the manifest
+	 * incomplete, while those which don't change the projects don't.
+	 */
+	public void testComplete() throws Exception {
+		Assert.assertTrue(new RemoteManifest(source, null,
+				"<manifest><notice>Hi</notice><repo-hooks in-project=\"tools/repo\" enabled-list=\"pre-upload\"/></manifest>",
+				MANIFEST_URL).isComplete());
+		Assert.assertFalse(new RemoteManifest(source, null,
+				"<manifest><submanifest name=\"sub\"/></manifest>", MANIFEST_URL).isComplete());
+		Assert.assertFalse(new RemoteManifest(source, null,
+				"<manifest><project name=\"vendor/foo\"><project name=\"vendor/bar\"/></project></manifest>",
+				MANIFEST_URL).isComplete());
+		Assert.assertFalse(new RemoteManifest(source, null,
+				"<manifest><extend-project name=\"platform/build\" dest-path=\"b\"/></manifest>",
+				MANIFEST_URL).isComplete());
+	}
+
+	/**
+	 * Test that a generated static manifest can be read by
+	 * {@link RevisionState}.
+	 */
+	public void testStaticManifest() throws Exception {
+		final List<RemoteManifest.Project> projects =
+				new RemoteManifest(source, null, null, MANIFEST_URL).getProjects();
+		final Map<String, String> revisions = new HashMap<String, String>();
+		revisions.put("build", "9297f42afa37eaabf1328b44f9f583fc12638c58");
+		revisions.put("dalvik", "c9039e9649d133d80073e432816b9b4915776b41");
+		revisions.put("bionic", "fa822eff984195ec8923718cd025fd44b77a26ef");
+		final RevisionState state = new RevisionState(
+				RemotePoller.toStaticManifest(projects, revisions), "master", null);
+		Assert.assertEquals("9297f42afa37eaabf1328b44f9f583fc12638c58", state.getRevision("build"));
+		Assert.assertEquals("c9039e9649d133d80073e432816b9b4915776b41", state.getRevision("dalvik"));
+		Assert.assertNull(state.getRevision("tools/repo"));
+
+		Assert.assertEquals("master", state.getProject("build").getUpstream());
+		Assert.assertFalse(state.getProject("build").isImmutable());
+		Assert.assertTrue(state.getProject("bionic").isImmutable());
+		Assert.assertNull(state.getProject("dalvik").getUpstream());
+	}
+
+	/**
+	 * Test the classification of manifest revisions.
+	 */
+	public void testImmutable() throws Exception {
+		final List<RemoteManifest.Project> projects =
+				new RemoteManifest(source, null, null, MANIFEST_URL).getProjects();
+		Assert.assertFalse(projects.get(0).isImmutable());
+		Assert.assertTrue(projects.get(1).isImmutable());
+		Assert.assertFalse(projects.get(1).isPinned());
+		Assert.assertTrue(projects.get(3).isImmutable());
+	}
+
+	/**
+	 * Test fetch URL resolution.
+	 */
+	public void testResolveUrl() {
+		Assert.assertEquals("https://host/", RemoteManifest.resolveUrl("https://host/platform/manifest", ".."));
+		Assert.assertEquals("https://host/", RemoteManifest.resolveUrl("https://host/manifest", ".."));
+		Assert.assertEquals("https://host/platform/", RemoteManifest.resolveUrl("https://host/platform/manifest", "."));
+		Assert.assertEquals("git://other/", RemoteManifest.resolveUrl("https://host/manifest", "git://other/"));
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link RemotePoller} class.
+ */
+public class TestRemotePoller extends TestCase {
+
+	// CS IGNORE LineLength FOR NEXT 150 LINES. REASON: unit test data.
+	private static final String MANIFEST_URL = "https://android.googlesource.com/platform/manifest";
+	private static final String OLD_SHA = "c9039e9649d133d80073e432816b9b4915776b41";
+	private static final String NEW_SHA = "9297f42afa37eaabf1328b44f9f583fc12638c58";
+
+	private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+	private final PrintStream logger = new PrintStream(log, true);
+	private final Set<String> failedHosts = new HashSet<String>();
+	private List<RemoteManifest.Project> projects;
+
+	private final RevisionState baseline = new RevisionState(
+			"<manifest>"
+					+ "<project name=\"platform/build\" path=\"build\" revision=\"" + OLD_SHA + "\" upstream=\"master\"/>"
+					+ "<project name=\"tools/repo\" path=\"tools/repo\" revision=\"" + OLD_SHA + "\" upstream=\"stable\"/>"
+					+ "</manifest>", "master", null);
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		final Map<String, String> files = new HashMap<String, String>();
+		files.put("default.xml",
+				"<manifest>"
+						+ "<remote name=\"aosp\" fetch=\"..\"/>"
+						+ "<remote name=\"other\" fetch=\"ssh://review.example.com/\" revision=\"stable\"/>"
+						+ "<default remote=\"aosp\" revision=\"master\"/>"
+						+ "<project name=\"platform/build\" path=\"build\"/>"
+						+ "<project name=\"tools/repo\" remote=\"other\"/>"
+						+ "</manifest>");
+		projects = new RemoteManifest(new RemoteManifest.Source() {
+			public String read(final String name) throws IOException {
+				return files.get(name);
+			}
+		}, null, null, MANIFEST_URL).getProjects();
+	}
+
+	/**
+	 * Creates a poller whose resolver fails for the hosts in failedHosts and
+	 * answers NEW_SHA for every other ref.
+	 */
+	private RemotePoller createPoller(final boolean partial) {
+		final RefResolver resolver = new RefResolver(null, logger, 1, new HashMap<String, Integer>(), 0, null) {
+			@Override
+			Map<String, String> lsRemote(final String url, final Set<String> refs) {
+				if (failedHosts.contains(getHost(url))) {
+					return null;
+				}
+				final Map<String, String> heads = new HashMap<String, String>();
+				for (final String ref : refs) {
+					heads.put(ref, NEW_SHA);
+				}
+				return heads;
+			}
+		};
+		return new RemotePoller(null, null, logger, resolver, partial);
+	}
+
+	/**
+	 * Test a poll where every server answers.
+	 */
+	public void testResolve() throws Exception {
+		final RevisionState state = createPoller(false).resolve(projects, "abc", "master", baseline);
+		Assert.assertEquals(NEW_SHA, state.getRevision("build"));
+		Assert.assertEquals(NEW_SHA, state.getRevision("tools/repo"));
+		Assert.assertTrue(state.getUnresolvedPaths().isEmpty());
+		Assert.assertSame(state, RemotePoller.keepUnresolved(state, baseline, logger));
+	}
+
+	/**
+	 * Test that a failed server fails the poll unless it is partial.
+	 */
+	public void testFailure() throws Exception {
+		failedHosts.add("review.example.com");
+		Assert.assertNull(createPoller(false).resolve(projects, "abc", "master", baseline));
+		failedHosts.add("android.googlesource.com");
+		Assert.assertNull(createPoller(true).resolve(projects, "abc", "master", baseline));
+	}
+
+	/**
+	 * Test that a partial poll leaves the projects of a failed server
+	 * unresolved whatever the baseline, and that each job completes them
+	 * from its own baseline.
+	 */
+	public void testPartial() throws Exception {
+		failedHosts.add("review.example.com");
+		final RevisionState shared = createPoller(true).resolve(projects, "abc", "master", baseline);
+		Assert.assertEquals(NEW_SHA, shared.getRevision("build"));
+		Assert.assertNull(shared.getRevision("tools/repo"));
+		Assert.assertEquals(1, shared.getUnresolvedPaths().size());
+		Assert.assertTrue(shared.getUnresolvedPaths().contains("tools/repo"));
+		Assert.assertEquals(shared, createPoller(true).resolve(projects, "abc", "master", null));
+
+		final RevisionState mine = RemotePoller.keepUnresolved(shared, baseline, logger);
+		Assert.assertEquals(NEW_SHA, mine.getRevision("build"));
+		Assert.assertEquals(OLD_SHA, mine.getRevision("tools/repo"));
+		Assert.assertEquals("stable", mine.getProject("tools/repo").getUpstream());
+		Assert.assertEquals("abc", mine.getManifestCommit());
+		Assert.assertTrue(log.toString("UTF-8").contains("Incomparable: tools/repo"));
+
+		final String otherSha = "fa822eff984195ec8923718cd025fd44b77a26ef";
+		final RevisionState otherBaseline = new RevisionState(
+				"<manifest><project name=\"tools/repo\" path=\"tools/repo\" revision=\"" + otherSha + "\"/></manifest>",
+				"master", null);
+		Assert.assertEquals(otherSha, RemotePoller.keepUnresolved(shared, otherBaseline, logger).getRevision("tools/repo"));
+		Assert.assertEquals(OLD_SHA, mine.getRevision("tools/repo"));
+
+		Assert.assertNull(RemotePoller.keepUnresolved(shared, null, logger));
+	}
+
+	/**
+	 * Test the check which skips polling when the manifest pins every
+	 * project.
+	 */
+	public void testUnchanged() throws Exception {
+		final Map<String, String> files = new HashMap<String, String>();
+		final RemoteManifest.Source source = new RemoteManifest.Source() {
+			public String read(final String name) throws IOException {
+				return files.get(name);
+			}
+		};
+		files.put("default.xml",
+				"<manifest>"
+						+ "<remote name=\"aosp\" fetch=\"..\"/>"
+						+ "<default remote=\"aosp\" revision=\"master\"/>"
+						+ "<project name=\"platform/build\" path=\"build\" revision=\"" + OLD_SHA + "\"/>"
+						+ "<project name=\"platform/bionic\" path=\"bionic\" revision=\"refs/tags/v1.0\"/>"
+						+ "</manifest>");
+		final List<RemoteManifest.Project> pinned = new RemoteManifest(source, null, null, MANIFEST_URL).getProjects();
+		final String buildProject = "<project name=\"platform/build\" path=\"build\" revision=\"" + OLD_SHA + "\"/>";
+		final String bionicProject = "<project name=\"platform/bionic\" path=\"bionic\" revision=\"" + NEW_SHA + "\" upstream=\"refs/tags/v1.0\"/>";
+		final RevisionState same = new RevisionState("<manifest>" + buildProject + bionicProject + "</manifest>", "master", null);
+		Assert.assertTrue(RemotePoller.isUnchanged(pinned, same));
+
+		// A project was removed from the manifest.
+		final RevisionState more = new RevisionState("<manifest>" + buildProject + bionicProject
+				+ "<project name=\"platform/dalvik\" path=\"dalvik\" revision=\"" + OLD_SHA + "\"/></manifest>", "master", null);
+		Assert.assertFalse(RemotePoller.isUnchanged(pinned, more));
+		// A project was added to the manifest.
+		final RevisionState fewer = new RevisionState("<manifest>" + buildProject + "</manifest>", "master", null);
+		Assert.assertFalse(RemotePoller.isUnchanged(pinned, fewer));
+		// The tag was synced from another revision.
+		final RevisionState otherTag = new RevisionState("<manifest>" + buildProject
+				+ "<project name=\"platform/bionic\" path=\"bionic\" revision=\"" + NEW_SHA + "\" upstream=\"refs/tags/v0.9\"/>"
+				+ "</manifest>", "master", null);
+		Assert.assertFalse(RemotePoller.isUnchanged(pinned, otherTag));
+		// The pinned SHA-1 differs.
+		final RevisionState otherSha = new RevisionState("<manifest>"
+				+ "<project name=\"platform/build\" path=\"build\" revision=\"" + NEW_SHA + "\"/>"
+				+ bionicProject + "</manifest>", "master", null);
+		Assert.assertFalse(RemotePoller.isUnchanged(pinned, otherSha));
+
+		// Projects tracking a branch can always move.
+		Assert.assertFalse(RemotePoller.isUnchanged(projects, baseline));
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+import hudson.Util;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Assert;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for skipping repo init when a workspace was already
+ * initialized with the same settings.
+ */
+public class TestRepoInit extends TestCase {
+
+	// CS IGNORE LineLength FOR NEXT 100 LINES. REASON: unit test data.
+
+	private File root;
+	private FilePath workspace;
+	private FilePath marker;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		root = File.createTempFile("init", "");
+		root.delete();
+		root.mkdirs();
+		workspace = new FilePath(root);
+		marker = workspace.child(".repo").child(RepoScm.INIT_MARKER);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		Util.deleteRecursive(root);
+		super.tearDown();
+	}
+
+	private void initialize(final String initArgs) throws Exception {
+		workspace.child(".repo").child("manifests").mkdirs();
+		workspace.child(".repo").child("manifest.xml").write("<manifest/>", "UTF-8");
+		marker.write(initArgs, "UTF-8");
+	}
+
+	/**
+	 * Test the arguments of repo init.
+	 */
+	public void testInitOptions() {
+		final RepoScm scm = new RepoScm("https://example.com/manifest", "stable", "default.xml", null, 0, null, null);
+		Assert.assertEquals(Arrays.asList("init", "-u", "https://example.com/manifest", "-b", "stable", "-m", "default.xml"),
+				scm.getInitOptions(null));
+		Assert.assertEquals(Arrays.asList("init", "-u", "https://example.com/manifest", "-b", "stable", "-m", "default.xml", "--reference=/mirror"),
+				scm.getInitOptions("/mirror"));
+	}
+
+	/**
+	 * Test a shallow init.
+	 */
+	public void testDepth() {
+		final RepoScm scm = new RepoScm("https://example.com/manifest", null, null, null, 0, null, null);
+		scm.setDepth(1);
+		Assert.assertEquals(Arrays.asList("init", "-u", "https://example.com/manifest", "--depth=1"),
+				scm.getInitOptions(null));
+	}
+
+	/**
+	 * Test a partial clone init, with and without a filter.
+	 */
+	public void testPartialClone() {
+		final RepoScm scm = new RepoScm("https://example.com/manifest", null, null, null, 0, null, null);
+		scm.setPartialClone(true);
+		Assert.assertEquals(Arrays.asList("init", "-u", "https://example.com/manifest", "--partial-clone"),
+				scm.getInitOptions(null));
+		scm.setCloneFilter("blob:limit=1m");
+		Assert.assertEquals(Arrays.asList("init", "-u", "https://example.com/manifest", "--partial-clone", "--clone-filter=blob:limit=1m"),
+				scm.getInitOptions(null));
+	}
+
+	/**
+	 * Test a workspace initialized with the same arguments.
+	 */
+	public void testInitialized() throws Exception {
+		final String initArgs = Util.join(new RepoScm("https://example.com/manifest", null, null, null, 0, null, null).getInitOptions(null), "\n");
+		Assert.assertFalse(RepoScm.isInitialized(workspace, marker, initArgs));
+
+		initialize(initArgs);
+		Assert.assertTrue(RepoScm.isInitialized(workspace, marker, initArgs));
+	}
+
+	/**
+	 * Test a workspace initialized with other arguments.
+	 */
+	public void testChangedSettings() throws Exception {
+		final String initArgs = Util.join(new RepoScm("https://example.com/manifest", null, null, null, 0, null, null).getInitOptions(null), "\n");
+		final String branchArgs = Util.join(new RepoScm("https://example.com/manifest", "stable", null, null, 0, null, null).getInitOptions(null), "\n");
+		initialize(initArgs);
+		Assert.assertFalse(RepoScm.isInitialized(workspace, marker, branchArgs));
+		Assert.assertFalse(RepoScm.isInitialized(workspace, marker, initArgs + "\n--reference=/mirror"));
+	}
+
+	/**
+	 * Test a workspace whose checkout of the manifest is incomplete.
+	 */
+	public void testIncomplete() throws Exception {
+		final String initArgs = "init\n-u\nhttps://example.com/manifest";
+		initialize(initArgs);
+		workspace.child(".repo").child("manifest.xml").delete();
+		Assert.assertFalse(RepoScm.isInitialized(workspace, marker, initArgs));
+
+		initialize(initArgs);
+		workspace.child(".repo").child("manifests").deleteRecursive();
+		Assert.assertFalse(RepoScm.isInitialized(workspace, marker, initArgs));
+	}
+}
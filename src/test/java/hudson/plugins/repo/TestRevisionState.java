@@ -87,6 +87,18 @@ public class TestRevisionState extends TestCase {
 		Assert.assertFalse(stateTwo.equals(stateThree));
 	}
 
+	/**
+	 * Test that the manifest commit is recorded but doesn't affect equality.
+	 */
+	public void testManifestCommit() {
+		final RevisionState withCommit = new RevisionState(manifestOne,
+				"2943f21d673d102f580efb9d8fe52770a57d2632", "master", null);
+		Assert.assertEquals("2943f21d673d102f580efb9d8fe52770a57d2632",
+				withCommit.getManifestCommit());
+		Assert.assertNull(stateOne.getManifestCommit());
+		Assert.assertTrue(withCommit.equals(stateOne));
+	}
+
 	/**
 	 * Test {@link RevisionState#whatChanged(RevisionState)}.
 	 */
@@ -0,0 +1,254 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.Util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.junit.Assert;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link StaticManifestReader} class.
+ */
+public class TestStaticManifestReader extends TestCase {
+
+	// CS IGNORE LineLength FOR NEXT 250 LINES. REASON: unit test data.
+	private static final String MANIFEST_URL = "https://android.googlesource.com/platform/manifest";
+	private static final String BUILD_SHA = "9297f42afa37eaabf1328b44f9f583fc12638c58";
+	private static final String BIONIC_SHA = "c27d6b02c859b291878db67f256cefac3adb26df";
+	private static final String DALVIK_SHA = "c9039e9649d133d80073e432816b9b4915776b41";
+	private static final String FOO_SHA = "fa822eff984195ec8923718cd025fd44b77a26ef";
+
+	/**
+	 * The output of repo manifest -o - -r for the checkout built by setUp.
+	 * The tools/repo project isn't checked out and is left out.
+	 */
+	private static final String REPO_MANIFEST =
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+					+ "<manifest>\n"
+					+ "  <remote fetch=\"..\" name=\"aosp\"/>\n"
+					+ "  <remote fetch=\"ssh://review.example.com/\" name=\"other\" revision=\"stable\"/>\n"
+					+ "  \n"
+					+ "  <default remote=\"aosp\" revision=\"master\"/>\n"
+					+ "  \n"
+					+ "  <project groups=\"core\" name=\"platform/build\" path=\"build\" revision=\"" + BUILD_SHA + "\" upstream=\"master\"/>\n"
+					+ "  <project name=\"platform/bionic\" path=\"bionic\" revision=\"" + BIONIC_SHA + "\" upstream=\"refs/tags/v1.0\"/>\n"
+					+ "  <project name=\"platform/dalvik\" path=\"dalvik\" revision=\"" + DALVIK_SHA + "\"/>\n"
+					+ "  <project name=\"vendor/foo\" path=\"vendor/foo\" revision=\"" + FOO_SHA + "\" upstream=\"dev\"/>\n"
+					+ "</manifest>\n";
+
+	private File workspace;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		workspace = File.createTempFile("static", "");
+		workspace.delete();
+
+		write(".repo/manifests/default.xml",
+				"<manifest>"
+						+ "<remote name=\"aosp\" fetch=\"..\"/>"
+						+ "<remote name=\"other\" fetch=\"ssh://review.example.com/\" revision=\"stable\"/>"
+						+ "<default remote=\"aosp\" revision=\"master\"/>"
+						+ "<project name=\"platform/build\" path=\"build\" groups=\"core\"/>"
+						+ "<project name=\"platform/bionic\" path=\"bionic\" revision=\"refs/tags/v1.0\"/>"
+						+ "<project name=\"tools/repo\" remote=\"other\"/>"
+						+ "<include name=\"extra.xml\"/>"
+						+ "</manifest>");
+		write(".repo/manifests/extra.xml",
+				"<manifest>"
+						+ "<project name=\"platform/dalvik\" path=\"dalvik\" revision=\"" + DALVIK_SHA + "\"/>"
+						+ "</manifest>");
+		write(".repo/manifest.xml", "<manifest><include name=\"default.xml\"/></manifest>");
+		write(".repo/local_manifest.xml",
+				"<manifest><project name=\"vendor/foo\" path=\"vendor/foo\" revision=\"dev\"/></manifest>");
+
+		// A detached HEAD, as left by repo sync -d.
+		write("build/.git/HEAD", BUILD_SHA + "\n");
+		// A branch whose ref is packed.
+		write("bionic/.git/HEAD", "ref: refs/heads/work\n");
+		write("bionic/.git/packed-refs", "# pack-refs with: peeled\n" + BIONIC_SHA + " refs/heads/work\n");
+		// A work tree whose git directory is elsewhere.
+		write("dalvik/.git", "gitdir: ../.repo/worktrees/dalvik.git\n");
+		write(".repo/worktrees/dalvik.git/HEAD", DALVIK_SHA + "\n");
+		// A branch whose ref is loose.
+		write("vendor/foo/.git/HEAD", "ref: refs/heads/dev\n");
+		write("vendor/foo/.git/refs/heads/dev", FOO_SHA + "\n");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		Util.deleteRecursive(workspace);
+		super.tearDown();
+	}
+
+	private void write(final String name, final String text) throws IOException {
+		final File file = new File(workspace, name);
+		file.getParentFile().mkdirs();
+		final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			writer.write(text);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Test that the manifest read from the checkout gives the same state as
+	 * the one repo writes.
+	 */
+	public void testSameAsRepo() throws Exception {
+		final String manifest = new StaticManifestReader(MANIFEST_URL).invoke(workspace, null);
+		final RevisionState state = new RevisionState(manifest, "master", null);
+		final RevisionState repoState = new RevisionState(REPO_MANIFEST, "master", null);
+		Assert.assertEquals(repoState, state);
+		Assert.assertEquals(4, state.getProjects().size());
+		for (final ProjectState project : repoState.getProjects()) {
+			Assert.assertEquals(project.getUpstream(), state.getProject(project.getPath()).getUpstream());
+		}
+
+		final ProjectFilter filter = new ProjectFilter("core", null);
+		Assert.assertEquals(new RevisionState(REPO_MANIFEST, null, "master", filter, null),
+				new RevisionState(manifest, null, "master", filter, null));
+		Assert.assertTrue(manifest.indexOf("fetch=\"https://android.googlesource.com/\"") > 0);
+	}
+
+	/**
+	 * Test that checkouts the reader doesn't understand are left to repo.
+	 */
+	public void testFallback() throws Exception {
+		write(".repo/local_manifests/extra.xml", "<manifest/>");
+		Assert.assertNull(new StaticManifestReader(MANIFEST_URL).invoke(workspace, null));
+		Assert.assertNull(new StaticManifestReader(MANIFEST_URL).invoke(new File(workspace, "build"), null));
+	}
+
+	/**
+	 * Test that an extend-project in the local manifest is read like repo
+	 * does, and that a manifest element the reader skips is left to repo.
+	 */
+	public void testLocalManifestElements() throws Exception {
+		write(".repo/local_manifest.xml",
+				"<manifest><project name=\"vendor/foo\" path=\"vendor/foo\" revision=\"dev\"/>"
+						+ "<extend-project name=\"platform/dalvik\" groups=\"vm\"/></manifest>");
+		final String manifest = new StaticManifestReader(MANIFEST_URL).invoke(workspace, null);
+		final ProjectFilter filter = new ProjectFilter("vm", null);
+		final RevisionState state = new RevisionState(manifest, null, "master", filter, null);
+		Assert.assertEquals(1, state.getProjects().size());
+		Assert.assertEquals(DALVIK_SHA, state.getRevision("dalvik"));
+
+		write(".repo/local_manifest.xml",
+				"<manifest><project name=\"vendor/foo\" path=\"vendor/foo\" revision=\"dev\"/>"
+						+ "<submanifest name=\"sub\"/></manifest>");
+		Assert.assertNull(new StaticManifestReader(MANIFEST_URL).invoke(workspace, null));
+	}
+
+	/**
+	 * Test reading the HEAD of projects.
+	 */
+	public void testReadHead() throws Exception {
+		Assert.assertEquals(BUILD_SHA, StaticManifestReader.readHead(new File(workspace, "build")));
+		Assert.assertEquals(BIONIC_SHA, StaticManifestReader.readHead(new File(workspace, "bionic")));
+		Assert.assertEquals(DALVIK_SHA, StaticManifestReader.readHead(new File(workspace, "dalvik")));
+		Assert.assertNull(StaticManifestReader.readHead(new File(workspace, "tools/repo")));
+	}
+
+	/**
+	 * Test a checkout laid out as git 2.39 and a recent repo write it,
+	 * against the manifest repo manifest -r writes for it: attributes in
+	 * the order repo sets them, a packed tag peeled to the commit checked
+	 * out, and a branch started in a work tree whose git directory is named
+	 * by a .git file and whose refs are packed in its common directory.
+	 */
+	public void testRepoFormat() throws Exception {
+		final String master = "65503c9b32212d88f6b2706f95baa216eecb560a";
+		final String tagged = "5e687a3f765082dee00cd4f66b0654274e3959f1";
+		final String packedRefs = "# pack-refs with: peeled fully-peeled sorted \n"
+				+ master + " refs/heads/master\n"
+				+ master + " refs/heads/work\n"
+				+ "e7c56b0e2ff0fd3b21805fb08118d0bae4ce999a refs/tags/v1.0\n"
+				+ "^" + tagged + "\n";
+		final String repoManifest =
+				"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+						+ "<manifest>\n"
+						+ "  <remote name=\"aosp\" fetch=\"..\" review=\"https://android-review.googlesource.com/\"/>\n"
+						+ "  \n"
+						+ "  <default remote=\"aosp\" revision=\"master\" sync-j=\"4\"/>\n"
+						+ "  \n"
+						+ "  <project name=\"platform/bionic\" path=\"bionic\" revision=\"" + tagged + "\" upstream=\"refs/tags/v1.0\"/>\n"
+						+ "  <project name=\"platform/build\" path=\"build\" revision=\"" + master + "\" upstream=\"master\"/>\n"
+						+ "  <project name=\"platform/dalvik\" path=\"dalvik\" revision=\"" + master + "\" upstream=\"stable\"/>\n"
+						+ "</manifest>\n";
+
+		final File checkout = new File(workspace, "checkout");
+		final String top = checkout.getName() + "/";
+		write(top + ".repo/manifests/default.xml",
+				"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+						+ "<manifest>\n"
+						+ "  <remote name=\"aosp\" fetch=\"..\" review=\"https://android-review.googlesource.com/\"/>\n"
+						+ "  <default revision=\"master\" remote=\"aosp\" sync-j=\"4\"/>\n"
+						+ "  <project path=\"build\" name=\"platform/build\"/>\n"
+						+ "  <project path=\"bionic\" name=\"platform/bionic\" revision=\"refs/tags/v1.0\"/>\n"
+						+ "  <project path=\"dalvik\" name=\"platform/dalvik\" revision=\"stable\"/>\n"
+						+ "</manifest>\n");
+		write(top + ".repo/manifest.xml",
+				"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+						+ "<!--\nDO NOT EDIT THIS FILE!  It is generated by repo and changes will be discarded.\n"
+						+ "If you want to use a different manifest, use `repo init -m <file>` instead.\n-->\n"
+						+ "<manifest>\n  <include name=\"default.xml\" />\n</manifest>\n");
+		// Detached by repo sync -d at the tip of master, with packed refs.
+		write(top + "build/.git/HEAD", master + "\n");
+		write(top + "build/.git/packed-refs", packedRefs);
+		// Detached at the commit the annotated tag points to.
+		write(top + "bionic/.git/HEAD", tagged + "\n");
+		write(top + "bionic/.git/packed-refs", packedRefs);
+		// A branch started with repo start, in a git worktree.
+		final File common = new File(checkout, ".repo/projects/dalvik.git");
+		write(top + "dalvik/.git", "gitdir: " + new File(common, "worktrees/dalvik").getAbsolutePath() + "\n");
+		write(top + ".repo/projects/dalvik.git/HEAD", tagged + "\n");
+		write(top + ".repo/projects/dalvik.git/packed-refs", packedRefs);
+		write(top + ".repo/projects/dalvik.git/worktrees/dalvik/HEAD", "ref: refs/heads/work\n");
+		write(top + ".repo/projects/dalvik.git/worktrees/dalvik/commondir", "../..\n");
+		write(top + ".repo/projects/dalvik.git/worktrees/dalvik/gitdir", new File(checkout, "dalvik/.git").getAbsolutePath() + "\n");
+
+		Assert.assertEquals(master, StaticManifestReader.readHead(new File(checkout, "build")));
+		Assert.assertEquals(tagged, StaticManifestReader.readHead(new File(checkout, "bionic")));
+		Assert.assertEquals(master, StaticManifestReader.readHead(new File(checkout, "dalvik")));
+
+		final String manifest = new StaticManifestReader(MANIFEST_URL).invoke(checkout, null);
+		final RevisionState state = new RevisionState(manifest, "master", null);
+		final RevisionState repoState = new RevisionState(repoManifest, "master", null);
+		Assert.assertEquals(repoState, state);
+		Assert.assertEquals(3, state.getProjects().size());
+		for (final ProjectState project : repoState.getProjects()) {
+			Assert.assertEquals(project.getUpstream(), state.getProject(project.getPath()).getUpstream());
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Assert;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link SyncFailureParser} class.
+ */
+public class TestSyncFailureParser extends TestCase {
+
+	// CS IGNORE LineLength FOR NEXT 60 LINES. REASON: unit test data.
+
+	private static Set<String> set(final String... projects) {
+		return new TreeSet<String>(Arrays.asList(projects));
+	}
+
+	/**
+	 * Test the error messages of older versions of repo.
+	 */
+	public void testErrors() {
+		final String output =
+				"Fetching projects: 100% (900/900), done.\n"
+						+ "error: Cannot fetch platform/external/foo from https://host/platform/external/foo\n"
+						+ "error: frameworks/base/: frameworks/base checkout 9297f42afa37eaabf1328b44f9f583fc12638c58 \n"
+						+ "error: build: contains uncommitted changes\n"
+						+ "error.GitError: platform/bionic rev-list ('^HEAD',): fatal: bad revision\n"
+						+ "fatal: unable to access 'https://host/': Could not resolve host\n"
+						+ "error: Exited sync due to fetch errors\n";
+		Assert.assertEquals(set("build", "frameworks/base", "platform/bionic",
+				"platform/external/foo"), SyncFailureParser.parse(output));
+	}
+
+	/**
+	 * Test the list of failing repos printed by recent versions of repo.
+	 */
+	public void testFailingRepos() {
+		final String output =
+				"Fetching: 99% (899/900)\n"
+						+ "Failing repos:\n"
+						+ "device/generic/goldfish\n"
+						+ "kernel/prebuilts/\n"
+						+ "Try re-running with \"-j1 --fail-fast\" to exit at the first error.\n"
+						+ "================================================================================\n";
+		Assert.assertEquals(set("device/generic/goldfish", "kernel/prebuilts"),
+				SyncFailureParser.parse(output));
+	}
+
+	/**
+	 * Test that failures without a project give no project.
+	 */
+	public void testUnknown() {
+		Assert.assertTrue(SyncFailureParser.parse(
+				"fatal: error.GitError: manifests var: \nerror: Exited sync due to fetch errors\n").isEmpty());
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the runs of repo sync made by {@link RepoScm}.
+ */
+public class TestSyncPhases extends TestCase {
+
+	// CS IGNORE LineLength FOR NEXT 170 LINES. REASON: unit test data.
+
+	private static RepoScm createScm() {
+		return new RepoScm("https://example.com/manifest", null, null, null, 0, null, null);
+	}
+
+	/**
+	 * Returns each phase as its name followed by its options.
+	 */
+	private static List<List<String>> commands(final List<RepoScm.SyncPhase> phases) {
+		final List<List<String>> commands = new ArrayList<List<String>>();
+		for (final RepoScm.SyncPhase phase : phases) {
+			final List<String> command = new ArrayList<String>();
+			command.add(phase.getName());
+			command.addAll(phase.getOptions());
+			commands.add(command);
+		}
+		return commands;
+	}
+
+	/**
+	 * Test a sync in one run.
+	 */
+	public void testSync() {
+		final RepoScm scm = createScm();
+		Assert.assertEquals(Arrays.asList(Arrays.asList("sync", "-d")), commands(scm.getSyncPhases()));
+		Assert.assertFalse(scm.getSyncPhases().get(0).isLocal());
+	}
+
+	/**
+	 * Test the options which limit what is fetched.
+	 */
+	public void testFetchOptions() {
+		final RepoScm scm = createScm();
+		scm.setCurrentBranch(true);
+		scm.setNoTags(true);
+		Assert.assertEquals(Arrays.asList(Arrays.asList("sync", "-d", "-c", "--no-tags")), commands(scm.getSyncPhases()));
+
+		scm.setTwoPhaseSync(true);
+		Assert.assertEquals(Arrays.asList(
+				Arrays.asList("network", "-n", "-c", "--no-tags"),
+				Arrays.asList("local", "-l", "-d")),
+				commands(scm.getSyncPhases()));
+	}
+
+	/**
+	 * Test a sync split into a network and a local run.
+	 */
+	public void testTwoPhaseSync() {
+		final RepoScm scm = createScm();
+		scm.setTwoPhaseSync(true);
+		scm.setProjectList("platform/build device/generic/goldfish");
+		final List<RepoScm.SyncPhase> phases = scm.getSyncPhases();
+		Assert.assertEquals(Arrays.asList(
+				Arrays.asList("network", "-n", "platform/build", "device/generic/goldfish"),
+				Arrays.asList("local", "-l", "-d", "platform/build", "device/generic/goldfish")),
+				commands(phases));
+		Assert.assertFalse(phases.get(0).isLocal());
+		Assert.assertTrue(phases.get(1).isLocal());
+	}
+
+	/**
+	 * Test a smart sync, and that the local run of a two-phase smart sync
+	 * checks out the manifest the network run got.
+	 */
+	public void testSmartSync() {
+		final RepoScm scm = createScm();
+		scm.setSmartSync(true);
+		Assert.assertEquals(Arrays.asList(Arrays.asList("sync", "-d", "-s")), commands(scm.getSyncPhases()));
+
+		scm.setSmartTag("release-1.0");
+		Assert.assertEquals(Arrays.asList(Arrays.asList("sync", "-d", "--smart-tag=release-1.0")), commands(scm.getSyncPhases()));
+
+		scm.setTwoPhaseSync(true);
+		Assert.assertEquals(Arrays.asList(
+				Arrays.asList("network", "-n", "--smart-tag=release-1.0"),
+				Arrays.asList("local", "-l", "-d", "--manifest-name=smart_sync_override.xml")),
+				commands(scm.getSyncPhases()));
+	}
+
+	/**
+	 * Test the retry of a sync which failed on some projects.
+	 */
+	public void testPartialFailure() {
+		final String output =
+				"Fetching: 99% (899/900)\n"
+						+ "error: Cannot fetch platform/external/foo from https://example.com/platform/external/foo\n"
+						+ "Failing repos:\n"
+						+ "device/generic/goldfish\n"
+						+ "Try re-running with \"-j1 --fail-fast\" to exit at the first error.\n"
+						+ "error: Exited sync due to fetch errors\n";
+		final RepoScm scm = createScm();
+		scm.setCurrentBranch(true);
+		scm.setProjectList("platform/build device/generic/goldfish");
+		final List<RepoScm.SyncPhase> phases =
+				scm.getRetryPhases(SyncFailureParser.parse(output));
+		Assert.assertEquals(Arrays.asList(
+				Arrays.asList("retry", "-n", "-c", "device/generic/goldfish", "platform/external/foo"),
+				Arrays.asList("local", "-l", "-d", "platform/build", "device/generic/goldfish")),
+				commands(phases));
+		Assert.assertFalse(phases.get(0).isLocal());
+		Assert.assertTrue(phases.get(1).isLocal());
+	}
+
+	/**
+	 * Test the retry of a smart sync, which stays on the revisions of the
+	 * first sync.
+	 */
+	public void testSmartSyncFailure() {
+		final RepoScm scm = createScm();
+		scm.setSmartSync(true);
+		Assert.assertEquals(Arrays.asList(
+				Arrays.asList("retry", "-n", "--manifest-name=smart_sync_override.xml", "platform/build"),
+				Arrays.asList("local", "-l", "-d", "--manifest-name=smart_sync_override.xml")),
+				commands(scm.getRetryPhases(Collections.singleton("platform/build"))));
+	}
+
+	/**
+	 * Test that everything is synced again when the failed projects are
+	 * unknown.
+	 */
+	public void testUnknownFailure() {
+		final RepoScm scm = createScm();
+		scm.setTwoPhaseSync(true);
+		Assert.assertEquals(commands(scm.getSyncPhases()),
+				commands(scm.getRetryPhases(SyncFailureParser.parse("error: Exited sync due to fetch errors\n"))));
+	}
+
+	/**
+	 * Test that the retry delay doubles from the first delay, and stops
+	 * growing at the maximum delay.
+	 */
+	public void testRetryDelays() {
+		Assert.assertEquals(Arrays.asList(10000L, 20000L, 40000L, 80000L), RepoScm.getRetryDelays(4, 10));
+		final List<Long> delays = RepoScm.getRetryDelays(40, 10);
+		Assert.assertEquals(RepoScm.MAX_RETRY_DELAY, delays.get(6).longValue());
+		Assert.assertEquals(RepoScm.MAX_RETRY_DELAY, delays.get(39).longValue());
+		Assert.assertEquals(Arrays.asList(RepoScm.MAX_RETRY_DELAY), RepoScm.getRetryDelays(1, 100000));
+		Assert.assertEquals(Arrays.asList(0L, 0L), RepoScm.getRetryDelays(2, 0));
+	}
+
+	/**
+	 * Test that there is one delay per retry allowed.
+	 */
+	public void testRetryBudget() {
+		Assert.assertTrue(RepoScm.getRetryDelays(0, 10).isEmpty());
+		Assert.assertEquals(2, RepoScm.getRetryDelays(2, 10).size());
+		Assert.assertEquals(40, RepoScm.getRetryDelays(40, 10).size());
+	}
+}
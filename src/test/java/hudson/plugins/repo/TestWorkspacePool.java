@@ -0,0 +1,302 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Brad Larson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.repo;
+
+import hudson.FilePath;
+import hudson.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link WorkspacePool} class.
+ */
+public class TestWorkspacePool extends TestCase {
+
+	// CS IGNORE LineLength FOR NEXT 260 LINES. REASON: unit test data.
+	private final RevisionState target = new RevisionState(
+			"<manifest>"
+					+ "<project name=\"a\" path=\"a\" revision=\"9297f42afa37eaabf1328b44f9f583fc12638c58\"/>"
+					+ "<project name=\"b\" path=\"b\" revision=\"2943f21d673d102f580efb9d8fe52770a57d2632\"/>"
+					+ "<project name=\"c\" path=\"c\" revision=\"fa822eff984195ec8923718cd025fd44b77a26ef\"/>"
+					+ "</manifest>", "master", null);
+	private final RevisionState oneAway = new RevisionState(
+			"<manifest>"
+					+ "<project name=\"a\" path=\"a\" revision=\"9297f42afa37eaabf1328b44f9f583fc12638c58\"/>"
+					+ "<project name=\"b\" path=\"b\" revision=\"c27d6b02c859b291878db67f256cefac3adb26df\"/>"
+					+ "<project name=\"c\" path=\"c\" revision=\"fa822eff984195ec8923718cd025fd44b77a26ef\"/>"
+					+ "</manifest>", "master", null);
+	private final RevisionState twoAway = new RevisionState(
+			"<manifest>"
+					+ "<project name=\"a\" path=\"a\" revision=\"c9039e9649d133d80073e432816b9b4915776b41\"/>"
+					+ "<project name=\"b\" path=\"b\" revision=\"c27d6b02c859b291878db67f256cefac3adb26df\"/>"
+					+ "<project name=\"c\" path=\"c\" revision=\"fa822eff984195ec8923718cd025fd44b77a26ef\"/>"
+					+ "</manifest>", "master", null);
+
+	private static WorkspacePool.Entry entry(final String name, final RevisionState state, final long lastUsed) {
+		return new WorkspacePool.Entry(new FilePath(new File("/pool/" + name)), state, lastUsed);
+	}
+
+	/**
+	 * Test that the checkout with the fewest changed projects is chosen.
+	 */
+	public void testClosest() {
+		final List<WorkspacePool.Entry> entries = new ArrayList<WorkspacePool.Entry>();
+		Assert.assertNull(WorkspacePool.choose(entries, target));
+		entries.add(entry("0", null, 3000));
+		entries.add(entry("1", twoAway, 2000));
+		entries.add(entry("2", oneAway, 1000));
+		Assert.assertEquals("/pool/2", WorkspacePool.choose(entries, target).getDir().getRemote());
+	}
+
+	/**
+	 * Test that ties and unknown targets go to the most recently used
+	 * checkout, and that checkouts with an unknown state come last.
+	 */
+	public void testMostRecent() {
+		final List<WorkspacePool.Entry> entries = new ArrayList<WorkspacePool.Entry>();
+		entries.add(entry("0", null, 3000));
+		entries.add(entry("1", twoAway, 1000));
+		entries.add(entry("2", twoAway, 2000));
+		Assert.assertEquals("/pool/2", WorkspacePool.choose(entries, target).getDir().getRemote());
+		Assert.assertEquals("/pool/2", WorkspacePool.choose(entries, null).getDir().getRemote());
+
+		entries.remove(2);
+		entries.remove(1);
+		Assert.assertEquals("/pool/0", WorkspacePool.choose(entries, target).getDir().getRemote());
+	}
+
+	private File root;
+	private final RepoScm scm = new RepoScm("https://example.com/platform/manifest", "master", null, null, 0, null, null);
+	private final PrintStream logger = new PrintStream(new ByteArrayOutputStream(), true);
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		root = File.createTempFile("pool", "");
+		root.delete();
+		root.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		Util.deleteRecursive(root);
+		super.tearDown();
+	}
+
+	private static void write(final File file, final String text) throws IOException {
+		file.getParentFile().mkdirs();
+		final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			writer.write(text);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Writes a checkout of the projects a, b and c/d, and some build output.
+	 */
+	private static void checkout(final File dir) throws IOException {
+		write(new File(dir, ".repo/manifest.xml"), "<manifest/>\n");
+		write(new File(dir, ".repo/project.list"), "a\nb\nc/d\n");
+		write(new File(dir, "a/file"), "a\n");
+		write(new File(dir, "b/file"), "b\n");
+		write(new File(dir, "c/d/file"), "d\n");
+		write(new File(dir, "out/target"), "built\n");
+	}
+
+	private WorkspacePool.Lease lease(final File workspace) throws Exception {
+		return lease(WorkspacePool.get(), workspace);
+	}
+
+	private WorkspacePool.Lease lease(final WorkspacePool pool, final File workspace) throws Exception {
+		return pool.lease(new FilePath(root), "agent", scm, target, new FilePath(workspace), logger);
+	}
+
+	private void release(final WorkspacePool.Lease lease, final File workspace) throws Exception {
+		WorkspacePool.get().release(lease, new FilePath(workspace), target, 0, logger);
+	}
+
+	/**
+	 * Test that only the checkout goes back and forth between the pool and
+	 * the workspaces.
+	 */
+	public void testRoundTrip() throws Exception {
+		final File one = new File(root, "workspace/one");
+		final File two = new File(root, "workspace/two");
+		final WorkspacePool.Lease first = lease(one);
+		final File entry = new File(first.getEntry());
+		Assert.assertFalse(new File(one, ".repo").exists());
+
+		checkout(one);
+		Assert.assertEquals(Arrays.asList(".repo", "a", "b", "c"), WorkspacePool.getCheckoutNames(one));
+		release(first, one);
+		Assert.assertTrue(new File(entry, "c/d/file").isFile());
+		Assert.assertTrue(new File(entry, ".repo/jenkins-pool-size").isFile());
+		Assert.assertEquals(Arrays.asList("out"), Arrays.asList(one.list()));
+		Assert.assertFalse(new File(entry, "out").exists());
+		// Releasing twice does nothing.
+		release(first, one);
+
+		final WorkspacePool.Lease second = lease(two);
+		Assert.assertEquals(first.getEntry(), second.getEntry());
+		Assert.assertTrue(new File(two, "a/file").isFile());
+		Assert.assertTrue(new File(two, ".repo/project.list").isFile());
+		Assert.assertEquals(Arrays.asList(".jenkins-pool-lease"), Arrays.asList(entry.list()));
+		release(second, two);
+		Assert.assertTrue(new File(entry, "a/file").isFile());
+	}
+
+	/**
+	 * Test that a checkout which can't be moved into a workspace stays in
+	 * the pool, and that the workspace is left alone.
+	 */
+	public void testLeaseFailure() throws Exception {
+		final File one = new File(root, "workspace/one");
+		final File two = new File(root, "workspace/two");
+		final WorkspacePool.Lease first = lease(one);
+		checkout(one);
+		release(first, one);
+
+		write(new File(two, "b"), "not a project\n");
+		try {
+			lease(two);
+			Assert.fail("The checkout was moved over the workspace");
+		} catch (final IOException e) {
+			// Expected.
+		}
+		Assert.assertEquals("not a project\n", new FilePath(new File(two, "b")).readToString());
+		Assert.assertFalse(new File(two, ".repo").exists());
+		Assert.assertTrue(new File(first.getEntry(), "b/file").isFile());
+
+		// The checkout is still free.
+		final File three = new File(root, "workspace/three");
+		Assert.assertEquals(first.getEntry(), lease(three).getEntry());
+		Assert.assertTrue(new File(three, "b/file").isFile());
+	}
+
+	/**
+	 * Test that a checkout which can't be moved back stays in the workspace,
+	 * and doesn't leave its pool entry leased.
+	 */
+	public void testReleaseFailure() throws Exception {
+		final File one = new File(root, "workspace/one");
+		final WorkspacePool.Lease first = lease(one);
+		checkout(one);
+		write(new File(first.getEntry(), "b"), "in the way\n");
+		try {
+			release(first, one);
+			Assert.fail("The checkout was moved over the pool entry");
+		} catch (final IOException e) {
+			// Expected.
+		}
+		Assert.assertTrue(new File(one, ".repo/manifest.xml").isFile());
+		Assert.assertTrue(new File(one, "a/file").isFile());
+		Assert.assertFalse(new File(first.getEntry(), ".repo").exists());
+
+		// The entry is free again, though its state is now unknown.
+		final File two = new File(root, "workspace/two");
+		Assert.assertEquals(first.getEntry(), lease(two).getEntry());
+	}
+
+	/**
+	 * Test that a checkout whose build never completed is taken back from
+	 * its workspace when the pool is loaded again.
+	 */
+	public void testRecoverLease() throws Exception {
+		final File one = new File(root, "workspace/one");
+		final WorkspacePool.Lease first = lease(new WorkspacePool(), one);
+		checkout(one);
+
+		// Jenkins restarted during the build.
+		final WorkspacePool pool = new WorkspacePool();
+		final File two = new File(root, "workspace/two");
+		Assert.assertEquals(first.getEntry(), lease(pool, two).getEntry());
+		Assert.assertTrue(new File(two, "c/d/file").isFile());
+		Assert.assertFalse(new File(one, ".repo").exists());
+		Assert.assertTrue(new File(one, "out/target").isFile());
+	}
+
+	/**
+	 * Test that a checkout left in the workspace of the build is taken back
+	 * and leased again instead of being pooled twice.
+	 */
+	public void testRecoverOwnLease() throws Exception {
+		final File one = new File(root, "workspace/one");
+		final WorkspacePool.Lease first = lease(new WorkspacePool(), one);
+		checkout(one);
+
+		Assert.assertEquals(first.getEntry(), lease(new WorkspacePool(), one).getEntry());
+		Assert.assertTrue(new File(one, "a/file").isFile());
+		Assert.assertEquals(1, new File(first.getEntry()).getParentFile().list().length);
+	}
+
+	/**
+	 * Test that a lease whose checkout is gone is dropped from the pool.
+	 */
+	public void testLostLease() throws Exception {
+		final File one = new File(root, "workspace/one");
+		lease(new WorkspacePool(), one);
+		checkout(one);
+		Util.deleteRecursive(new File(one, ".repo"));
+
+		final File two = new File(root, "workspace/two");
+		final WorkspacePool.Lease second = lease(new WorkspacePool(), two);
+		Assert.assertFalse(new File(two, ".repo").exists());
+		Assert.assertEquals(Arrays.asList(".jenkins-pool-lease"), Arrays.asList(new File(second.getEntry()).list()));
+		Assert.assertTrue(new File(one, "a/file").isFile());
+	}
+
+	/**
+	 * Test that jobs share a pool only if their checkouts are alike.
+	 */
+	public void testPoolDir() {
+		final FilePath node = new FilePath(root);
+		final RepoScm other = new RepoScm("https://example.com/platform/manifest", "master", null, null, 0, null, null);
+		Assert.assertEquals(WorkspacePool.getPoolDir(node, scm).getRemote(), WorkspacePool.getPoolDir(node, other).getRemote());
+		other.setManifestGroup("default,-notdefault");
+		Assert.assertFalse(WorkspacePool.getPoolDir(node, scm).getRemote().equals(WorkspacePool.getPoolDir(node, other).getRemote()));
+		other.setManifestGroup(null);
+		other.setDepth(1);
+		Assert.assertFalse(WorkspacePool.getPoolDir(node, scm).getRemote().equals(WorkspacePool.getPoolDir(node, other).getRemote()));
+		other.setDepth(0);
+		other.setPartialClone(true);
+		Assert.assertFalse(WorkspacePool.getPoolDir(node, scm).getRemote().equals(WorkspacePool.getPoolDir(node, other).getRemote()));
+		final RepoScm file = new RepoScm("https://example.com/platform/manifest", "master", "other.xml", null, 0, null, null);
+		Assert.assertFalse(WorkspacePool.getPoolDir(node, scm).getRemote().equals(WorkspacePool.getPoolDir(node, file).getRemote()));
+	}
+}